@@ -12,8 +12,9 @@ public class HttpInfluxdbProtocol implements InfluxdbProtocol {
 	public final int port;
 	public final boolean secured;
 	public final String database;
+	public final String retentionPolicy;
 
-	public HttpInfluxdbProtocol(String scheme, String host, int port, String user, String password, String db) {
+	public HttpInfluxdbProtocol(String scheme, String host, int port, String user, String password, String db, String retentionPolicy) {
 		super();
 		this.scheme = scheme;
 		this.host = host;
@@ -21,9 +22,14 @@ public class HttpInfluxdbProtocol implements InfluxdbProtocol {
 		this.user = user;
 		this.password = password;
 		this.database = db;
+		this.retentionPolicy = retentionPolicy;
 		this.secured = (user != null) && (password != null);
 	}
 
+	public HttpInfluxdbProtocol(String scheme, String host, int port, String user, String password, String db) {
+		this(scheme, host, port, user, password, db, null);
+	}
+
 	public HttpInfluxdbProtocol(String host, int port, String user, String password, String db) {
 		this("http", host, port, user, password, db);
 	}
@@ -47,4 +53,13 @@ public class HttpInfluxdbProtocol implements InfluxdbProtocol {
 	public HttpInfluxdbProtocol(String host, int port, String user, String password) {
 		this(host, port, user, password, DEFAULT_DATABASE);
 	}
+
+	/**
+	 * @param db the database to write into
+	 * @param retentionPolicy the retention policy to write into, null for the default one of the database
+	 * @return a protocol to the same server writing into the given database and retention policy
+	 */
+	public HttpInfluxdbProtocol withDestination(String db, String retentionPolicy) {
+		return new HttpInfluxdbProtocol(scheme, host, port, user, password, db, retentionPolicy);
+	}
 }
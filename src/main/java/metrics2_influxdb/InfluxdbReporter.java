@@ -12,7 +12,12 @@
 //	this software. If not, see <http://creativecommons.org/publicdomain/zero/1.0/>.
 package metrics2_influxdb;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
@@ -22,12 +27,34 @@ import com.yammer.metrics.core.MetricsRegistry;
 import com.yammer.metrics.reporting.AbstractPollingReporter;
 
 import metrics2_influxdb.api.measurements.MetricMeasurementTransformer;
+import metrics2_influxdb.measurements.AbstractSender;
+import metrics2_influxdb.measurements.AdaptiveBatchController;
+import metrics2_influxdb.measurements.AggregatingSender;
+import metrics2_influxdb.measurements.BackpressurePolicy;
+import metrics2_influxdb.measurements.CardinalityLimitingSender;
+import metrics2_influxdb.measurements.CoalescingBacklog;
+import metrics2_influxdb.measurements.CollectionProfiler;
+import metrics2_influxdb.measurements.CompressedBacklog;
+import metrics2_influxdb.measurements.DeltaTracker;
+import metrics2_influxdb.measurements.EncodedBacklog;
+import metrics2_influxdb.measurements.FanOutSender;
+import metrics2_influxdb.measurements.GaugeEvaluator;
+import metrics2_influxdb.measurements.HistogramBuckets;
 import metrics2_influxdb.measurements.HttpInlinerSender;
+import metrics2_influxdb.measurements.Measure;
 import metrics2_influxdb.measurements.MeasurementReporter;
+import metrics2_influxdb.measurements.RoutingSender;
 import metrics2_influxdb.measurements.Sender;
+import metrics2_influxdb.measurements.StreamInlinerSender;
+import metrics2_influxdb.measurements.TcpInlinerSender;
 import metrics2_influxdb.measurements.UdpInlinerSender;
+import metrics2_influxdb.measurements.UnixSocketInlinerSender;
+import metrics2_influxdb.misc.BufferPool;
 import metrics2_influxdb.misc.Miscellaneous;
 import metrics2_influxdb.misc.VisibilityIncreasedForTests;
+import metrics2_influxdb.reporting.ReportingMetrics;
+import metrics2_influxdb.reporting.ScheduledPollingReporter;
+import metrics2_influxdb.reporting.SharedReportingRuntime;
 import metrics2_influxdb.v08.Influxdb;
 import metrics2_influxdb.v08.InfluxdbHttp;
 import metrics2_influxdb.v08.InfluxdbUdp;
@@ -63,10 +90,46 @@ public class InfluxdbReporter  {
 	 */
 	public static class Builder {
 
+		private static final int ENCODED_BACKLOG_BUFFER_SIZE = 64 * 1024;
+		private static final int FAN_OUT_BATCH_SIZE = 5000;
+		private static final long FAN_OUT_QUEUE_BYTES = 16 * 1024 * 1024;
+
 		private final MetricsRegistry registry;
 		private Clock clock;
 		private String prefix;
 		private boolean skipIdleMetrics;
+		private boolean alignedTimestamps;
+		private String sendOffsetKey;
+		private int partitions = 1;
+		private MetricsRegistry reportingMetricsRegistry;
+		private int profiledTop;
+		private int profiledEvery;
+		private int gaugeThreads;
+		private long gaugeTimeoutInMillis;
+		private GaugeEvaluator.TimeoutPolicy gaugeTimeoutPolicy;
+		private HistogramBuckets histogramBuckets;
+		private boolean percentilesReported = true;
+		private boolean deltasReported;
+		private int aggregatedTicks = 1;
+		private List<String> fullResolutionMeasurements = Collections.emptyList();
+		private final List<RoutingSender.Rule> routeRules = new ArrayList<RoutingSender.Rule>();
+		private final List<String[]> routeDestinations = new ArrayList<String[]>();
+		private int maxSeries;
+		private int backlogSeries;
+		private long encodedBacklogBytes;
+		private long compressedBacklogBytes;
+		private boolean sortedBySeries = true;
+		private BackpressurePolicy backpressurePolicy;
+		private final List<HttpInfluxdbProtocol> mirrors = new ArrayList<HttpInfluxdbProtocol>();
+		private SharedReportingRuntime runtime;
+		private double tickDeadlineRatio;
+		private int adaptiveMinBatchSize;
+		private int adaptiveMaxBatchSize;
+		private int adaptiveMaxConcurrency;
+		private long adaptiveTargetLatencyInMillis;
+		private boolean encodedBacklogCompressed;
+		private CardinalityLimitingSender.OverflowPolicy seriesOverflowPolicy;
+		private String[] collapsedTags = new String[0];
 
 		@VisibilityIncreasedForTests InfluxdbCompatibilityVersions influxdbVersion;
 		@VisibilityIncreasedForTests InfluxdbProtocol protocol;
@@ -116,6 +179,354 @@ public class InfluxdbReporter  {
 			return this;
 		}
 
+		/**
+		 * Stamps the points at the start of the reporting interval, and delays the sending
+		 * by a deterministic per host offset within the interval.
+		 *
+		 * @param alignedTimestamps
+		 * @return {@code this}
+		 */
+		public Builder alignTimestamps(boolean alignedTimestamps) {
+			this.alignedTimestamps = alignedTimestamps;
+			return this;
+		}
+
+		/**
+		 * Overrides the key the per host send offset is derived from, defaults to the local host name.
+		 *
+		 * @param sendOffsetKey a non empty key
+		 * @return {@code this}
+		 */
+		public Builder sendOffsetKey(String sendOffsetKey) {
+			Miscellaneous.requireNotEmptyParameter(sendOffsetKey, "sendOffsetKey");
+			this.sendOffsetKey = sendOffsetKey;
+			return this;
+		}
+
+		/**
+		 * Hash partitions the registry into the given number of slices, each slice being collected and
+		 * sent on its own sub-tick of the period. Smoothes the reporting cost of very large registries.
+		 *
+		 * @param partitions the number of slices, strictly positive
+		 * @return {@code this}
+		 */
+		public Builder partitions(int partitions) {
+			if (partitions < 1) {
+				throw new IllegalArgumentException("given partitions must be greater than 0");
+			}
+			this.partitions = partitions;
+			return this;
+		}
+
+		/**
+		 * Activates the instrumentation of the reporter itself: collect, encode and send latencies, points and bytes sent,
+		 * failures, drops and queue depth. The metrics are registered in the given registry, and reported along with the
+		 * reported one.
+		 *
+		 * @param registry the registry to hold the reporter own metrics, can be the reported one
+		 * @return {@code this}
+		 */
+		public Builder reportingMetrics(MetricsRegistry registry) {
+			Objects.requireNonNull(registry, "given MetricsRegistry cannot be null");
+			this.reportingMetricsRegistry = registry;
+			return this;
+		}
+
+		/**
+		 * Profiles the time spent collecting each metric on one tick out of {@code sampleEvery}, and reports the
+		 * {@code top} most expensive metrics as {@value CollectionProfiler#MEASUREMENT} measurements.
+		 * Not supported with {@link #v08()}.
+		 *
+		 * @param top the number of metrics to report
+		 * @param sampleEvery profile one tick out of the given number
+		 * @return {@code this}
+		 */
+		public Builder profileCollection(int top, int sampleEvery) {
+			if (top < 1) {
+				throw new IllegalArgumentException("given top must be greater than 0");
+			}
+			if (sampleEvery < 1) {
+				throw new IllegalArgumentException("given sampleEvery must be greater than 0");
+			}
+			this.profiledTop = top;
+			this.profiledEvery = sampleEvery;
+			return this;
+		}
+
+		/**
+		 * Evaluates the gauges in parallel on a bounded pool, each gauge having the given deadline to give its value.
+		 * Not supported with {@link #v08()}.
+		 *
+		 * @param threads the number of threads evaluating gauges
+		 * @param timeout the deadline of a gauge
+		 * @param unit the unit of the deadline
+		 * @param policy what to report for a gauge which missed its deadline
+		 * @return {@code this}
+		 */
+		public Builder evaluateGaugesInParallel(int threads, long timeout, TimeUnit unit, GaugeEvaluator.TimeoutPolicy policy) {
+			if (threads < 1) {
+				throw new IllegalArgumentException("given threads must be greater than 0");
+			}
+			Objects.requireNonNull(policy, "given TimeoutPolicy cannot be null");
+			this.gaugeThreads = threads;
+			this.gaugeTimeoutInMillis = unit.toMillis(timeout);
+			this.gaugeTimeoutPolicy = policy;
+			return this;
+		}
+
+		/**
+		 * Reports cumulative bucket counts ({@code le} tagged) for timers and histograms, which unlike percentiles
+		 * can be summed across hosts. Timer boundaries are expressed in the duration unit of the timers.
+		 * Not supported with {@link #v08()}.
+		 *
+		 * @param boundaries the upper bounds of the buckets
+		 * @return {@code this}
+		 */
+		public Builder histogramBuckets(double... boundaries) {
+			this.histogramBuckets = new HistogramBuckets(boundaries);
+			return this;
+		}
+
+		/**
+		 * Reports or not the per host percentiles of timers and histograms, default to true.
+		 * Not supported with {@link #v08()}.
+		 *
+		 * @param percentilesReported
+		 * @return {@code this}
+		 */
+		public Builder reportPercentiles(boolean percentilesReported) {
+			this.percentilesReported = percentilesReported;
+			return this;
+		}
+
+		/**
+		 * Adds to counters, meters, timers and histograms the change of their count since the previous tick
+		 * ({@value DeltaTracker#DELTA} field) and its per second rate ({@value DeltaTracker#RATE} field).
+		 * Not supported with {@link #v08()}.
+		 *
+		 * @param deltasReported
+		 * @return {@code this}
+		 */
+		public Builder reportDeltas(boolean deltasReported) {
+			this.deltasReported = deltasReported;
+			return this;
+		}
+
+		/**
+		 * Rolls up the points of each series over the given number of ticks before sending a single point holding
+		 * the last, min, max, sum, count and mean values of its fields, see {@link AggregatingSender}.
+		 * Not supported with {@link #v08()}.
+		 *
+		 * @param ticks the number of ticks rolled up in a single point, 1 to send every tick
+		 * @param fullResolutionMeasurements the names of the measurements still sent at every tick
+		 * @return {@code this}
+		 */
+		public Builder aggregate(int ticks, String... fullResolutionMeasurements) {
+			if (ticks < 1) {
+				throw new IllegalArgumentException("ticks must be positive: " + ticks);
+			}
+			this.aggregatedTicks = ticks;
+			this.fullResolutionMeasurements = Arrays.asList(fullResolutionMeasurements);
+			return this;
+		}
+
+		/**
+		 * Also writes the measures selected by the given rule into the given database and retention policy, measures
+		 * matching no route are written into the database of the protocol. Each destination is sent its own batch.
+		 * Only supported with an {@link HttpInfluxdbProtocol}, see {@link RoutingSender}.
+		 *
+		 * @param rule the selector of the measures, see {@link RoutingSender#measurement(String)},
+		 * {@link RoutingSender#tag(String, String)} and {@link RoutingSender#type(String...)}
+		 * @param database the database to write into
+		 * @param retentionPolicy the retention policy to write into, null for the default one of the database
+		 * @return {@code this}
+		 */
+		public Builder route(RoutingSender.Rule rule, String database, String retentionPolicy) {
+			Objects.requireNonNull(rule, "given rule cannot be null");
+			Objects.requireNonNull(database, "given database cannot be null");
+			routeRules.add(rule);
+			routeDestinations.add(new String[] { database, retentionPolicy });
+			return this;
+		}
+
+		/**
+		 * Bounds the number of distinct series sent, see {@link CardinalityLimitingSender}.
+		 * Not supported with {@link #v08()}.
+		 *
+		 * @param maxSeries the maximum number of distinct series, 0 for no limit
+		 * @param policy what happens to the measures of series over the limit
+		 * @param collapsedTags the tags set to {@value CardinalityLimitingSender#OTHER} by
+		 * {@link CardinalityLimitingSender.OverflowPolicy#COLLAPSE}, all tags when none given
+		 * @return {@code this}
+		 */
+		public Builder maxSeries(int maxSeries, CardinalityLimitingSender.OverflowPolicy policy, String... collapsedTags) {
+			Objects.requireNonNull(policy, "given OverflowPolicy cannot be null");
+			this.maxSeries = maxSeries;
+			this.seriesOverflowPolicy = policy;
+			this.collapsedTags = collapsedTags;
+			return this;
+		}
+
+		/**
+		 * Holds, while InfluxDB cannot be reached, the latest measures of each series instead of the measures of the
+		 * latest ticks, see {@link CoalescingBacklog}.
+		 * Not supported with {@link #v08()}.
+		 *
+		 * @param maxSeries the maximum number of series held
+		 * @return {@code this}
+		 */
+		public Builder coalesceBacklog(int maxSeries) {
+			if (maxSeries < 1) {
+				throw new IllegalArgumentException("maxSeries must be positive: " + maxSeries);
+			}
+			this.backlogSeries = maxSeries;
+			return this;
+		}
+
+		/**
+		 * Holds the measures which could not be sent already serialized, optionally gzip compressed, in pooled
+		 * buffers bounded in bytes, see {@link EncodedBacklog}. The measures of a flush are encoded once, and held
+		 * encoded if the send fails. Only supported with an {@link HttpInfluxdbProtocol}, and without a coalescing or
+		 * compressed backlog.
+		 *
+		 * @param maxBytes the maximum number of bytes held
+		 * @param compressed true to hold and send the measures gzip compressed
+		 * @return {@code this}
+		 */
+		public Builder encodedBacklog(long maxBytes, boolean compressed) {
+			if (maxBytes < 1) {
+				throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+			}
+			this.encodedBacklogBytes = maxBytes;
+			this.encodedBacklogCompressed = compressed;
+			return this;
+		}
+
+		/**
+		 * Holds, while InfluxDB cannot be reached, the measures compressed series by series with delta of delta
+		 * timestamps and XOR encoded values, see {@link CompressedBacklog}.
+		 * Not supported with {@link #v08()}.
+		 *
+		 * @param maxBytes the maximum number of bytes held, approximately
+		 * @return {@code this}
+		 */
+		public Builder compressBacklog(long maxBytes) {
+			if (maxBytes < 1) {
+				throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+			}
+			this.compressedBacklogBytes = maxBytes;
+			return this;
+		}
+
+		/**
+		 * Orders the points of each batch by measurement, grouped by series, which InfluxDB ingests faster, default to
+		 * true. Applies to the HTTP, TCP and unix socket protocols; ignored with an
+		 * {@link UdpInfluxdbProtocol}, which sends each point in its own datagram.
+		 *
+		 * @param sortedBySeries true to order the points of each batch by series, false to keep them in report order
+		 * @return {@code this}
+		 */
+		public Builder sortBySeries(boolean sortedBySeries) {
+			this.sortedBySeries = sortedBySeries;
+			return this;
+		}
+
+		/**
+		 * Sets what is done with the new measures when the backlog is full because InfluxDB cannot be reached, default
+		 * to {@link BackpressurePolicy#dropOldest()}. Not supported with a coalescing or compressed backlog.
+		 *
+		 * @param policy the policy to apply
+		 * @return {@code this}
+		 */
+		public Builder backpressure(BackpressurePolicy policy) {
+			this.backpressurePolicy = Objects.requireNonNull(policy, "given BackpressurePolicy cannot be null");
+			return this;
+		}
+
+		/**
+		 * Bounds each tick to the given share of the reporting period: synchronous senders stop sending at the
+		 * deadline and keep the remaining measures for the next tick, and ticks fired late because of an overrun are
+		 * skipped, see {@link ScheduledPollingReporter#setTickDeadline(double)}.
+		 *
+		 * @param periodRatio the share of the period a tick may take, in (0, 1]
+		 * @return {@code this}
+		 */
+		public Builder tickDeadline(double periodRatio) {
+			if (periodRatio <= 0 || periodRatio > 1) {
+				throw new IllegalArgumentException("given periodRatio must be in (0, 1]: " + periodRatio);
+			}
+			this.tickDeadlineRatio = periodRatio;
+			return this;
+		}
+
+		/**
+		 * Tunes the number of points per request and of requests in flight from the observed write latency, see
+		 * {@link AdaptiveBatchController}. Only supported with an {@link HttpInfluxdbProtocol}; the measures being sent
+		 * 5000 at a time, {@link #build()} rejects a maxBatchSize * maxConcurrency over 5000.
+		 *
+		 * @param minBatchSize the minimum number of points per request
+		 * @param maxBatchSize the maximum number of points per request
+		 * @param maxConcurrency the maximum number of requests in flight
+		 * @param targetLatency the latency of a request above which the load is decreased
+		 * @param unit the unit of the target latency
+		 * @return {@code this}
+		 */
+		public Builder adaptiveBatching(int minBatchSize, int maxBatchSize, int maxConcurrency, long targetLatency, TimeUnit unit) {
+			if (minBatchSize < 1 || maxBatchSize < minBatchSize || maxConcurrency < 1) {
+				throw new IllegalArgumentException("minBatchSize and maxConcurrency must be positive, maxBatchSize at least minBatchSize: "
+						+ minBatchSize + ", " + maxBatchSize + ", " + maxConcurrency);
+			}
+			this.adaptiveMinBatchSize = minBatchSize;
+			this.adaptiveMaxBatchSize = maxBatchSize;
+			this.adaptiveMaxConcurrency = maxConcurrency;
+			this.adaptiveTargetLatencyInMillis = unit.toMillis(targetLatency);
+			return this;
+		}
+
+		/**
+		 * Also writes all the measures to the given InfluxDB, encoding them once for all the destinations, each one
+		 * having its own queue and circuit breaker, see {@link FanOutSender}.
+		 * Only supported with an {@link HttpInfluxdbProtocol}, and without {@link #route(RoutingSender.Rule, String, String)},
+		 * a backlog, a backpressure policy or adaptive batching, which do not apply to the queues of the destinations.
+		 *
+		 * @param protocol the InfluxDB to write into, in addition to the one of {@link #protocol(InfluxdbProtocol)}
+		 * @return {@code this}
+		 */
+		public Builder mirrorTo(HttpInfluxdbProtocol protocol) {
+			Objects.requireNonNull(protocol, "given HttpInfluxdbProtocol cannot be null");
+			mirrors.add(protocol);
+			return this;
+		}
+
+		/**
+		 * Attaches the built reporter to the given runtime: it ticks on the thread of the runtime and sends its
+		 * measures through the sender of the runtime, along with the other reporters attached, instead of building
+		 * its own sender. The options of the sender (routes, mirrors, backlogs, backpressure and adaptive batching)
+		 * are the ones of the runtime, setting them along is rejected by {@link #build()}.
+		 *
+		 * @param runtime the runtime, typically built by {@link #buildRuntime(long, TimeUnit)}
+		 * @return {@code this}
+		 */
+		public Builder runtime(SharedReportingRuntime runtime) {
+			this.runtime = Objects.requireNonNull(runtime, "given SharedReportingRuntime cannot be null");
+			return this;
+		}
+
+		/**
+		 * Builds a runtime many reporters can be attached to with {@link #runtime(SharedReportingRuntime)}, sending
+		 * to InfluxDB with a sender built from the properties of this builder.
+		 *
+		 * @param linger how long a flush is delayed to gather the measures of several reporters
+		 * @param unit the unit of the linger delay
+		 * @return a {@link SharedReportingRuntime}
+		 */
+		public SharedReportingRuntime buildRuntime(long linger, TimeUnit unit) {
+			ReportingMetrics reportingMetrics = reportingMetricsRegistry == null
+					? ReportingMetrics.NOOP
+					: new ReportingMetrics(reportingMetricsRegistry);
+			return new SharedReportingRuntime(buildSender(reportingMetrics), linger, unit);
+		}
+
 		/**
 		 * Builds a {@link AbstractPollingReporter} with the given properties, sending
 		 * metrics using the given InfluxDB.
@@ -123,16 +534,58 @@ public class InfluxdbReporter  {
 		 * @return a {@link AbstractPollingReporter}
 		 */
 		public AbstractPollingReporter build() {
-			AbstractPollingReporter reporter;
+			ScheduledPollingReporter reporter;
+			ReportingMetrics reportingMetrics = reportingMetricsRegistry == null
+					? ReportingMetrics.NOOP
+					: new ReportingMetrics(reportingMetricsRegistry);
 
 			switch (influxdbVersion) {
 			case V08:
+				checkV08Options();
 				Influxdb influxdb = buildInfluxdb();
 				reporter = new ReporterV08(registry, influxdb, clock, prefix, skipIdleMetrics);
 				break;
 			default:
-				Sender s = buildSender();
-				reporter = new MeasurementReporter(s, registry, clock, tags, transformer);
+				if (runtime != null) {
+					checkRuntimeOptions();
+				}
+				Sender s = runtime != null ? runtime.getSender() : buildSender(reportingMetrics);
+				if (aggregatedTicks > 1) {
+					AggregatingSender aggregatingSender = new AggregatingSender(s, aggregatedTicks);
+					aggregatingSender.setFullResolution(fullResolutionMeasurements);
+					s = aggregatingSender;
+				}
+				if (maxSeries > 0) {
+					CardinalityLimitingSender limitingSender = new CardinalityLimitingSender(s, maxSeries, seriesOverflowPolicy);
+					limitingSender.setCollapsedTags(collapsedTags);
+					limitingSender.setReportingMetrics(reportingMetrics);
+					s = limitingSender;
+				}
+				MeasurementReporter measurementReporter = new MeasurementReporter(s, registry, clock, tags, transformer);
+				if (profiledTop > 0) {
+					measurementReporter.setCollectionProfiler(new CollectionProfiler(profiledTop, profiledEvery));
+				}
+				measurementReporter.setHistogramBuckets(histogramBuckets);
+				measurementReporter.setPercentilesReported(percentilesReported);
+				if (deltasReported) {
+					measurementReporter.setDeltaTracker(new DeltaTracker());
+				}
+				if (gaugeThreads > 0) {
+					GaugeEvaluator gaugeEvaluator = new GaugeEvaluator(gaugeThreads, gaugeTimeoutInMillis, TimeUnit.MILLISECONDS, gaugeTimeoutPolicy);
+					gaugeEvaluator.setReportingMetrics(reportingMetrics);
+					measurementReporter.setGaugeEvaluator(gaugeEvaluator);
+				}
+				reporter = measurementReporter;
+			}
+			reporter.setReportingMetrics(reportingMetrics);
+			reporter.setAlignedTimestamps(alignedTimestamps);
+			reporter.setPartitions(partitions);
+			reporter.setTickDeadline(tickDeadlineRatio);
+			if (sendOffsetKey != null) {
+				reporter.setSendOffsetKey(sendOffsetKey);
+			}
+			if (runtime != null) {
+				runtime.attach(reporter);
 			}
 			return reporter;
 		}
@@ -199,17 +652,168 @@ public class InfluxdbReporter  {
 			}
 		}
 
-		private Sender buildSender() {
+		/**
+		 * @throws IllegalStateException if an option not supported by the reporter of InfluxDB 0.8 has been set
+		 */
+		private void checkV08Options() {
+			if (profiledTop > 0 || gaugeThreads > 0 || histogramBuckets != null || !percentilesReported || deltasReported
+					|| aggregatedTicks > 1 || maxSeries > 0) {
+				throw new IllegalStateException("profiling, parallel gauges, buckets, percentiles, deltas, aggregation and maxSeries are not supported with v08");
+			}
+			if (!routeRules.isEmpty() || !mirrors.isEmpty() || backlogSeries > 0 || encodedBacklogBytes > 0 || compressedBacklogBytes > 0
+					|| backpressurePolicy != null || adaptiveMinBatchSize > 0 || runtime != null) {
+				throw new IllegalStateException("routes, mirrors, backlogs, backpressure, adaptive batching and runtimes are not supported with v08");
+			}
+		}
+
+		/**
+		 * @throws IllegalStateException if an option of the sender has been set, the runtime sender being used instead
+		 */
+		private void checkRuntimeOptions() {
+			if (!routeRules.isEmpty() || !mirrors.isEmpty() || backlogSeries > 0 || encodedBacklogBytes > 0 || compressedBacklogBytes > 0
+					|| backpressurePolicy != null || adaptiveMinBatchSize > 0) {
+				throw new IllegalStateException("routes, mirrors, backlogs, backpressure and adaptive batching are options of the sender of the runtime, set them on the builder of the runtime");
+			}
+		}
+
+		/**
+		 * @throws IllegalStateException if an option not supported by the sender of the protocol has been set
+		 */
+		private void checkSenderOptions() {
+			if (!(protocol instanceof HttpInfluxdbProtocol) && (adaptiveMinBatchSize > 0 || encodedBacklogBytes > 0)) {
+				throw new IllegalStateException("adaptive batching and an encoded backlog are not supported with protocol: " + protocol);
+			}
+			if (backpressurePolicy != null && (backlogSeries > 0 || compressedBacklogBytes > 0)) {
+				throw new IllegalStateException("a backpressure policy cannot be combined with a coalescing or compressed backlog");
+			}
+		}
+
+		private Sender buildSender(ReportingMetrics reportingMetrics) {
+			checkSenderOptions();
+			if (!mirrors.isEmpty()) {
+				return buildFanOutSender(reportingMetrics);
+			}
+			Sender sender = buildSender(protocol);
+			setReportingMetrics(sender, reportingMetrics);
+			if (routeRules.isEmpty()) {
+				return sender;
+			}
+			if (!(protocol instanceof HttpInfluxdbProtocol)) {
+				throw new IllegalStateException("routing is not supported with protocol: " + protocol);
+			}
+			HttpInfluxdbProtocol http = (HttpInfluxdbProtocol) protocol;
+			// one sender per distinct destination, shared by the rules targeting it
+			Map<List<String>, Sender> destinations = new HashMap<List<String>, Sender>();
+			destinations.put(Arrays.asList(http.database, http.retentionPolicy), sender);
+			RoutingSender router = new RoutingSender(sender);
+			for (int i = 0; i < routeRules.size(); i++) {
+				String[] destination = routeDestinations.get(i);
+				List<String> key = Arrays.asList(destination);
+				Sender routed = destinations.get(key);
+				if (routed == null) {
+					routed = buildSender(http.withDestination(destination[0], destination[1]));
+					setReportingMetrics(routed, reportingMetrics.scoped("route-" + destination[0] + (destination[1] == null ? "" : "-" + destination[1])));
+					destinations.put(key, routed);
+				}
+				router.route(routeRules.get(i), routed);
+			}
+			return router;
+		}
+
+		private Sender buildFanOutSender(ReportingMetrics reportingMetrics) {
+			if (!(protocol instanceof HttpInfluxdbProtocol)) {
+				throw new IllegalStateException("mirroring is not supported with protocol: " + protocol);
+			}
+			if (!routeRules.isEmpty()) {
+				throw new IllegalStateException("mirroring cannot be combined with routing");
+			}
+			if (backlogSeries > 0 || compressedBacklogBytes > 0 || encodedBacklogBytes > 0) {
+				throw new IllegalStateException("mirroring cannot be combined with a backlog, each destination queues its own batches");
+			}
+			if (backpressurePolicy != null || adaptiveMinBatchSize > 0) {
+				throw new IllegalStateException("mirroring cannot be combined with a backpressure policy or adaptive batching");
+			}
+			FanOutSender fanOut = new FanOutSender(FAN_OUT_BATCH_SIZE, FAN_OUT_QUEUE_BYTES);
+			fanOut.setReportingMetrics(reportingMetrics);
+			List<InfluxdbProtocol> destinations = new ArrayList<InfluxdbProtocol>();
+			destinations.add(protocol);
+			destinations.addAll(mirrors);
+			for (int i = 0; i < destinations.size(); i++) {
+				String name = i == 0 ? "primary" : "mirror-" + i;
+				// only encodes and posts the batches, queued and retried by the fan out sender
+				HttpInlinerSender transport = new HttpInlinerSender((HttpInfluxdbProtocol) destinations.get(i));
+				transport.setSortedBySeries(sortedBySeries);
+				transport.setReportingMetrics(reportingMetrics.scoped(name));
+				fanOut.addDestination(name, transport);
+			}
+			return fanOut;
+		}
+
+		private static void setReportingMetrics(Sender sender, ReportingMetrics reportingMetrics) {
+			if (sender instanceof AbstractSender) {
+				((AbstractSender) sender).setReportingMetrics(reportingMetrics);
+			}
+		}
+
+		private Sender buildSender(InfluxdbProtocol protocol) {
+			Collection<Measure> backlog = buildBacklog();
 			if (protocol instanceof HttpInfluxdbProtocol) {
-				return new HttpInlinerSender((HttpInfluxdbProtocol) protocol);
+				HttpInlinerSender sender = backlog != null
+						? new HttpInlinerSender((HttpInfluxdbProtocol) protocol, backlog)
+						: new HttpInlinerSender((HttpInfluxdbProtocol) protocol);
+				sender.setSortedBySeries(sortedBySeries);
+				if (encodedBacklogBytes > 0) {
+					int buffers = (int) Math.max(1, Math.min(Integer.MAX_VALUE, encodedBacklogBytes / ENCODED_BACKLOG_BUFFER_SIZE));
+					sender.setEncodedBacklog(new EncodedBacklog(new BufferPool(ENCODED_BACKLOG_BUFFER_SIZE, buffers), encodedBacklogCompressed));
+				}
+				if (backpressurePolicy != null) {
+					sender.setBackpressurePolicy(backpressurePolicy);
+				}
+				if (adaptiveMinBatchSize > 0) {
+					sender.setAdaptiveBatching(new AdaptiveBatchController(adaptiveMinBatchSize, adaptiveMaxBatchSize,
+							adaptiveMaxConcurrency, adaptiveTargetLatencyInMillis, TimeUnit.MILLISECONDS));
+				}
+				return sender;
 				// TODO allow registration of transformers
 				// TODO evaluate need of prefix (vs tags)
 			} else if (protocol instanceof UdpInfluxdbProtocol) {
-				return new UdpInlinerSender((UdpInfluxdbProtocol) protocol);
+				UdpInlinerSender sender = backlog != null
+						? new UdpInlinerSender((UdpInfluxdbProtocol) protocol, backlog)
+						: new UdpInlinerSender((UdpInfluxdbProtocol) protocol);
+				if (backpressurePolicy != null) {
+					sender.setBackpressurePolicy(backpressurePolicy);
+				}
+				return sender;
+			} else if (protocol instanceof TcpInfluxdbProtocol || protocol instanceof UnixSocketInfluxdbProtocol) {
+				StreamInlinerSender sender = protocol instanceof TcpInfluxdbProtocol
+						? new TcpInlinerSender((TcpInfluxdbProtocol) protocol, backlog)
+						: new UnixSocketInlinerSender((UnixSocketInfluxdbProtocol) protocol, backlog);
+				sender.setSortedBySeries(sortedBySeries);
+				if (backpressurePolicy != null) {
+					sender.setBackpressurePolicy(backpressurePolicy);
+				}
+				return sender;
 			} else {
 				throw new IllegalStateException("unsupported protocol: " + protocol);
 			}
 
 		}
+
+		private Collection<Measure> buildBacklog() {
+			if (backlogSeries > 0 && compressedBacklogBytes > 0) {
+				throw new IllegalStateException("a backlog cannot be both coalescing and compressed");
+			}
+			if (encodedBacklogBytes > 0 && (backlogSeries > 0 || compressedBacklogBytes > 0)) {
+				throw new IllegalStateException("an encoded backlog cannot be combined with a coalescing or compressed backlog");
+			}
+			if (backlogSeries > 0) {
+				return new CoalescingBacklog(backlogSeries);
+			}
+			if (compressedBacklogBytes > 0) {
+				return new CompressedBacklog(compressedBacklogBytes);
+			}
+			return null;
+		}
+
 	}
 }
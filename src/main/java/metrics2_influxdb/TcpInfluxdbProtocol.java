@@ -0,0 +1,15 @@
+package metrics2_influxdb;
+
+/**
+ * Newline delimited line protocol over a persistent TCP connection, as accepted by the Telegraf
+ * {@code socket_listener} input.
+ */
+public class TcpInfluxdbProtocol implements InfluxdbProtocol {
+	public final String host;
+	public final int port;
+
+	public TcpInfluxdbProtocol(String host, int port) {
+		this.host = host;
+		this.port = port;
+	}
+}
@@ -0,0 +1,15 @@
+package metrics2_influxdb;
+
+/**
+ * Newline delimited line protocol over a Unix domain stream socket, to an agent running on the same host, as
+ * accepted by the Telegraf {@code socket_listener} input with a {@code unix://} address.
+ * <br>
+ * Requires a Java 16 or later runtime.
+ */
+public class UnixSocketInfluxdbProtocol implements InfluxdbProtocol {
+	public final String path;
+
+	public UnixSocketInfluxdbProtocol(String path) {
+		this.path = path;
+	}
+}
@@ -0,0 +1,15 @@
+package metrics2_influxdb.api.measurements;
+
+/**
+ * A {@link MetricMeasurementTransformer} which can report several gauges as the fields of a single measurement.
+ * <br>
+ * The gauges given a field name and transformed into the same measurement name and tags are merged by the reporter
+ * into one point per tick, instead of a point with a {@code value} field per gauge.
+ */
+public interface FieldGroupingMetricMeasurementTransformer extends MetricMeasurementTransformer {
+	/**
+	 * @param metricName the name of a gauge
+	 * @return the name of the field holding the value of the gauge, null to report the gauge as its own measurement
+	 */
+	public String fieldName(String metricName);
+}
@@ -0,0 +1,61 @@
+package metrics2_influxdb.api.measurements;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * This transformer reports the gauges of the given groups as the fields of a single measurement named after the
+ * group, the last part of their name being the field name.
+ * <br>
+ * Example using the group "pool", the gauges `pool.active`, `pool.idle` and `pool.waiting` will be turned into
+ * a single measurement:
+ * <pre>
+ *    name: pool
+ *    fields: [[active=...], [idle=...], [waiting=...]]
+ * </pre>
+ * The names and tags of the measurements are first given by a delegate transformer, the grouping applies to the
+ * measurement names it gives.
+ */
+public class GroupingMetricMeasurementTransformer implements FieldGroupingMetricMeasurementTransformer {
+	private final static char SEPARATOR = '.';
+	private final MetricMeasurementTransformer delegate;
+	private final Set<String> groups;
+
+	public GroupingMetricMeasurementTransformer(String ... groups) {
+		this(MetricMeasurementTransformer.NOOP, groups);
+	}
+
+	public GroupingMetricMeasurementTransformer(MetricMeasurementTransformer delegate, String ... groups) {
+		this.delegate = delegate;
+		this.groups = new HashSet<>(Arrays.asList(groups));
+	}
+
+	@Override
+	public Map<String, String> tags(String metricName) {
+		return delegate.tags(metricName);
+	}
+
+	@Override
+	public String measurementName(String metricName) {
+		String name = delegate.measurementName(metricName);
+		int split = groupSplit(name);
+		return (split < 0) ? name : name.substring(0, split);
+	}
+
+	@Override
+	public String fieldName(String metricName) {
+		String name = delegate.measurementName(metricName);
+		int split = groupSplit(name);
+		return (split < 0) ? null : name.substring(split + 1);
+	}
+
+	private int groupSplit(String name) {
+		int split = name.lastIndexOf(SEPARATOR);
+		if (split > 0 && split < name.length() - 1 && groups.contains(name.substring(0, split))) {
+			return split;
+		}
+		return -1;
+	}
+}
@@ -1,12 +1,26 @@
 package metrics2_influxdb.measurements;
 
 import java.util.Collection;
+import java.util.Objects;
+
+import metrics2_influxdb.reporting.ReportingMetrics;
 
 public abstract class AbstractSender implements Sender {
+	protected ReportingMetrics metrics = ReportingMetrics.NOOP;
+
 	@Override
 	public void send(Collection<Measure> measures) {
 		for (Measure m : measures) {
 			send(m);
 		}
 	}
+
+	/**
+	 * Sets the instrumentation of this sender.
+	 * @param metrics a non null instrumentation
+	 */
+	public void setReportingMetrics(ReportingMetrics metrics) {
+		Objects.requireNonNull(metrics, "given ReportingMetrics cannot be null");
+		this.metrics = metrics;
+	}
 }
@@ -0,0 +1,101 @@
+package metrics2_influxdb.measurements;
+
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.core.Gauge;
+
+import metrics2_influxdb.reporting.ReportingMetrics;
+
+/**
+ * Tunes the number of points per request and the number of requests in flight from the observed write latency,
+ * additive increase and multiplicative decrease, within bounds.
+ * <br>
+ * A request answered within the target latency grows the batch size by the minimum batch size; once at the maximum
+ * batch size, it adds one request in flight. A failed request, or one slower than the target, halves both. The
+ * server thus gets as many points as it absorbs within the target latency.
+ * <br>
+ * The current values are reported by the {@code adaptive-batch-size} and {@code adaptive-concurrency} gauges.
+ */
+public class AdaptiveBatchController {
+	private final int minBatchSize;
+	private final int maxBatchSize;
+	private final int maxConcurrency;
+	private final long targetLatencyInNanos;
+	private volatile int batchSize;
+	private volatile int concurrency = 1;
+
+	/**
+	 * @param minBatchSize the minimum number of points per request, also the initial one and the increase step
+	 * @param maxBatchSize the maximum number of points per request
+	 * @param maxConcurrency the maximum number of requests in flight
+	 * @param targetLatency the latency of a request above which the load is decreased
+	 * @param unit the unit of the target latency
+	 */
+	public AdaptiveBatchController(int minBatchSize, int maxBatchSize, int maxConcurrency, long targetLatency, TimeUnit unit) {
+		if (minBatchSize < 1 || maxBatchSize < minBatchSize || maxConcurrency < 1) {
+			throw new IllegalArgumentException("minBatchSize and maxConcurrency must be positive, maxBatchSize at least minBatchSize: "
+					+ minBatchSize + ", " + maxBatchSize + ", " + maxConcurrency);
+		}
+		this.minBatchSize = minBatchSize;
+		this.maxBatchSize = maxBatchSize;
+		this.maxConcurrency = maxConcurrency;
+		this.targetLatencyInNanos = unit.toNanos(targetLatency);
+		this.batchSize = minBatchSize;
+	}
+
+	/**
+	 * Registers the gauges of the current batch size and concurrency.
+	 * @param metrics the instrumentation to register the gauges into
+	 */
+	public void setReportingMetrics(ReportingMetrics metrics) {
+		metrics.gauge("adaptive-batch-size", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return batchSize;
+			}
+		});
+		metrics.gauge("adaptive-concurrency", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return concurrency;
+			}
+		});
+	}
+
+	/**
+	 * @return the maximum number of points put in flight at once, in all the requests
+	 */
+	public long getMaxPointsInFlight() {
+		return (long) maxBatchSize * maxConcurrency;
+	}
+
+	/**
+	 * @return the number of points to put in the next request
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * @return the number of requests to have in flight
+	 */
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Adjusts the batch size and concurrency with the outcome of a request.
+	 * @param latencyInNanos the time the request took
+	 * @param sent true if the request succeeded
+	 */
+	public synchronized void completed(long latencyInNanos, boolean sent) {
+		if (!sent || latencyInNanos > targetLatencyInNanos) {
+			batchSize = Math.max(minBatchSize, batchSize / 2);
+			concurrency = Math.max(1, concurrency / 2);
+		} else if (batchSize < maxBatchSize) {
+			batchSize = Math.min(maxBatchSize, batchSize + minBatchSize);
+		} else if (concurrency < maxConcurrency) {
+			concurrency++;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package metrics2_influxdb.measurements;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A {@link Sender} which rolls up the measures of each series over a given number of ticks (calls to
+ * {@link #flush()}) before handing a single point per series to the wrapped sender.
+ * <br>
+ * For each field of a series the rolled up point holds its last value under the original field name, and for
+ * numeric fields its minimum ({@value #MIN}), maximum ({@value #MAX}), sum ({@value #SUM}), number of values
+ * ({@value #COUNT}) and mean ({@value #MEAN}) over the window; the number of ticks the series was seen in is the
+ * {@value #SAMPLES} field. The point is timestamped with the last measure of the window.
+ * <br>
+ * The {@value DeltaTracker#DELTA} field holds the sum of the deltas of the window instead of the last one, and the
+ * {@value DeltaTracker#RATE} field their mean rate, so that they cover the whole window. Integer fields are rolled up
+ * exactly, as longs.
+ * <br>
+ * Measures of the measurements registered with {@link #setFullResolution(Collection)} bypass the roll up and are
+ * sent at every tick.
+ * <br>
+ * Must be used by a single reporting thread.
+ */
+public class AggregatingSender implements Sender {
+	public static final String MIN = "-min";
+	public static final String MAX = "-max";
+	public static final String MEAN = "-mean";
+	public static final String SUM = "-sum";
+	public static final String COUNT = "-count";
+	public static final String SAMPLES = "samples";
+
+	private final Sender sender;
+	private final int ticks;
+	private final Map<String, Series> series = new HashMap<String, Series>();
+	private Set<String> fullResolution = Collections.emptySet();
+	private int tick;
+
+	/**
+	 * @param sender the sender of the rolled up points
+	 * @param ticks the number of ticks rolled up in a single point
+	 */
+	public AggregatingSender(Sender sender, int ticks) {
+		if (ticks < 1) {
+			throw new IllegalArgumentException("ticks must be positive: " + ticks);
+		}
+		this.sender = sender;
+		this.ticks = ticks;
+	}
+
+	/**
+	 * @param measurements the names of the measurements sent at full resolution
+	 */
+	public void setFullResolution(Collection<String> measurements) {
+		this.fullResolution = new HashSet<String>(measurements);
+	}
+
+	public Sender getSender() {
+		return sender;
+	}
+
+	@Override
+	public void send(Measure m) {
+		if (m == null) {
+			return;
+		}
+		if (fullResolution.contains(m.getName())) {
+			sender.send(m);
+			return;
+		}
+		String key = m.getSeriesKey();
+		Series s = series.get(key);
+		if (s == null) {
+			s = new Series(m.getName(), m.getTags(), m.getType());
+			series.put(key, s);
+		}
+		s.add(m);
+	}
+
+	@Override
+	public void send(Collection<Measure> measures) {
+		if (measures == null) {
+			return;
+		}
+		for (Measure m : measures) {
+			send(m);
+		}
+	}
+
+	@Override
+	public void flush() {
+		if (++tick >= ticks) {
+			tick = 0;
+			sender.send(rollUp());
+		}
+		sender.flush();
+	}
+
+	/**
+	 * Sends the points of the current, possibly incomplete, window and closes the wrapped sender.
+	 */
+	@Override
+	public void close() throws IOException {
+		sender.send(rollUp());
+		sender.flush();
+		sender.close();
+	}
+
+	private List<Measure> rollUp() {
+		List<Measure> points = new ArrayList<Measure>(series.size());
+		Iterator<Series> it = series.values().iterator();
+		while (it.hasNext()) {
+			Series s = it.next();
+			if (s.samples == 0) {
+				// not seen during the whole window, most probably removed
+				it.remove();
+			} else {
+				points.add(s.rollUp());
+			}
+		}
+		return points;
+	}
+
+	private static final class Series {
+		private final String name;
+		private final Map<String, String> tags;
+		private final String type;
+		private int samples;
+		private long timestamp;
+		private int size;
+		private String[] fields = new String[4];
+		private String[] last = new String[4];
+		private boolean[] integer = new boolean[4];
+		private long[] count = new long[4];
+		private double[] min = new double[4];
+		private double[] max = new double[4];
+		private double[] sum = new double[4];
+		// exact values of the fields having only integers
+		private long[] integerMin = new long[4];
+		private long[] integerMax = new long[4];
+		private long[] integerSum = new long[4];
+
+		Series(String name, Map<String, String> tags, String type) {
+			this.name = name;
+			this.type = type;
+			this.tags = new HashMap<String, String>(tags);
+		}
+
+		void add(Measure m) {
+			samples++;
+			timestamp = m.getTimestamp();
+			for (Map.Entry<String, String> field : m.getValues().entrySet()) {
+				int i = indexOf(field.getKey());
+				String raw = field.getValue();
+				last[i] = raw;
+				addNumeric(i, raw);
+			}
+		}
+
+		private void addNumeric(int i, String raw) {
+			double value;
+			if (raw.endsWith("i")) {
+				long integerValue;
+				try {
+					integerValue = Long.parseLong(raw.substring(0, raw.length() - 1));
+				} catch (NumberFormatException e) {
+					return;
+				}
+				if (count[i] == 0) {
+					integer[i] = true;
+					integerMin[i] = integerValue;
+					integerMax[i] = integerValue;
+				} else {
+					integerMin[i] = Math.min(integerMin[i], integerValue);
+					integerMax[i] = Math.max(integerMax[i], integerValue);
+				}
+				integerSum[i] += integerValue;
+				value = integerValue;
+			} else if (raw.startsWith("\"") || "true".equals(raw) || "false".equals(raw)) {
+				return;
+			} else {
+				try {
+					value = Double.parseDouble(raw);
+				} catch (NumberFormatException e) {
+					return;
+				}
+				integer[i] = false;
+			}
+			if (count[i] == 0) {
+				min[i] = value;
+				max[i] = value;
+			} else {
+				min[i] = Math.min(min[i], value);
+				max[i] = Math.max(max[i], value);
+			}
+			sum[i] += value;
+			count[i]++;
+		}
+
+		private int indexOf(String field) {
+			for (int i = 0; i < size; i++) {
+				if (fields[i].equals(field)) {
+					return i;
+				}
+			}
+			if (size == fields.length) {
+				int capacity = size * 2;
+				fields = Arrays.copyOf(fields, capacity);
+				last = Arrays.copyOf(last, capacity);
+				integer = Arrays.copyOf(integer, capacity);
+				count = Arrays.copyOf(count, capacity);
+				min = Arrays.copyOf(min, capacity);
+				max = Arrays.copyOf(max, capacity);
+				sum = Arrays.copyOf(sum, capacity);
+				integerMin = Arrays.copyOf(integerMin, capacity);
+				integerMax = Arrays.copyOf(integerMax, capacity);
+				integerSum = Arrays.copyOf(integerSum, capacity);
+			}
+			fields[size] = field;
+			return size++;
+		}
+
+		Measure rollUp() {
+			Measure point = new Measure(name, tags, (Map<String, String>) null, timestamp).type(type);
+			for (int i = 0; i < size; i++) {
+				if (last[i] == null) {
+					continue;
+				}
+				point.getValues().put(fields[i], last[i]);
+				if (count[i] > 0) {
+					if (integer[i]) {
+						point.addValue(fields[i] + MIN, integerMin[i]);
+						point.addValue(fields[i] + MAX, integerMax[i]);
+						point.addValue(fields[i] + SUM, integerSum[i]);
+					} else {
+						point.addValue(fields[i] + MIN, min[i]);
+						point.addValue(fields[i] + MAX, max[i]);
+						point.addValue(fields[i] + SUM, sum[i]);
+					}
+					point.addValue(fields[i] + COUNT, count[i]);
+					point.addValue(fields[i] + MEAN, sum[i] / count[i]);
+					if (DeltaTracker.DELTA.equals(fields[i])) {
+						// the delta of the whole window
+						if (integer[i]) {
+							point.addValue(fields[i], integerSum[i]);
+						} else {
+							point.addValue(fields[i], sum[i]);
+						}
+					} else if (DeltaTracker.RATE.equals(fields[i])) {
+						point.addValue(fields[i], sum[i] / count[i]);
+					}
+				}
+				last[i] = null;
+				integer[i] = false;
+				count[i] = 0;
+				sum[i] = 0;
+				integerSum[i] = 0;
+			}
+			point.addValue(SAMPLES, samples);
+			samples = 0;
+			return point;
+		}
+	}
+}
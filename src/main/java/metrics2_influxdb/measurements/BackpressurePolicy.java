@@ -0,0 +1,102 @@
+package metrics2_influxdb.measurements;
+
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a sender does with a new measure when it cannot hold more.
+ * <br>
+ * A policy is set per {@link Measure.Priority} on {@link QueueableSender} and {@link EventSender}; whatever the
+ * policy, a sender under pressure first sheds a held measure of lower priority to make room for the new one.
+ * The outcomes are counted by {@code backpressure-*} reporting metrics.
+ */
+public final class BackpressurePolicy {
+	public enum Kind {
+		/**
+		 * the producer waits for room, at most a timeout, then the oldest measure is dropped
+		 */
+		BLOCK,
+		/**
+		 * the new measure is dropped
+		 */
+		DROP_NEWEST,
+		/**
+		 * the oldest measure is dropped to make room for the new one
+		 */
+		DROP_OLDEST,
+		/**
+		 * under pressure, only a ratio of the new measures are kept, the others are dropped
+		 */
+		SAMPLE
+	}
+
+	private static final BackpressurePolicy DROP_NEWEST = new BackpressurePolicy(Kind.DROP_NEWEST, 0, 0);
+	private static final BackpressurePolicy DROP_OLDEST = new BackpressurePolicy(Kind.DROP_OLDEST, 0, 0);
+
+	private final Kind kind;
+	private final long timeoutInNanos;
+	private final double keptRatio;
+
+	private BackpressurePolicy(Kind kind, long timeoutInNanos, double keptRatio) {
+		this.kind = kind;
+		this.timeoutInNanos = timeoutInNanos;
+		this.keptRatio = keptRatio;
+	}
+
+	/**
+	 * @param timeout the maximum time a producer waits for room
+	 * @param unit the unit of the timeout
+	 * @return a policy blocking the producer
+	 */
+	public static BackpressurePolicy block(long timeout, TimeUnit unit) {
+		Objects.requireNonNull(unit, "given TimeUnit cannot be null");
+		return new BackpressurePolicy(Kind.BLOCK, unit.toNanos(timeout), 0);
+	}
+
+	public static BackpressurePolicy dropNewest() {
+		return DROP_NEWEST;
+	}
+
+	public static BackpressurePolicy dropOldest() {
+		return DROP_OLDEST;
+	}
+
+	/**
+	 * @param keptRatio the ratio of the new measures kept under pressure, between 0 and 1
+	 * @return a policy thinning the new measures
+	 */
+	public static BackpressurePolicy sample(double keptRatio) {
+		if (keptRatio < 0 || keptRatio > 1) {
+			throw new IllegalArgumentException("keptRatio must be between 0 and 1: " + keptRatio);
+		}
+		return new BackpressurePolicy(Kind.SAMPLE, 0, keptRatio);
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public long getTimeoutInNanos() {
+		return timeoutInNanos;
+	}
+
+	/**
+	 * @return true if a new measure is to be kept, for {@link Kind#SAMPLE}
+	 */
+	boolean sampled() {
+		return ThreadLocalRandom.current().nextDouble() < keptRatio;
+	}
+
+	@Override
+	public String toString() {
+		switch (kind) {
+		case BLOCK:
+			return "block(" + TimeUnit.NANOSECONDS.toMillis(timeoutInNanos) + "ms)";
+		case SAMPLE:
+			return "sample(" + keptRatio + ")";
+		default:
+			return kind.name().toLowerCase().replace('_', '-');
+		}
+	}
+}
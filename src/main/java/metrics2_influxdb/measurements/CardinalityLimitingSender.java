@@ -0,0 +1,255 @@
+package metrics2_influxdb.measurements;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.core.Gauge;
+
+import metrics2_influxdb.reporting.ReportingMetrics;
+
+/**
+ * A {@link Sender} bounding the number of distinct series (measurement + tags) handed to the wrapped sender,
+ * protecting the InfluxDB index from a tag carrying unbounded values.
+ * <br>
+ * The series seen so far are tracked by a 64 bits hash of their key in an open addressing set of primitive longs.
+ * Once the cap is reached, the measures of new series are handled by the {@link OverflowPolicy}, and counted, one per
+ * measure and tick, by the {@value #REJECTED} reporting metric. The series resulting from {@link OverflowPolicy#COLLAPSE} are bounded too,
+ * see {@link #setMaxCollapsedSeries(int)}: they are still unbounded when measurement names, or tags which are not
+ * collapsed, are.
+ * <br>
+ * Must be used by a single reporting thread.
+ */
+public class CardinalityLimitingSender extends AbstractSender {
+	private final static Logger LOGGER = LoggerFactory.getLogger(CardinalityLimitingSender.class);
+	public static final String OTHER = "other";
+	public static final String REJECTED = "rejected-measures";
+
+	public enum OverflowPolicy {
+		/**
+		 * measures of new series are dropped
+		 */
+		DROP,
+		/**
+		 * the collapsible tags of measures of new series are set to {@value CardinalityLimitingSender#OTHER}, the
+		 * measures are dropped when the collapsed series is itself new past its own cap
+		 */
+		COLLAPSE,
+		/**
+		 * measures of new series are sent anyway, the overflow is only logged once
+		 */
+		LOG_ONCE
+	}
+
+	private final Sender sender;
+	private final int maxSeries;
+	private final OverflowPolicy policy;
+	private final SeriesSet series = new SeriesSet();
+	private final SeriesSet collapsedSeries = new SeriesSet();
+	private int maxCollapsedSeries;
+	private Set<String> collapsedTags;
+	private boolean overflowLogged;
+
+	/**
+	 * @param sender the sender of the admitted measures
+	 * @param maxSeries the maximum number of distinct series
+	 * @param policy what happens to the measures of series over the cap
+	 */
+	public CardinalityLimitingSender(Sender sender, int maxSeries, OverflowPolicy policy) {
+		if (maxSeries < 1) {
+			throw new IllegalArgumentException("maxSeries must be positive: " + maxSeries);
+		}
+		this.sender = sender;
+		this.maxSeries = maxSeries;
+		this.policy = policy;
+		this.maxCollapsedSeries = Math.max(1, maxSeries / 10);
+	}
+
+	/**
+	 * @param tagKeys the tags set to {@value #OTHER} by {@link OverflowPolicy#COLLAPSE}, all tags when none given
+	 */
+	public void setCollapsedTags(String... tagKeys) {
+		this.collapsedTags = tagKeys.length == 0 ? null : new HashSet<String>(Arrays.asList(tagKeys));
+	}
+
+	/**
+	 * @param maxCollapsedSeries the maximum number of distinct series resulting from {@link OverflowPolicy#COLLAPSE},
+	 * on top of maxSeries, default to a tenth of maxSeries
+	 */
+	public void setMaxCollapsedSeries(int maxCollapsedSeries) {
+		if (maxCollapsedSeries < 1) {
+			throw new IllegalArgumentException("maxCollapsedSeries must be positive: " + maxCollapsedSeries);
+		}
+		this.maxCollapsedSeries = maxCollapsedSeries;
+	}
+
+	@Override
+	public void setReportingMetrics(ReportingMetrics metrics) {
+		super.setReportingMetrics(metrics);
+		metrics.gauge("series", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return series.size;
+			}
+		});
+	}
+
+	/**
+	 * @return the number of distinct series sent so far
+	 */
+	public int size() {
+		return series.size;
+	}
+
+	@Override
+	public void send(Measure m) {
+		if (m == null) {
+			return;
+		}
+		long hash = hashOf(m);
+		if (series.contains(hash)) {
+			sender.send(m);
+			return;
+		}
+		if (series.size < maxSeries) {
+			series.add(hash);
+			sender.send(m);
+			return;
+		}
+
+		metrics.inc(REJECTED, 1);
+		switch (policy) {
+		case COLLAPSE:
+			Measure collapsed = collapse(m);
+			long collapsedHash = hashOf(collapsed);
+			if (collapsedSeries.contains(collapsedHash)) {
+				sender.send(collapsed);
+			} else if (collapsedSeries.size < maxCollapsedSeries) {
+				collapsedSeries.add(collapsedHash);
+				sender.send(collapsed);
+			} else {
+				logOverflow(m);
+			}
+			break;
+		case LOG_ONCE:
+			logOverflow(m);
+			sender.send(m);
+			break;
+		default:
+			logOverflow(m);
+			break;
+		}
+	}
+
+	private void logOverflow(Measure m) {
+		if (!overflowLogged) {
+			overflowLogged = true;
+			LOGGER.warn("more than {} distinct series reported, new series are {}, first one: {} {}", maxSeries,
+					policy == OverflowPolicy.LOG_ONCE ? "sent anyway" : "dropped", m.getName(), m.getTags());
+		}
+	}
+
+	private Measure collapse(Measure m) {
+		Measure collapsed = new Measure(m.getName(), m.getTags(), m.getValues(), m.getTimestamp()).type(m.getType());
+		for (Map.Entry<String, String> tag : collapsed.getTags().entrySet()) {
+			if (collapsedTags == null || collapsedTags.contains(tag.getKey())) {
+				tag.setValue(OTHER);
+			}
+		}
+		return collapsed;
+	}
+
+	@Override
+	public void flush() {
+		sender.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		sender.close();
+	}
+
+	private static long hashOf(Measure m) {
+		long hash = mix(hash64(m.getName()));
+		// tags are combined by a sum, independent of their order
+		for (Map.Entry<String, String> tag : m.getTags().entrySet()) {
+			hash += mix(hash64(tag.getKey()) * 0x9e3779b97f4a7c15L + hash64(tag.getValue()));
+		}
+		return mix(hash);
+	}
+
+	/**
+	 * @return a 64 bits FNV-1a hash of the chars of the given string, {@link String#hashCode()} having only 32
+	 */
+	private static long hash64(String s) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < s.length(); i++) {
+			h ^= s.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		return h;
+	}
+
+	private static long mix(long k) {
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+
+	/**
+	 * The 64 bits hashes of series keys, in an open addressing set of primitive longs.
+	 */
+	private static final class SeriesSet {
+		private long[] hashes = new long[64];
+		private boolean zeroTracked;
+		private int size;
+
+		boolean contains(long hash) {
+			if (hash == 0) {
+				return zeroTracked;
+			}
+			int mask = hashes.length - 1;
+			for (int slot = (int) hash & mask; hashes[slot] != 0; slot = (slot + 1) & mask) {
+				if (hashes[slot] == hash) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		void add(long hash) {
+			size++;
+			if (hash == 0) {
+				zeroTracked = true;
+				return;
+			}
+			if (size * 2 > hashes.length) {
+				long[] old = hashes;
+				hashes = new long[old.length * 2];
+				for (long h : old) {
+					if (h != 0) {
+						insert(h);
+					}
+				}
+			}
+			insert(hash);
+		}
+
+		private void insert(long hash) {
+			int mask = hashes.length - 1;
+			int slot = (int) hash & mask;
+			while (hashes[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			hashes[slot] = hash;
+		}
+	}
+}
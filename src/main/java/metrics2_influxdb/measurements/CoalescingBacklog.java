@@ -0,0 +1,177 @@
+package metrics2_influxdb.measurements;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * A backlog of measures keyed by series, an alternative to the {@link metrics2_influxdb.misc.BoundedFIFO} of a
+ * {@link QueueableSender} for outages longer than a few ticks. As an {@link OutageBacklog}, it only holds the
+ * measures which could not be sent.
+ * <br>
+ * Instead of holding one measure per series and per tick, it holds for each series:
+ * <ul>
+ * <li>the latest measure for gauges, and measures of unknown type</li>
+ * <li>the first seen and the latest measures for counters, meters, timers, histograms and interval recorders, so
+ * that the change of their counts over the outage is still known</li>
+ * </ul>
+ * The memory is bounded by the number of series: when a new series comes once the maximum is reached, the series
+ * added the longest ago is evicted.
+ */
+public class CoalescingBacklog extends AbstractCollection<Measure> implements OutageBacklog {
+	private final int maxSeries;
+	private final LinkedHashMap<String, Points> series;
+	private int size;
+	private int peeked;
+
+	/**
+	 * @param maxSeries the maximum number of series held
+	 */
+	public CoalescingBacklog(final int maxSeries) {
+		if (maxSeries < 1) {
+			throw new IllegalArgumentException("maxSeries must be positive: " + maxSeries);
+		}
+		this.maxSeries = maxSeries;
+		this.series = new LinkedHashMap<String, Points>(16, 0.75f, false) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Points> eldest) {
+				if (size() > CoalescingBacklog.this.maxSeries) {
+					CoalescingBacklog.this.size -= eldest.getValue().size();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	@Override
+	public boolean add(Measure m) {
+		String key = m.getSeriesKey();
+		Points points = series.get(key);
+		if (points == null) {
+			points = new Points();
+			points.latest = m;
+			size++;
+			series.put(key, points);
+			return true;
+		}
+
+		if (keepsFirst(m) && points.first == null) {
+			points.first = points.latest;
+			size++;
+		}
+		points.latest = m;
+		return true;
+	}
+
+	private static boolean keepsFirst(Measure m) {
+		String type = m.getType();
+		return Measure.COUNTER.equals(type) || Measure.METER.equals(type) || Measure.TIMER.equals(type)
+				|| Measure.HISTOGRAM.equals(type) || Measure.INTERVAL_RECORDER.equals(type);
+	}
+
+	/**
+	 * @return the number of series held
+	 */
+	public int seriesCount() {
+		return series.size();
+	}
+
+	/**
+	 * @return the number of measures held
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		series.clear();
+		size = 0;
+		peeked = 0;
+	}
+
+	@Override
+	public List<Measure> peek(int max) {
+		List<Measure> measures = new ArrayList<Measure>(Math.min(max, size));
+		for (Iterator<Measure> it = iterator(); it.hasNext() && measures.size() < max;) {
+			measures.add(it.next());
+		}
+		peeked = measures.size();
+		return measures;
+	}
+
+	@Override
+	public void removePeeked() {
+		for (Iterator<Points> it = series.values().iterator(); peeked > 0 && it.hasNext();) {
+			Points points = it.next();
+			if (points.size() <= peeked) {
+				it.remove();
+				size -= points.size();
+				peeked -= points.size();
+			} else {
+				// only the first measure of the series has been sent
+				points.first = null;
+				size--;
+				peeked = 0;
+			}
+		}
+		peeked = 0;
+	}
+
+	/**
+	 * @return the measures held, series by series, oldest measure first
+	 */
+	@Override
+	public Iterator<Measure> iterator() {
+		final Iterator<Points> it = series.values().iterator();
+		return new Iterator<Measure>() {
+			private Points current;
+			private boolean firstReturned;
+
+			@Override
+			public boolean hasNext() {
+				return (current != null && !firstReturned) || it.hasNext();
+			}
+
+			@Override
+			public Measure next() {
+				if (current != null && !firstReturned) {
+					firstReturned = true;
+					return current.latest;
+				}
+				if (!it.hasNext()) {
+					throw new NoSuchElementException();
+				}
+				current = it.next();
+				if (current.first != null) {
+					firstReturned = false;
+					return current.first;
+				}
+				firstReturned = true;
+				return current.latest;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static final class Points {
+		private Measure first;
+		private Measure latest;
+
+		int size() {
+			return first == null ? 1 : 2;
+		}
+	}
+}
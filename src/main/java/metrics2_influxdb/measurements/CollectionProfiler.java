@@ -0,0 +1,111 @@
+package metrics2_influxdb.measurements;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.yammer.metrics.core.MetricName;
+
+import metrics2_influxdb.reporting.ReportingMetrics;
+
+/**
+ * Samples the time spent collecting each metric (gauge evaluation, snapshot, measure building) and reports
+ * the most expensive ones as {@value #MEASUREMENT} measures, tagged with the full metric name: group, type, scope
+ * if any, and name, joined by dots.
+ * <br>
+ * Only one tick out of {@code sampleEvery} is profiled, the other ones pay a single counter increment.
+ */
+public class CollectionProfiler {
+	public static final String MEASUREMENT = ReportingMetrics.PREFIX + "collect-cost";
+
+	private static final Comparator<Cost> CHEAPEST_FIRST = new Comparator<Cost>() {
+		@Override
+		public int compare(Cost c1, Cost c2) {
+			return Long.compare(c1.nanos, c2.nanos);
+		}
+	};
+
+	private final int top;
+	private final int sampleEvery;
+	private final PriorityQueue<Cost> costs;
+	private int ticks;
+
+	/**
+	 * @param top the number of most expensive metrics to report
+	 * @param sampleEvery profile one tick out of the given number
+	 */
+	public CollectionProfiler(int top, int sampleEvery) {
+		if (top < 1) {
+			throw new IllegalArgumentException("given top must be greater than 0");
+		}
+		if (sampleEvery < 1) {
+			throw new IllegalArgumentException("given sampleEvery must be greater than 0");
+		}
+		this.top = top;
+		this.sampleEvery = sampleEvery;
+		this.costs = new PriorityQueue<>(top + 1, CHEAPEST_FIRST);
+	}
+
+	/**
+	 * Starts a new tick.
+	 * @return true if the tick is to be profiled
+	 */
+	public boolean sample() {
+		costs.clear();
+		return (ticks++ % sampleEvery) == 0;
+	}
+
+	/**
+	 * Records the cost of the given metric for the current tick.
+	 * @param name the profiled metric
+	 * @param nanos the time spent to collect it
+	 */
+	public void record(MetricName name, long nanos) {
+		if (costs.size() < top) {
+			costs.add(new Cost(name, nanos));
+		} else if (costs.peek().nanos < nanos) {
+			costs.poll();
+			costs.add(new Cost(name, nanos));
+		}
+	}
+
+	/**
+	 * @return the measures of the most expensive metrics of the tick, the most expensive first
+	 */
+	public List<Measure> measures(Map<String, String> baseTags, long timestamp) {
+		List<Cost> sorted = new ArrayList<>(costs);
+		Collections.sort(sorted, Collections.reverseOrder(CHEAPEST_FIRST));
+		costs.clear();
+
+		List<Measure> measures = new ArrayList<>(sorted.size());
+		for (Cost c : sorted) {
+			measures.add(new Measure(MEASUREMENT)
+					.timestamp(timestamp)
+					.addTag(baseTags)
+					.addTag("metric", fullName(c.name))
+					.addValue("nanos", c.nanos));
+		}
+		return measures;
+	}
+
+	private static String fullName(MetricName name) {
+		StringBuilder fullName = new StringBuilder(name.getGroup()).append('.').append(name.getType()).append('.');
+		if (name.hasScope()) {
+			fullName.append(name.getScope()).append('.');
+		}
+		return fullName.append(name.getName()).toString();
+	}
+
+	private static class Cost {
+		private final MetricName name;
+		private final long nanos;
+
+		Cost(MetricName name, long nanos) {
+			this.name = name;
+			this.nanos = nanos;
+		}
+	}
+}
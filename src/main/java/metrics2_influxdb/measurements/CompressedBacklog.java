@@ -0,0 +1,624 @@
+package metrics2_influxdb.measurements;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * A backlog of measures compressed series by series, to hold long outages of InfluxDB in memory.
+ * <br>
+ * As in Facebook's Gorilla, the timestamps of a series are encoded as deltas of deltas, and each numeric field as
+ * the XOR of its value with the previous one, which for values sampled at a regular period and changing slowly
+ * takes a few bits per point. Non numeric fields are held as they are.
+ * <br>
+ * Integer fields are XOR encoded as longs, float fields as the bits of their double value.
+ * <br>
+ * The measures are decoded back when iterated, all series merged in time order. As an {@link OutageBacklog}, it is
+ * drained in slices: each series keeps the position of its first unsent point, and its memory is released once all
+ * its points are sent.
+ * <br>
+ * The memory is bounded: once the given number of bytes is held, new measures are rejected.
+ */
+public class CompressedBacklog extends AbstractCollection<Measure> implements OutageBacklog {
+	private static final int SERIES_OVERHEAD_BYTES = 256;
+
+	private final long maxBytes;
+	private final Map<String, Series> series = new LinkedHashMap<String, Series>();
+	private int size;
+	private long bytes;
+	private long rejected;
+	private int nextIndex;
+	private List<Cursor> peeked;
+	private int peekedSize;
+
+	/**
+	 * @param maxBytes the maximum number of bytes held, approximately
+	 */
+	public CompressedBacklog(long maxBytes) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	@Override
+	public boolean add(Measure m) {
+		if (bytes >= maxBytes) {
+			rejected++;
+			return false;
+		}
+		String key = m.getSeriesKey();
+		Series s = series.get(key);
+		long before;
+		if (s == null) {
+			s = new Series(nextIndex++, m);
+			series.put(key, s);
+			bytes += SERIES_OVERHEAD_BYTES;
+			before = 0;
+		} else {
+			before = s.bytes();
+		}
+		s.add(m);
+		bytes += s.bytes() - before;
+		size++;
+		return true;
+	}
+
+	/**
+	 * @return the number of measures held
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the approximate number of bytes held
+	 */
+	public long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the number of measures rejected since the creation of the backlog
+	 */
+	public long rejected() {
+		return rejected;
+	}
+
+	@Override
+	public void clear() {
+		series.clear();
+		size = 0;
+		bytes = 0;
+		peeked = null;
+	}
+
+	@Override
+	public List<Measure> peek(int max) {
+		PriorityQueue<Cursor> cursors = unsentCursors();
+		peeked = new ArrayList<Cursor>(cursors);
+		List<Measure> measures = new ArrayList<Measure>(Math.min(max, size));
+		for (Iterator<Measure> it = merge(cursors); it.hasNext() && measures.size() < max;) {
+			measures.add(it.next());
+		}
+		peekedSize = measures.size();
+		return measures;
+	}
+
+	@Override
+	public void removePeeked() {
+		if (peeked == null) {
+			return;
+		}
+		for (Cursor c : peeked) {
+			Series s = c.series;
+			s.unsent = c;
+			if (!c.hasNext()) {
+				// all the points of the series have been sent
+				series.remove(s.key);
+				bytes -= s.bytes() + SERIES_OVERHEAD_BYTES;
+			}
+		}
+		size -= peekedSize;
+		peeked = null;
+	}
+
+	/**
+	 * @return the measures held, decoded, in time order
+	 */
+	@Override
+	public Iterator<Measure> iterator() {
+		return merge(unsentCursors());
+	}
+
+	/**
+	 * @return copies of the cursors at the first unsent point of each series having some
+	 */
+	private PriorityQueue<Cursor> unsentCursors() {
+		PriorityQueue<Cursor> cursors = new PriorityQueue<Cursor>(Math.max(1, series.size()));
+		for (Series s : series.values()) {
+			if (s.unsent.hasNext()) {
+				cursors.add(s.unsent.copy());
+			}
+		}
+		return cursors;
+	}
+
+	private static Iterator<Measure> merge(final PriorityQueue<Cursor> cursors) {
+		return new Iterator<Measure>() {
+			@Override
+			public boolean hasNext() {
+				return !cursors.isEmpty();
+			}
+
+			@Override
+			public Measure next() {
+				Cursor c = cursors.poll();
+				if (c == null) {
+					throw new NoSuchElementException();
+				}
+				Measure m = c.next();
+				if (c.hasNext()) {
+					cursors.add(c);
+				}
+				return m;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	private static final class Series {
+		private final int index;
+		private final String key;
+		private final String name;
+		private final Map<String, String> tags;
+		private final String type;
+		private final BitBuffer timestamps = new BitBuffer();
+		private final List<Field> fields = new ArrayList<Field>();
+		private final Map<String, Field> fieldsByName = new HashMap<String, Field>();
+		private int points;
+		private long lastTimestamp;
+		private long lastDelta;
+		// reads the points from the first one not sent
+		private Cursor unsent;
+
+		Series(int index, Measure m) {
+			this.index = index;
+			this.key = m.getSeriesKey();
+			this.name = m.getName();
+			this.tags = new HashMap<String, String>(m.getTags());
+			this.type = m.getType();
+			this.unsent = new Cursor(this);
+		}
+
+		void add(Measure m) {
+			long timestamp = m.getTimestamp();
+			if (points == 0) {
+				timestamps.write(timestamp, 64);
+			} else {
+				long delta = timestamp - lastTimestamp;
+				writeDeltaOfDelta(delta - lastDelta);
+				lastDelta = delta;
+			}
+			lastTimestamp = timestamp;
+
+			for (Map.Entry<String, String> value : m.getValues().entrySet()) {
+				Field field = fieldsByName.get(value.getKey());
+				if (field == null) {
+					field = new Field(value.getKey(), value.getValue(), points);
+					fields.add(field);
+					fieldsByName.put(field.name, field);
+				}
+				field.add(value.getValue(), points);
+			}
+			points++;
+			for (Field field : fields) {
+				field.complete(points);
+			}
+		}
+
+		private void writeDeltaOfDelta(long dod) {
+			if (dod == 0) {
+				timestamps.write(0, 1);
+			} else if (dod >= -64 && dod <= 63) {
+				timestamps.write(0x2, 2);
+				timestamps.write(dod, 7);
+			} else if (dod >= -256 && dod <= 255) {
+				timestamps.write(0x6, 3);
+				timestamps.write(dod, 9);
+			} else if (dod >= -2048 && dod <= 2047) {
+				timestamps.write(0xE, 4);
+				timestamps.write(dod, 12);
+			} else {
+				timestamps.write(0xF, 4);
+				timestamps.write(dod, 64);
+			}
+		}
+
+		private static long readDeltaOfDelta(BitBuffer.Reader in) {
+			if (in.read(1) == 0) {
+				return 0;
+			}
+			if (in.read(1) == 0) {
+				return in.readSigned(7);
+			}
+			if (in.read(1) == 0) {
+				return in.readSigned(9);
+			}
+			if (in.read(1) == 0) {
+				return in.readSigned(12);
+			}
+			return in.read(64);
+		}
+
+		long bytes() {
+			long bytes = timestamps.bytes();
+			for (Field field : fields) {
+				bytes += field.bytes();
+			}
+			return bytes;
+		}
+	}
+
+	/**
+	 * The values of a field of a series: a presence bit per point, then the value, XOR encoded for numeric fields.
+	 */
+	private static final class Field {
+		private final String name;
+		private final boolean numeric;
+		private final boolean integer;
+		private final BitBuffer bits = new BitBuffer();
+		private final List<String> raw;
+		private long rawBytes;
+		private int points;
+		private boolean hasPrevious;
+		private long previous;
+		private int previousLeading = Integer.MAX_VALUE;
+		private int previousTrailing;
+
+		Field(String name, String sample, int missingPoints) {
+			this.name = name;
+			this.integer = parseInteger(sample) != null;
+			this.numeric = integer || parseDouble(sample) != null;
+			this.raw = numeric ? null : new ArrayList<String>();
+			complete(missingPoints);
+		}
+
+		void add(String value, int point) {
+			Long bitsOfValue = numeric ? (integer ? parseInteger(value) : toBits(parseDouble(value))) : null;
+			if (numeric && bitsOfValue == null) {
+				// a value not matching the type of the field is not held
+				return;
+			}
+			bits.write(1, 1);
+			if (numeric) {
+				writeValue(bitsOfValue);
+			} else {
+				raw.add(value);
+				rawBytes += 40 + 2 * value.length();
+			}
+			points = point + 1;
+		}
+
+		/**
+		 * Marks the field as absent of the points up to the given one.
+		 */
+		void complete(int upTo) {
+			while (points < upTo) {
+				bits.write(0, 1);
+				if (!numeric) {
+					raw.add(null);
+					rawBytes += 4;
+				}
+				points++;
+			}
+		}
+
+		private void writeValue(long value) {
+			if (!hasPrevious) {
+				bits.write(value, 64);
+				hasPrevious = true;
+				previous = value;
+				return;
+			}
+			long xor = value ^ previous;
+			previous = value;
+			if (xor == 0) {
+				bits.write(0, 1);
+				return;
+			}
+			bits.write(1, 1);
+			int leading = Math.min((1 << leadingBits()) - 1, Long.numberOfLeadingZeros(xor));
+			int trailing = Long.numberOfTrailingZeros(xor);
+			if (previousLeading != Integer.MAX_VALUE && leading >= previousLeading && trailing >= previousTrailing) {
+				bits.write(0, 1);
+				bits.write(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+			} else {
+				int meaningful = 64 - leading - trailing;
+				bits.write(1, 1);
+				bits.write(leading, leadingBits());
+				bits.write(meaningful - 1, 6);
+				bits.write(xor >>> trailing, meaningful);
+				previousLeading = leading;
+				previousTrailing = trailing;
+			}
+		}
+
+		/**
+		 * @return the number of bits of the count of leading zeros, small integers having more than 31
+		 */
+		int leadingBits() {
+			return integer ? 6 : 5;
+		}
+
+		long bytes() {
+			return bits.bytes() + rawBytes;
+		}
+
+		FieldReader reader() {
+			return new FieldReader(this);
+		}
+
+		private static Long parseInteger(String value) {
+			if (!value.endsWith("i")) {
+				return null;
+			}
+			try {
+				return Long.valueOf(value.substring(0, value.length() - 1));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		private static Double parseDouble(String value) {
+			if (value.startsWith("\"") || "true".equals(value) || "false".equals(value)) {
+				return null;
+			}
+			try {
+				return Double.valueOf(value);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		private static Long toBits(Double value) {
+			return (value == null) ? null : Long.valueOf(Double.doubleToRawLongBits(value));
+		}
+	}
+
+	private static final class FieldReader {
+		private final Field field;
+		private final BitBuffer.Reader in;
+		private int point;
+		private boolean hasPrevious;
+		private long previous;
+		private int leading;
+		private int trailing;
+
+		FieldReader(Field field) {
+			this.field = field;
+			this.in = field.bits.reader();
+		}
+
+		private FieldReader(FieldReader other) {
+			this.field = other.field;
+			this.in = other.in.copy();
+			this.point = other.point;
+			this.hasPrevious = other.hasPrevious;
+			this.previous = other.previous;
+			this.leading = other.leading;
+			this.trailing = other.trailing;
+		}
+
+		FieldReader copy() {
+			return new FieldReader(this);
+		}
+
+		/**
+		 * @return the value of the field for the next point, null if absent
+		 */
+		String next() {
+			int current = point++;
+			if (in.read(1) == 0) {
+				return null;
+			}
+			if (!field.numeric) {
+				return field.raw.get(current);
+			}
+			long value = readValue();
+			return field.integer ? value + "i" : "" + Double.longBitsToDouble(value);
+		}
+
+		private long readValue() {
+			if (!hasPrevious) {
+				hasPrevious = true;
+				previous = in.read(64);
+				return previous;
+			}
+			if (in.read(1) == 0) {
+				return previous;
+			}
+			if (in.read(1) == 1) {
+				leading = (int) in.read(field.leadingBits());
+				int meaningful = (int) in.read(6) + 1;
+				trailing = 64 - leading - meaningful;
+			}
+			long xor = in.read(64 - leading - trailing) << trailing;
+			previous ^= xor;
+			return previous;
+		}
+	}
+
+	/**
+	 * Reads the points of a series, including the points added after its creation.
+	 */
+	private static final class Cursor implements Comparable<Cursor> {
+		private final Series series;
+		private final BitBuffer.Reader timestamps;
+		private FieldReader[] fields;
+		private int point;
+		private boolean decoded;
+		private long timestamp;
+		private long delta;
+
+		Cursor(Series series) {
+			this.series = series;
+			this.timestamps = series.timestamps.reader();
+			this.fields = new FieldReader[0];
+		}
+
+		private Cursor(Cursor other) {
+			this.series = other.series;
+			this.timestamps = other.timestamps.copy();
+			this.fields = new FieldReader[other.fields.length];
+			for (int i = 0; i < fields.length; i++) {
+				fields[i] = other.fields[i].copy();
+			}
+			this.point = other.point;
+			this.decoded = other.decoded;
+			this.timestamp = other.timestamp;
+			this.delta = other.delta;
+		}
+
+		Cursor copy() {
+			return new Cursor(this);
+		}
+
+		boolean hasNext() {
+			return point < series.points;
+		}
+
+		/**
+		 * @return the timestamp of the next point
+		 */
+		long timestamp() {
+			if (!decoded) {
+				if (point == 0) {
+					timestamp = timestamps.read(64);
+				} else {
+					delta += Series.readDeltaOfDelta(timestamps);
+					timestamp += delta;
+				}
+				decoded = true;
+			}
+			return timestamp;
+		}
+
+		Measure next() {
+			long pointTimestamp = timestamp();
+			if (fields.length < series.fields.size()) {
+				// fields added since, absent of the points already read
+				int known = fields.length;
+				fields = Arrays.copyOf(fields, series.fields.size());
+				for (int i = known; i < fields.length; i++) {
+					fields[i] = series.fields.get(i).reader();
+					for (int skipped = 0; skipped < point; skipped++) {
+						fields[i].next();
+					}
+				}
+			}
+			Map<String, String> values = new HashMap<String, String>();
+			for (FieldReader field : fields) {
+				String value = field.next();
+				if (value != null) {
+					values.put(field.field.name, value);
+				}
+			}
+			point++;
+			decoded = false;
+			return new Measure(series.name, series.tags, values, pointTimestamp).type(series.type);
+		}
+
+		@Override
+		public int compareTo(Cursor other) {
+			long t = timestamp();
+			long otherTimestamp = other.timestamp();
+			if (t != otherTimestamp) {
+				return t < otherTimestamp ? -1 : 1;
+			}
+			return Integer.compare(series.index, other.series.index);
+		}
+	}
+
+	/**
+	 * A growable buffer of bits, written and read from the most significant bit of each word.
+	 */
+	private static final class BitBuffer {
+		private long[] words = new long[2];
+		private long length;
+
+		void write(long value, int bits) {
+			if (bits == 0) {
+				return;
+			}
+			if (bits < 64) {
+				value &= (1L << bits) - 1;
+			}
+			int word = (int) (length >>> 6);
+			int used = (int) (length & 63);
+			if (word + 1 >= words.length) {
+				words = Arrays.copyOf(words, words.length * 2);
+			}
+			int free = 64 - used;
+			if (bits <= free) {
+				words[word] |= value << (free - bits);
+			} else {
+				words[word] |= value >>> (bits - free);
+				words[word + 1] |= value << (64 - (bits - free));
+			}
+			length += bits;
+		}
+
+		long bytes() {
+			return words.length * 8L;
+		}
+
+		Reader reader() {
+			return new Reader();
+		}
+
+		final class Reader {
+			private long position;
+
+			Reader copy() {
+				Reader copy = new Reader();
+				copy.position = position;
+				return copy;
+			}
+
+			long read(int bits) {
+				if (bits == 0) {
+					return 0;
+				}
+				int word = (int) (position >>> 6);
+				int used = (int) (position & 63);
+				int available = 64 - used;
+				long value;
+				if (bits <= available) {
+					value = words[word] >>> (available - bits);
+				} else {
+					value = (words[word] << (bits - available)) | (words[word + 1] >>> (64 - (bits - available)));
+				}
+				position += bits;
+				return bits == 64 ? value : value & ((1L << bits) - 1);
+			}
+
+			long readSigned(int bits) {
+				long value = read(bits);
+				return (value << (64 - bits)) >> (64 - bits);
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package metrics2_influxdb.measurements;
+
+import com.yammer.metrics.core.MetricName;
+
+/**
+ * Adds to measures the change of a count since the previous tick, as a {@code delta} field and a
+ * {@code per-second} rate field, sparing InfluxDB the {@code derivative()} of the count at query time.
+ * <br>
+ * The previous count and timestamp of each metric are kept in an open addressing table of primitive arrays.
+ * <ul>
+ * <li>the counts of meters, timers and histograms only grow: when one decreases the metric has been reset, and the
+ * whole count is the delta</li>
+ * <li>counters can be decremented, their delta is signed</li>
+ * <li>a metric first seen during the first period of the reporter has no previous count, it gets no delta; a metric
+ * first seen later has been registered since the previous tick, its whole count is the delta</li>
+ * </ul>
+ * Metrics which are not seen for a few periods, ie removed from the registry, are evicted from the table.
+ * Must be used by a single reporting thread.
+ */
+public class DeltaTracker {
+	public static final String DELTA = "delta";
+	public static final String RATE = "per-second";
+
+	private static final int EVICTION_PERIODS = 16;
+	private static final int RETENTION_PERIODS = 4;
+
+	private MetricName[] keys;
+	private long[] counts;
+	private long[] timestamps;
+	private int size;
+	private long timestamp;
+	private long periodInMillis;
+	private long firstTimestamp = -1;
+	private long lastEviction;
+
+	public DeltaTracker() {
+		allocate(64);
+	}
+
+	/**
+	 * Starts a new tick.
+	 * @param timestamp the timestamp of the tick
+	 * @param periodInMillis the reporting period, 0 if unknown
+	 */
+	public void tick(long timestamp, long periodInMillis) {
+		this.timestamp = timestamp;
+		this.periodInMillis = periodInMillis;
+		if (firstTimestamp < 0) {
+			firstTimestamp = timestamp;
+			lastEviction = timestamp;
+		}
+		if (periodInMillis > 0 && timestamp - lastEviction >= EVICTION_PERIODS * periodInMillis) {
+			evictOlderThan(timestamp - RETENTION_PERIODS * periodInMillis);
+			lastEviction = timestamp;
+		}
+	}
+
+	/**
+	 * Adds the delta and rate fields to the given measure, and remembers the count for the next tick.
+	 * @param monotonic true if the count can only grow, a decrease meaning a reset
+	 */
+	public Measure addDeltas(Measure measure, MetricName name, long count, boolean monotonic) {
+		int slot = slotOf(name);
+		if (keys[slot] == null) {
+			boolean registeredSinceLastTick = periodInMillis > 0 && timestamp - firstTimestamp >= periodInMillis;
+			if (registeredSinceLastTick) {
+				measure.addValue(DELTA, count);
+				measure.addValue(RATE, count * 1000.0 / periodInMillis);
+			}
+			insert(slot, name, count);
+			return measure;
+		}
+
+		long delta = count - counts[slot];
+		if (monotonic && delta < 0) {
+			delta = count;
+		}
+		long elapsed = timestamp - timestamps[slot];
+		measure.addValue(DELTA, delta);
+		if (elapsed > 0) {
+			measure.addValue(RATE, delta * 1000.0 / elapsed);
+		}
+		counts[slot] = count;
+		timestamps[slot] = timestamp;
+		return measure;
+	}
+
+	/**
+	 * @return the number of tracked metrics
+	 */
+	public int size() {
+		return size;
+	}
+
+	private int slotOf(MetricName name) {
+		int mask = keys.length - 1;
+		int h = name.hashCode() * 0x9e3779b9;
+		int slot = (h ^ (h >>> 16)) & mask;
+		while (keys[slot] != null && !keys[slot].equals(name)) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void insert(int slot, MetricName name, long count) {
+		keys[slot] = name;
+		counts[slot] = count;
+		timestamps[slot] = timestamp;
+		if (++size * 2 > keys.length) {
+			rehash(keys.length * 2, Long.MIN_VALUE);
+		}
+	}
+
+	private void evictOlderThan(long oldest) {
+		rehash(keys.length, oldest);
+	}
+
+	private void rehash(int capacity, long oldest) {
+		MetricName[] oldKeys = keys;
+		long[] oldCounts = counts;
+		long[] oldTimestamps = timestamps;
+		allocate(capacity);
+		for (int i = 0; i < oldKeys.length; i++) {
+			if (oldKeys[i] != null && oldTimestamps[i] >= oldest) {
+				int slot = slotOf(oldKeys[i]);
+				keys[slot] = oldKeys[i];
+				counts[slot] = oldCounts[i];
+				timestamps[slot] = oldTimestamps[i];
+				size++;
+			}
+		}
+	}
+
+	private void allocate(int capacity) {
+		keys = new MetricName[capacity];
+		counts = new long[capacity];
+		timestamps = new long[capacity];
+		size = 0;
+	}
+}
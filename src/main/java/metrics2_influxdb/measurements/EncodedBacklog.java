@@ -0,0 +1,221 @@
+package metrics2_influxdb.measurements;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.zip.GZIPOutputStream;
+
+import com.yammer.metrics.core.Gauge;
+
+import metrics2_influxdb.misc.BufferPool;
+import metrics2_influxdb.reporting.ReportingMetrics;
+
+/**
+ * A backlog of already encoded batches of measures, copied into the buffers of a {@link BufferPool} and optionally
+ * gzip compressed, so that the memory held while InfluxDB cannot be reached is bounded in bytes, and retries do not
+ * serialize the measures again.
+ * <br>
+ * When the pool is exhausted the oldest batches are evicted to make room for the new one.
+ */
+public class EncodedBacklog {
+	private final BufferPool pool;
+	private final boolean compressed;
+	private final ArrayDeque<Chunk> chunks = new ArrayDeque<Chunk>();
+	private long bytes;
+	private int points;
+
+	/**
+	 * @param pool the buffers holding the encoded batches
+	 * @param compressed true to hold and send the batches gzip compressed
+	 */
+	public EncodedBacklog(BufferPool pool, boolean compressed) {
+		this.pool = pool;
+		this.compressed = compressed;
+	}
+
+	/**
+	 * Registers the backlog and buffer pool gauges.
+	 * @param metrics the instrumentation to register the gauges into
+	 */
+	public void setReportingMetrics(ReportingMetrics metrics) {
+		metrics.gauge("backlog-bytes", new Gauge<Long>() {
+			@Override
+			public Long value() {
+				return bytes;
+			}
+		});
+		metrics.gauge("buffer-pool-allocated-bytes", new Gauge<Long>() {
+			@Override
+			public Long value() {
+				return pool.allocatedBytes();
+			}
+		});
+		metrics.gauge("buffer-pool-used-bytes", new Gauge<Long>() {
+			@Override
+			public Long value() {
+				return pool.usedBytes();
+			}
+		});
+	}
+
+	/**
+	 * Appends an encoded batch.
+	 * @param payload the encoded measures
+	 * @param batchPoints the number of measures encoded in the payload
+	 * @return the number of measures evicted or not held to make room for the batch
+	 */
+	public int add(byte[] payload, int batchPoints) {
+		byte[] content = compressed ? gzip(payload) : payload;
+		int needed = (content.length + pool.getBufferSize() - 1) / pool.getBufferSize();
+
+		int evicted = 0;
+		while (pool.available() < needed && !chunks.isEmpty()) {
+			evicted += chunks.peekFirst().points;
+			remove();
+		}
+		if (pool.available() < needed) {
+			return evicted + batchPoints;
+		}
+
+		byte[][] buffers = new byte[needed][];
+		for (int i = 0; i < needed; i++) {
+			buffers[i] = pool.acquire();
+			int offset = i * pool.getBufferSize();
+			System.arraycopy(content, offset, buffers[i], 0, Math.min(pool.getBufferSize(), content.length - offset));
+		}
+		chunks.addLast(new Chunk(buffers, content.length, batchPoints, compressed));
+		bytes += content.length;
+		points += batchPoints;
+		return evicted;
+	}
+
+	/**
+	 * @return the oldest batch, null if empty
+	 */
+	public Chunk peek() {
+		return chunks.peekFirst();
+	}
+
+	/**
+	 * Removes the oldest batch, giving its buffers back to the pool.
+	 */
+	public void remove() {
+		Chunk chunk = chunks.pollFirst();
+		if (chunk != null) {
+			for (byte[] buffer : chunk.buffers) {
+				pool.release(buffer);
+			}
+			bytes -= chunk.length;
+			points -= chunk.points;
+		}
+	}
+
+	public void clear() {
+		while (!chunks.isEmpty()) {
+			remove();
+		}
+	}
+
+	public boolean isEmpty() {
+		return chunks.isEmpty();
+	}
+
+	/**
+	 * @return the number of bytes held
+	 */
+	public long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * @return the number of measures held
+	 */
+	public int points() {
+		return points;
+	}
+
+	private static byte[] gzip(byte[] payload) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(payload.length / 4 + 64);
+			GZIPOutputStream gzip = new GZIPOutputStream(out);
+			gzip.write(payload);
+			gzip.close();
+			return out.toByteArray();
+		} catch (IOException e) {
+			// cannot happen writing in memory
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * An encoded batch of measures.
+	 */
+	public static final class Chunk {
+		private final byte[][] buffers;
+		private final int length;
+		private final int points;
+		private final boolean compressed;
+
+		private Chunk(byte[][] buffers, int length, int points, boolean compressed) {
+			this.buffers = buffers;
+			this.length = length;
+			this.points = points;
+			this.compressed = compressed;
+		}
+
+		/**
+		 * @param payload the encoded measures
+		 * @param points the number of measures encoded in the payload
+		 * @return a batch wrapping the given payload, not held by a backlog
+		 */
+		public static Chunk wrap(byte[] payload, int points) {
+			return new Chunk(new byte[][] { payload }, payload.length, points, false);
+		}
+
+		public void writeTo(OutputStream out) throws IOException {
+			int remaining = length;
+			for (byte[] buffer : buffers) {
+				int n = Math.min(buffer.length, remaining);
+				out.write(buffer, 0, n);
+				remaining -= n;
+			}
+		}
+
+		/**
+		 * @return the buffers of the batch, to be written without copying them with a gathering write
+		 */
+		public ByteBuffer[] toByteBuffers() {
+			ByteBuffer[] byteBuffers = new ByteBuffer[buffers.length];
+			int remaining = length;
+			for (int i = 0; i < buffers.length; i++) {
+				int n = Math.min(buffers[i].length, remaining);
+				byteBuffers[i] = ByteBuffer.wrap(buffers[i], 0, n);
+				remaining -= n;
+			}
+			return byteBuffers;
+		}
+
+		/**
+		 * @return the number of bytes of the batch
+		 */
+		public int length() {
+			return length;
+		}
+
+		/**
+		 * @return the number of measures of the batch
+		 */
+		public int points() {
+			return points;
+		}
+
+		/**
+		 * @return true if the batch is gzip compressed
+		 */
+		public boolean isCompressed() {
+			return compressed;
+		}
+	}
+}
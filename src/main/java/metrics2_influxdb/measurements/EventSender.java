@@ -0,0 +1,367 @@
+package metrics2_influxdb.measurements;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.core.Gauge;
+
+import metrics2_influxdb.reporting.ReportingMetrics;
+import metrics2_influxdb.reporting.TickDeadline;
+
+/**
+ * A thread safe {@link Sender} for application events, written directly by any thread instead of being polled.
+ * <br>
+ * Producers append their measures, without locking, to the lock-free queue of the stripe of their thread; a
+ * background thread drains all the stripes into the wrapped sender once a stripe holds a batch, or once the linger
+ * delay elapsed since the previous drain. The wrapped sender is only used by that thread.
+ * <br>
+ * Each stripe holds at most a given number of measures, in one queue per {@link Measure.Priority}; over it, a held
+ * measure of lower priority is dropped to make room for the new one, else the {@link BackpressurePolicy} of its
+ * priority applies, {@link BackpressurePolicy#dropNewest()} by default. Dropped measures are counted by the
+ * {@code dropped} reporting metric.
+ */
+public class EventSender extends AbstractSender {
+	private final static Logger LOGGER = LoggerFactory.getLogger(EventSender.class);
+	// one counter per 64 bytes cache line
+	private static final int PADDING = 16;
+	private static final AtomicLong THREADS = new AtomicLong();
+	private static final int PRIORITIES = Measure.Priority.values().length;
+	private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	private final Sender sender;
+	private final int batchSize;
+	private final int stripeCapacity;
+	private final long lingerInNanos;
+	// the queue of a priority in a stripe is at stripe * PRIORITIES + priority
+	private final ConcurrentLinkedQueue<Measure>[] stripes;
+	private final BackpressurePolicy[] policies = new BackpressurePolicy[PRIORITIES];
+	private final AtomicIntegerArray sizes;
+	private final int mask;
+	private final Thread flusher;
+	private final AtomicLong flushRequests = new AtomicLong();
+	private final Object flushed = new Object();
+	private volatile long flushesDone;
+	private volatile boolean closed;
+
+	/**
+	 * @param sender the sender of the batches, used by the flusher thread only
+	 * @param batchSize the number of measures of a stripe triggering a drain
+	 * @param stripeCapacity the maximum number of measures held by a stripe
+	 * @param linger the maximum delay between two drains
+	 * @param unit the unit of the linger delay
+	 */
+	@SuppressWarnings("unchecked")
+	public EventSender(Sender sender, int batchSize, int stripeCapacity, long linger, TimeUnit unit) {
+		if (batchSize < 1 || stripeCapacity < batchSize) {
+			throw new IllegalArgumentException("batchSize must be positive and stripeCapacity at least batchSize: " + batchSize + ", " + stripeCapacity);
+		}
+		this.sender = sender;
+		this.batchSize = batchSize;
+		this.stripeCapacity = stripeCapacity;
+		this.lingerInNanos = unit.toNanos(linger);
+
+		int size = Integer.highestOneBit(Math.max(1, Runtime.getRuntime().availableProcessors() - 1)) << 1;
+		this.mask = size - 1;
+		this.stripes = (ConcurrentLinkedQueue<Measure>[]) new ConcurrentLinkedQueue<?>[size * PRIORITIES];
+		for (int i = 0; i < stripes.length; i++) {
+			stripes[i] = new ConcurrentLinkedQueue<Measure>();
+		}
+		this.sizes = new AtomicIntegerArray(size * PADDING);
+		Arrays.fill(policies, BackpressurePolicy.dropNewest());
+
+		flusher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				flushLoop();
+			}
+		}, "metrics-event-sender-" + THREADS.incrementAndGet());
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+
+	@Override
+	public void setReportingMetrics(ReportingMetrics metrics) {
+		super.setReportingMetrics(metrics);
+		metrics.gauge("pending-events", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return pending();
+			}
+		});
+	}
+
+	/**
+	 * Sets what is done with a new measure when the stripe of its producer is full, whatever its priority.
+	 * @param policy the policy to apply
+	 */
+	public void setBackpressurePolicy(BackpressurePolicy policy) {
+		for (Measure.Priority priority : Measure.Priority.values()) {
+			setBackpressurePolicy(priority, policy);
+		}
+	}
+
+	/**
+	 * Sets what is done with a new measure of the given priority when the stripe of its producer is full.
+	 * {@link BackpressurePolicy.Kind#SAMPLE} already thins the measures once the stripe is half full.
+	 * @param priority the priority of the measures the policy applies to
+	 * @param policy the policy to apply
+	 */
+	public void setBackpressurePolicy(Measure.Priority priority, BackpressurePolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("given BackpressurePolicy cannot be null");
+		}
+		policies[priority.ordinal()] = policy;
+	}
+
+	@Override
+	public void send(Measure m) {
+		if (m == null) {
+			return;
+		}
+		if (closed) {
+			metrics.dropped(1);
+			return;
+		}
+		int stripe = stripeOf(Thread.currentThread().getId());
+		int priority = m.getPriority().ordinal();
+		int size = sizes.incrementAndGet(stripe * PADDING);
+		if (size > stripeCapacity) {
+			sizes.decrementAndGet(stripe * PADDING);
+			if (!makeRoom(stripe, priority)) {
+				return;
+			}
+		} else if (size > stripeCapacity / 2 && policies[priority].getKind() == BackpressurePolicy.Kind.SAMPLE && !policies[priority].sampled()) {
+			sizes.decrementAndGet(stripe * PADDING);
+			metrics.inc("backpressure-sampled-out", 1);
+			metrics.dropped(1);
+			return;
+		}
+		ConcurrentLinkedQueue<Measure> queue = stripes[stripe * PRIORITIES + priority];
+		queue.offer(m);
+		if (closed && queue.remove(m)) {
+			// closed meanwhile, the last drain may have missed the measure
+			sizes.decrementAndGet(stripe * PADDING);
+			metrics.dropped(1);
+			return;
+		}
+		if (size == batchSize) {
+			LockSupport.unpark(flusher);
+		}
+	}
+
+	/**
+	 * Applies the backpressure policy of a new measure, its stripe being full.
+	 * @return true if the new measure is to be queued, its room in the stripe being taken
+	 */
+	private boolean makeRoom(int stripe, int priority) {
+		// the room of an evicted measure is taken over by the new one
+		for (int lower = 0; lower < priority; lower++) {
+			if (stripes[stripe * PRIORITIES + lower].poll() != null) {
+				metrics.inc("backpressure-shed", 1);
+				metrics.dropped(1);
+				return true;
+			}
+		}
+		BackpressurePolicy policy = policies[priority];
+		switch (policy.getKind()) {
+		case DROP_NEWEST:
+			metrics.inc("backpressure-dropped-newest", 1);
+			metrics.dropped(1);
+			return false;
+		case SAMPLE:
+			if (!policy.sampled()) {
+				metrics.inc("backpressure-sampled-out", 1);
+				metrics.dropped(1);
+				return false;
+			}
+			break;
+		case BLOCK:
+			if (awaitRoom(stripe, System.nanoTime() + policy.getTimeoutInNanos())) {
+				return true;
+			}
+			metrics.inc("backpressure-block-timeouts", 1);
+			break;
+		default:
+			break;
+		}
+		if (stripes[stripe * PRIORITIES + priority].poll() != null) {
+			metrics.inc("backpressure-dropped-oldest", 1);
+			metrics.dropped(1);
+			return true;
+		}
+		// only measures of higher priority are held
+		metrics.inc("backpressure-dropped-newest", 1);
+		metrics.dropped(1);
+		return false;
+	}
+
+	/**
+	 * Waits for the flusher to drain the given stripe, until the deadline.
+	 * @return true if room has been taken in the stripe
+	 */
+	private boolean awaitRoom(int stripe, long deadline) {
+		metrics.inc("backpressure-blocked", 1);
+		LockSupport.unpark(flusher);
+		while (!closed && System.nanoTime() < deadline) {
+			LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+			if (sizes.incrementAndGet(stripe * PADDING) <= stripeCapacity) {
+				return true;
+			}
+			sizes.decrementAndGet(stripe * PADDING);
+			if (Thread.interrupted()) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void send(Collection<Measure> measures) {
+		if (measures == null) {
+			return;
+		}
+		for (Measure m : measures) {
+			send(m);
+		}
+	}
+
+	/**
+	 * @return the number of measures held, not yet handed to the wrapped sender
+	 */
+	public int pending() {
+		int pending = 0;
+		for (int i = 0; i <= mask; i++) {
+			pending += sizes.get(i * PADDING);
+		}
+		return pending;
+	}
+
+	/**
+	 * Has the measures sent so far drained into the wrapped sender and flushed, waiting for it at most the linger
+	 * delay after the flusher got to it, and no longer than the {@link TickDeadline} of the calling thread.
+	 */
+	@Override
+	public void flush() {
+		long request = flushRequests.incrementAndGet();
+		LockSupport.unpark(flusher);
+		long deadline = System.nanoTime() + TickDeadline.remainingNanos(2 * lingerInNanos + TimeUnit.SECONDS.toNanos(1));
+		synchronized (flushed) {
+			while (flushesDone < request && !closed) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return;
+				}
+				try {
+					TimeUnit.NANOSECONDS.timedWait(flushed, remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops the flusher thread, after a last drain of the measures held, and closes the wrapped sender.
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		LockSupport.unpark(flusher);
+		try {
+			flusher.join(TimeUnit.NANOSECONDS.toMillis(lingerInNanos) + TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sender.close();
+	}
+
+	private int stripeOf(long threadId) {
+		// thread ids are sequential, spread them over the stripes
+		long h = threadId * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+
+	private void flushLoop() {
+		List<Measure> batch = new ArrayList<Measure>();
+		long nextLinger = System.nanoTime() + lingerInNanos;
+		while (true) {
+			boolean stopping = closed;
+			long requested = flushRequests.get();
+			long now = System.nanoTime();
+			if (stopping || requested > flushesDone || now >= nextLinger || hasFullStripe()) {
+				drainAndSend(batch, stopping || requested > flushesDone);
+				nextLinger = System.nanoTime() + lingerInNanos;
+				if (requested > flushesDone) {
+					synchronized (flushed) {
+						flushesDone = requested;
+						flushed.notifyAll();
+					}
+				}
+				if (stopping) {
+					synchronized (flushed) {
+						flushed.notifyAll();
+					}
+					return;
+				}
+			} else {
+				LockSupport.parkNanos(this, nextLinger - now);
+			}
+		}
+	}
+
+	private boolean hasFullStripe() {
+		for (int i = 0; i <= mask; i++) {
+			if (sizes.get(i * PADDING) >= batchSize) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param flushRequested true to flush the wrapped sender even if no measure has been drained
+	 */
+	private void drainAndSend(List<Measure> batch, boolean flushRequested) {
+		for (int i = 0; i <= mask; i++) {
+			Measure m;
+			int drained = 0;
+			for (int priority = PRIORITIES - 1; priority >= 0; priority--) {
+				ConcurrentLinkedQueue<Measure> queue = stripes[i * PRIORITIES + priority];
+				while ((m = queue.poll()) != null) {
+					batch.add(m);
+					drained++;
+				}
+			}
+			if (drained > 0) {
+				sizes.addAndGet(i * PADDING, -drained);
+			}
+		}
+		if (batch.isEmpty() && !flushRequested) {
+			// nothing to send, flushing would only post again what the wrapped sender held back
+			return;
+		}
+		try {
+			if (!batch.isEmpty()) {
+				sender.send(batch);
+			}
+			sender.flush();
+		} catch (RuntimeException e) {
+			LOGGER.warn("failed to send {} events", batch.size(), e);
+		} finally {
+			batch.clear();
+		}
+	}
+}
@@ -0,0 +1,289 @@
+package metrics2_influxdb.measurements;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.core.Gauge;
+
+import metrics2_influxdb.reporting.ReportingMetrics;
+
+/**
+ * A {@link Sender} writing the same measures to several destinations, for example to dual-write while migrating
+ * clusters.
+ * <br>
+ * The measures are encoded once, by the first destination, and the same encoded batch is handed to all the
+ * destinations; all of them must therefore support encoding, see {@link QueueableSender#isEncodingSupported()}, with the
+ * same serialization, as {@link HttpInlinerSender} does.
+ * <br>
+ * Each destination sends from its own thread and its own queue, bounded in bytes, evicting its oldest batches when
+ * full. After a number of consecutive failures its circuit opens: no send is attempted for a while, then a single
+ * one decides whether it closes again. A slow or unreachable destination thus never delays the others.
+ * <br>
+ * Each destination is instrumented by {@code <name>-sent}, {@code <name>-failed} and {@code <name>-dropped}
+ * counters, and {@code <name>-queued-bytes} and {@code <name>-circuit-open} gauges.
+ */
+public class FanOutSender extends AbstractSender {
+	private final static Logger LOGGER = LoggerFactory.getLogger(FanOutSender.class);
+	private static final AtomicLong THREADS = new AtomicLong();
+	private static final long FIRST_RETRY_DELAY_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final int batchSize;
+	private final long maxQueuedBytes;
+	private final List<Destination> destinations = new ArrayList<Destination>();
+	private final List<Measure> batch = new ArrayList<Measure>();
+	private volatile int failuresToOpen = 3;
+	private volatile long openInNanos = TimeUnit.SECONDS.toNanos(30);
+
+	/**
+	 * @param batchSize the number of measures triggering an encoding before the next flush
+	 * @param maxQueuedBytes the maximum number of encoded bytes held by each destination
+	 */
+	public FanOutSender(int batchSize, long maxQueuedBytes) {
+		if (batchSize < 1 || maxQueuedBytes < 1) {
+			throw new IllegalArgumentException("batchSize and maxQueuedBytes must be positive: " + batchSize + ", " + maxQueuedBytes);
+		}
+		this.batchSize = batchSize;
+		this.maxQueuedBytes = maxQueuedBytes;
+	}
+
+	/**
+	 * Adds a destination and starts its thread; the first destination added encodes the measures.
+	 * @param name the name of the destination, prefixing its reporting metrics
+	 * @param transport sends the encoded batches to the destination, used by the thread of the destination only
+	 * @throws IllegalArgumentException if the transport does not support encoding
+	 */
+	public void addDestination(String name, QueueableSender transport) {
+		if (!transport.isEncodingSupported()) {
+			throw new IllegalArgumentException(transport.getClass().getSimpleName() + " does not support encoding");
+		}
+		Destination destination = new Destination(name, transport);
+		destinations.add(destination);
+		registerGauges(destination);
+		destination.thread.start();
+	}
+
+	/**
+	 * @param failuresToOpen the number of consecutive failures opening the circuit of a destination, default to 3
+	 * @param openFor how long the circuit stays open before a send is attempted again, default to 30 seconds
+	 * @param unit the unit of openFor
+	 */
+	public void setCircuitBreaker(int failuresToOpen, long openFor, TimeUnit unit) {
+		if (failuresToOpen < 1) {
+			throw new IllegalArgumentException("failuresToOpen must be positive: " + failuresToOpen);
+		}
+		this.failuresToOpen = failuresToOpen;
+		this.openInNanos = unit.toNanos(openFor);
+	}
+
+	@Override
+	public void setReportingMetrics(ReportingMetrics metrics) {
+		super.setReportingMetrics(metrics);
+		for (Destination destination : destinations) {
+			registerGauges(destination);
+		}
+	}
+
+	private void registerGauges(final Destination destination) {
+		metrics.gauge(destination.name + "-queued-bytes", new Gauge<Long>() {
+			@Override
+			public Long value() {
+				return destination.queuedBytes();
+			}
+		});
+		metrics.gauge(destination.name + "-circuit-open", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return destination.isOpen() ? 1 : 0;
+			}
+		});
+	}
+
+	@Override
+	public void send(Measure m) {
+		if (m == null) {
+			return;
+		}
+		batch.add(m);
+		if (batch.size() >= batchSize) {
+			dispatch();
+		}
+	}
+
+	/**
+	 * Encodes the measures held and queues them for all the destinations, without waiting for them to be sent.
+	 */
+	@Override
+	public void flush() {
+		dispatch();
+	}
+
+	private void dispatch() {
+		if (batch.isEmpty() || destinations.isEmpty()) {
+			return;
+		}
+		EncodedBacklog.Chunk chunk;
+		try {
+			chunk = EncodedBacklog.Chunk.wrap(destinations.get(0).transport.encode(batch), batch.size());
+		} finally {
+			batch.clear();
+		}
+		for (Destination destination : destinations) {
+			destination.offer(chunk);
+		}
+	}
+
+	/**
+	 * Queues the measures held, lets each destination send its queue unless its circuit is open, waiting for it at
+	 * most a few seconds, then closes the transports.
+	 */
+	@Override
+	public void close() throws IOException {
+		dispatch();
+		for (Destination destination : destinations) {
+			destination.stop();
+		}
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		for (Destination destination : destinations) {
+			try {
+				TimeUnit.NANOSECONDS.timedJoin(destination.thread, Math.max(1, deadline - System.nanoTime()));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			destination.transport.close();
+		}
+	}
+
+	private final class Destination implements Runnable {
+		private final String name;
+		private final QueueableSender transport;
+		private final Thread thread;
+		private final ArrayDeque<EncodedBacklog.Chunk> queue = new ArrayDeque<EncodedBacklog.Chunk>();
+		private long queuedBytes;
+		private EncodedBacklog.Chunk sending;
+		private int consecutiveFailures;
+		private long openUntil;
+		private boolean stopping;
+
+		Destination(String name, QueueableSender transport) {
+			this.name = name;
+			this.transport = transport;
+			this.thread = new Thread(this, "metrics-fan-out-" + THREADS.incrementAndGet() + "-" + name);
+			thread.setDaemon(true);
+		}
+
+		synchronized void offer(EncodedBacklog.Chunk chunk) {
+			while (queuedBytes + chunk.length() > maxQueuedBytes && queue.size() > (sending == null ? 0 : 1)) {
+				// the chunk being sent is not evicted
+				EncodedBacklog.Chunk head = sending == null ? null : queue.pollFirst();
+				EncodedBacklog.Chunk evicted = queue.pollFirst();
+				if (head != null) {
+					queue.addFirst(head);
+				}
+				queuedBytes -= evicted.length();
+				dropped(evicted.points());
+			}
+			if (queuedBytes + chunk.length() > maxQueuedBytes) {
+				dropped(chunk.points());
+				return;
+			}
+			queue.addLast(chunk);
+			queuedBytes += chunk.length();
+			notifyAll();
+		}
+
+		private void dropped(int points) {
+			metrics.inc(name + "-dropped", points);
+			metrics.dropped(points);
+		}
+
+		synchronized long queuedBytes() {
+			return queuedBytes;
+		}
+
+		synchronized boolean isOpen() {
+			return consecutiveFailures >= failuresToOpen && System.nanoTime() < openUntil;
+		}
+
+		synchronized void stop() {
+			stopping = true;
+			notifyAll();
+		}
+
+		@Override
+		public void run() {
+			try {
+				EncodedBacklog.Chunk chunk;
+				while ((chunk = next()) != null) {
+					boolean sent;
+					try {
+						sent = transport.doSend(chunk);
+					} catch (RuntimeException e) {
+						LOGGER.warn("failed to send {} measures to {}", chunk.points(), name, e);
+						sent = false;
+					}
+					if (sent) {
+						metrics.inc(name + "-sent", chunk.points());
+					} else {
+						metrics.inc(name + "-failed", chunk.points());
+					}
+					completed(chunk, sent);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/**
+		 * @return the oldest chunk once the circuit allows to send it, null once stopping
+		 */
+		private synchronized EncodedBacklog.Chunk next() throws InterruptedException {
+			while (true) {
+				if (queue.isEmpty()) {
+					if (stopping) {
+						return null;
+					}
+					wait();
+					continue;
+				}
+				long delay = consecutiveFailures == 0 ? 0 : openUntil - System.nanoTime();
+				if (delay <= 0) {
+					sending = queue.peekFirst();
+					return sending;
+				}
+				if (stopping) {
+					// the circuit is open, give up the queue
+					return null;
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, delay);
+			}
+		}
+
+		private synchronized void completed(EncodedBacklog.Chunk chunk, boolean sent) {
+			sending = null;
+			if (sent) {
+				queue.pollFirst();
+				queuedBytes -= chunk.length();
+				consecutiveFailures = 0;
+				openUntil = 0;
+				return;
+			}
+			consecutiveFailures++;
+			if (consecutiveFailures >= failuresToOpen) {
+				if (consecutiveFailures == failuresToOpen) {
+					LOGGER.warn("{} consecutive failures sending to {}, not trying again before {}ms", consecutiveFailures, name, TimeUnit.NANOSECONDS.toMillis(openInNanos));
+				}
+				openUntil = System.nanoTime() + openInNanos;
+			} else {
+				// back off before retrying
+				openUntil = System.nanoTime() + Math.min(openInNanos, FIRST_RETRY_DELAY_IN_NANOS << (consecutiveFailures - 1));
+			}
+		}
+	}
+}
@@ -0,0 +1,204 @@
+package metrics2_influxdb.measurements;
+
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+
+import metrics2_influxdb.reporting.ReportingMetrics;
+
+/**
+ * Evaluates gauges in parallel on a small bounded pool, so that a slow {@link Gauge#value()} cannot delay the whole tick.
+ * <br>
+ * All the gauges of a tick are {@link #submit(MetricName, Gauge) submitted} first, then their values are
+ * {@link #value(MetricName, Gauge) awaited} one by one. A gauge which waited in the queue, or ran, for longer than the
+ * deadline is handled according to the {@link TimeoutPolicy}. A gauge still running from a previous tick is not submitted again.
+ * <br>
+ * Must be used by a single reporting thread.
+ */
+public class GaugeEvaluator implements Closeable {
+	private final static Logger LOGGER = LoggerFactory.getLogger(GaugeEvaluator.class);
+
+	/**
+	 * What to report for a gauge which did not give its value before the deadline.
+	 */
+	public enum TimeoutPolicy {
+		/** nothing is reported for the gauge */
+		SKIP,
+		/** the last value successfully read is reported, if any */
+		LAST_VALUE
+	}
+
+	private final ExecutorService pool;
+	private final long timeoutInNanos;
+	private final TimeoutPolicy policy;
+	private final Map<MetricName, Evaluation> evaluations;
+	private final Map<MetricName, Object> lastValues;
+	private ReportingMetrics metrics = ReportingMetrics.NOOP;
+
+	public GaugeEvaluator(int threads, long timeout, TimeUnit unit, TimeoutPolicy policy) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("given threads must be greater than 0");
+		}
+		Objects.requireNonNull(policy, "given TimeoutPolicy cannot be null");
+		this.timeoutInNanos = unit.toNanos(timeout);
+		this.policy = policy;
+		this.evaluations = new HashMap<>();
+		this.lastValues = new HashMap<>();
+		this.pool = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "metrics-gauge-evaluator-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Sets the instrumentation counting the timed out gauges.
+	 * @param metrics a non null instrumentation
+	 */
+	public void setReportingMetrics(ReportingMetrics metrics) {
+		Objects.requireNonNull(metrics, "given ReportingMetrics cannot be null");
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Starts the evaluation of the given gauge, unless its previous evaluation is still running.
+	 */
+	public void submit(MetricName name, Gauge<?> gauge) {
+		Evaluation previous = evaluations.get(name);
+		if (previous != null && previous.isRunning()) {
+			return;
+		}
+		Evaluation e = new Evaluation(gauge);
+		e.future = pool.submit(e);
+		evaluations.put(name, e);
+	}
+
+	/**
+	 * Waits for the value of the given gauge, submitting it if needed.
+	 * @return the value of the gauge, or what the {@link TimeoutPolicy} gives on timeout
+	 * @throws Exception the failure of {@link Gauge#value()}
+	 */
+	public Object value(MetricName name, Gauge<?> gauge) throws Exception {
+		Evaluation e = evaluations.get(name);
+		if (e == null) {
+			submit(name, gauge);
+			e = evaluations.get(name);
+		}
+
+		try {
+			Object value = e.await(timeoutInNanos);
+			evaluations.remove(name);
+			lastValues.put(name, value);
+			return value;
+		} catch (ExecutionException exc) {
+			evaluations.remove(name);
+			Throwable cause = exc.getCause();
+			throw (cause instanceof Exception) ? (Exception) cause : exc;
+		} catch (TimeoutException exc) {
+			// try to unblock it, the evaluation stays known so that it is not submitted again while hanging
+			e.future.cancel(true);
+			metrics.inc("gauge-timeouts", 1);
+			LOGGER.debug("gauge {} did not give its value in time", name);
+			return (policy == TimeoutPolicy.LAST_VALUE) ? lastValues.get(name) : null;
+		}
+	}
+
+	/**
+	 * @return the names of the gauges being evaluated or holding a last value
+	 */
+	public Set<MetricName> names() {
+		Set<MetricName> names = new HashSet<>(evaluations.keySet());
+		names.addAll(lastValues.keySet());
+		return names;
+	}
+
+	/**
+	 * Forgets the given gauge, cancelling its evaluation if still running, typically once removed from its registry.
+	 */
+	public void forget(MetricName name) {
+		Evaluation e = evaluations.remove(name);
+		if (e != null && e.isRunning()) {
+			e.future.cancel(true);
+		}
+		lastValues.remove(name);
+	}
+
+	@Override
+	public void close() {
+		pool.shutdownNow();
+	}
+
+	private static class Evaluation implements Callable<Object> {
+		private final Gauge<?> gauge;
+		private final long submittedAt;
+		private volatile long startedAt;
+		private volatile boolean started;
+		private volatile boolean finished;
+		private Future<Object> future;
+
+		Evaluation(Gauge<?> gauge) {
+			this.gauge = gauge;
+			this.submittedAt = System.nanoTime();
+		}
+
+		@Override
+		public Object call() throws Exception {
+			startedAt = System.nanoTime();
+			started = true;
+			try {
+				return gauge.value();
+			} finally {
+				finished = true;
+			}
+		}
+
+		boolean isRunning() {
+			// an evaluation cancelled before it started will never run
+			return !finished && !(future.isCancelled() && !started);
+		}
+
+		Object await(long timeoutInNanos) throws InterruptedException, ExecutionException, TimeoutException {
+			if (future.isCancelled()) {
+				// still hanging since a previous tick
+				throw new TimeoutException();
+			}
+			while (true) {
+				// the deadline runs from the submission while queued, and from the start once running
+				long from = started ? startedAt : submittedAt;
+				long remaining = from + timeoutInNanos - System.nanoTime();
+				if (remaining <= 0) {
+					throw new TimeoutException();
+				}
+				try {
+					return future.get(remaining, TimeUnit.NANOSECONDS);
+				} catch (TimeoutException exc) {
+					// loop: the evaluation may have started meanwhile
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,93 @@
+package metrics2_influxdb.measurements;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import com.yammer.metrics.stats.Snapshot;
+
+import metrics2_influxdb.metrics.IntervalRecorder;
+
+/**
+ * Cumulative bucket counts, Prometheus style, for timers and histograms.
+ * <br>
+ * Percentiles cannot be aggregated across hosts, bucket counts can: summing the {@code count} of each {@code le}
+ * bucket over all hosts gives the fleet wide distribution. For each boundary the reporter emits a
+ * {@code <measurement>-bucket} point tagged {@code le=<boundary>} holding the number of values lower or equal
+ * to the boundary, plus a {@code le=+Inf} point holding the total count.
+ * <br>
+ * Counts computed from a {@link Snapshot} are estimated: the share of the sampled values under each boundary is
+ * applied to the total count of the metric. Counts computed from an {@link IntervalRecorder} are the counts of the
+ * interval, at the precision of its buckets. Boundaries of timers and recorders are expressed in their duration unit.
+ */
+public class HistogramBuckets {
+	public static final String SUFFIX = "-bucket";
+	public static final String INFINITY = "+Inf";
+
+	private final double[] boundaries;
+	private final String[] labels;
+
+	/**
+	 * @param boundaries the upper bounds of the buckets, at least one
+	 */
+	public HistogramBuckets(double... boundaries) {
+		if (boundaries == null || boundaries.length == 0) {
+			throw new IllegalArgumentException("at least one bucket boundary is expected");
+		}
+		this.boundaries = boundaries.clone();
+		Arrays.sort(this.boundaries);
+		this.labels = new String[this.boundaries.length];
+		for (int i = 0; i < this.boundaries.length; i++) {
+			double b = this.boundaries[i];
+			if (Double.isNaN(b) || Double.isInfinite(b)) {
+				throw new IllegalArgumentException("bucket boundaries must be finite numbers");
+			}
+			labels[i] = (b == Math.rint(b)) ? Long.toString((long) b) : Double.toString(b);
+		}
+	}
+
+	/**
+	 * @param snapshot a snapshot of the sampled values
+	 * @param count the total count of values recorded by the metric
+	 * @return the cumulative count of each boundary, followed by the total count
+	 */
+	public long[] cumulativeCounts(Snapshot snapshot, long count) {
+		double[] values = snapshot.getValues();	// sorted
+		long[] counts = new long[boundaries.length + 1];
+		int lowerOrEqual = 0;
+		for (int i = 0; i < boundaries.length; i++) {
+			while (lowerOrEqual < values.length && values[lowerOrEqual] <= boundaries[i]) {
+				lowerOrEqual++;
+			}
+			counts[i] = (values.length == 0) ? 0 : Math.round(((double) lowerOrEqual / values.length) * count);
+		}
+		counts[boundaries.length] = count;
+		return counts;
+	}
+
+	/**
+	 * @param snapshot the summary of the last interval of a recorder
+	 * @return the cumulative count of each boundary over the interval, followed by the interval count
+	 */
+	public long[] cumulativeCounts(IntervalRecorder.IntervalSnapshot snapshot) {
+		long[] counts = Arrays.copyOf(snapshot.cumulativeCounts(boundaries), boundaries.length + 1);
+		counts[boundaries.length] = snapshot.count();
+		return counts;
+	}
+
+	/**
+	 * @return the measures of the buckets, one per boundary plus the {@value #INFINITY} one
+	 */
+	public List<Measure> measures(String measurementName, Map<String, String> tags, long[] cumulativeCounts, long timestamp) {
+		List<Measure> measures = new ArrayList<>(cumulativeCounts.length);
+		for (int i = 0; i < cumulativeCounts.length; i++) {
+			measures.add(new Measure(measurementName + SUFFIX)
+					.timestamp(timestamp)
+					.addTag(tags)
+					.addTag("le", (i < labels.length) ? labels[i] : INFINITY)
+					.addValue("count", cumulativeCounts[i]));
+		}
+		return measures;
+	}
+}
@@ -6,14 +6,25 @@ import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import metrics2_influxdb.HttpInfluxdbProtocol;
+import metrics2_influxdb.misc.BoundedFIFO;
 import metrics2_influxdb.misc.Miscellaneous;
+import metrics2_influxdb.reporting.ReportingMetrics;
+import metrics2_influxdb.reporting.TickDeadline;
 import metrics2_influxdb.serialization.line.Inliner;
 
 public class HttpInlinerSender extends QueueableSender {
@@ -21,20 +32,33 @@ public class HttpInlinerSender extends QueueableSender {
 	private static int MAX_MEASURES_IN_SINGLE_POST = 5000;
 	private final URL writeURL;
 	private final Inliner inliner;
+	private AdaptiveBatchController batchController;
+	private ExecutorService requests;
 
 	public HttpInlinerSender(HttpInfluxdbProtocol protocol) {
-		super(MAX_MEASURES_IN_SINGLE_POST);
+		this(protocol, new BoundedFIFO<Measure>(MAX_MEASURES_IN_SINGLE_POST));
+	}
+
+	/**
+	 * @param protocol the InfluxDB server and database to write into
+	 * @param backlog holds the measures while they cannot be sent, see {@link CoalescingBacklog}
+	 */
+	public HttpInlinerSender(HttpInfluxdbProtocol protocol, Collection<Measure> backlog) {
+		super(MAX_MEASURES_IN_SINGLE_POST, backlog);
 		URL toJoin;
 
 		inliner = new Inliner(TimeUnit.MILLISECONDS);
+		inliner.setSortedBySeries(true);
 
 		try {
+			String file = "/write?precision=ms&db=" + Miscellaneous.urlEncode(protocol.database);
+			if (protocol.retentionPolicy != null) {
+				file += "&rp=" + Miscellaneous.urlEncode(protocol.retentionPolicy);
+			}
 			if (protocol.secured) {
-				toJoin = new URL(protocol.scheme, protocol.host, protocol.port, "/write?precision=ms&db=" + Miscellaneous.urlEncode(protocol.database) + "&u="
-						+ Miscellaneous.urlEncode(protocol.user) + "&p=" + Miscellaneous.urlEncode(protocol.password));
-			} else {
-				toJoin = new URL(protocol.scheme, protocol.host, protocol.port, "/write?precision=ms&db=" + Miscellaneous.urlEncode(protocol.database));
+				file += "&u=" + Miscellaneous.urlEncode(protocol.user) + "&p=" + Miscellaneous.urlEncode(protocol.password);
 			}
+			toJoin = new URL(protocol.scheme, protocol.host, protocol.port, file);
 		} catch (MalformedURLException | UnsupportedEncodingException e) {
 			toJoin = null;
 		}
@@ -42,28 +66,190 @@ public class HttpInlinerSender extends QueueableSender {
 		writeURL = toJoin;
 	}
 
+	/**
+	 * @param sortedBySeries true to send the points of a batch grouped by series, default to true
+	 * @see Inliner#setSortedBySeries(boolean)
+	 */
+	public void setSortedBySeries(boolean sortedBySeries) {
+		inliner.setSortedBySeries(sortedBySeries);
+	}
+
+	/**
+	 * Splits the measures to send into requests sized, and sent concurrently, as tuned by the given controller
+	 * instead of posting them all in one request. Not used with an {@link EncodedBacklog}, the measures of a flush
+	 * being encoded once and posted in one request.
+	 * @param batchController the controller, null to post all the measures held in one request
+	 * @throws IllegalArgumentException if the controller could put more points in flight than the sender sends at
+	 * once, its maximum load being out of reach
+	 */
+	public void setAdaptiveBatching(AdaptiveBatchController batchController) {
+		if (batchController != null && batchController.getMaxPointsInFlight() > MAX_MEASURES_IN_SINGLE_POST) {
+			throw new IllegalArgumentException("maxBatchSize * maxConcurrency cannot exceed the " + MAX_MEASURES_IN_SINGLE_POST
+					+ " measures sent at once: " + batchController.getMaxPointsInFlight());
+		}
+		this.batchController = batchController;
+		if (batchController != null) {
+			batchController.setReportingMetrics(metrics);
+		}
+	}
+
+	@Override
+	public void setReportingMetrics(ReportingMetrics metrics) {
+		super.setReportingMetrics(metrics);
+		if (batchController != null) {
+			batchController.setReportingMetrics(metrics);
+		}
+	}
+
 	@Override
 	protected boolean doSend(Collection<Measure> measures) {
 		if (measures.isEmpty()) {
 			return true;
 		}
+		if (batchController != null) {
+			return sendAdaptively(new ArrayList<Measure>(measures));
+		}
+		return post(EncodedBacklog.Chunk.wrap(encode(measures), measures.size()), timeoutInMillis());
+	}
+
+	/**
+	 * Posts the measures in waves of concurrent requests, stopping at the first wave with a failed request; the
+	 * measures are then all held and sent again, InfluxDB overwriting the points it already got.
+	 */
+	private boolean sendAdaptively(List<Measure> measures) {
+		int offset = 0;
+		while (offset < measures.size()) {
+			int batchSize = batchController.getBatchSize();
+			int concurrency = batchController.getConcurrency();
+			List<Callable<Boolean>> wave = new ArrayList<Callable<Boolean>>(concurrency);
+			for (int i = 0; i < concurrency && offset < measures.size(); i++) {
+				List<Measure> batch = measures.subList(offset, Math.min(measures.size(), offset + batchSize));
+				offset += batch.size();
+				final EncodedBacklog.Chunk chunk = EncodedBacklog.Chunk.wrap(encode(batch), batch.size());
+				// the deadline is the one of the calling thread, not of the thread posting
+				final int timeout = timeoutInMillis();
+				wave.add(new Callable<Boolean>() {
+					@Override
+					public Boolean call() {
+						long start = System.nanoTime();
+						boolean sent = post(chunk, timeout);
+						batchController.completed(System.nanoTime() - start, sent);
+						return sent;
+					}
+				});
+			}
+			if (!sendWave(wave)) {
+				return false;
+			}
+			if (offset < measures.size() && TickDeadline.passed()) {
+				// the tick is out of time, all the measures are kept and sent again on the next one
+				metrics.inc("deadline-deferred-sends", 1);
+				return false;
+			}
+		}
+		return true;
+	}
 
+	private boolean sendWave(List<Callable<Boolean>> wave) {
+		if (wave.size() == 1) {
+			try {
+				return wave.get(0).call();
+			} catch (Exception e) {
+				return false;
+			}
+		}
+		boolean sent = true;
+		try {
+			for (Future<Boolean> result : requests().invokeAll(wave)) {
+				sent &= result.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch (ExecutionException e) {
+			LOGGER.warn("failed to send measures", e.getCause());
+			return false;
+		}
+		return sent;
+	}
+
+	private ExecutorService requests() {
+		if (requests == null) {
+			requests = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "metrics-http-request");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return requests;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (requests != null) {
+			requests.shutdown();
+		}
+		super.close();
+	}
+
+	@Override
+	protected boolean isEncodingSupported() {
+		return true;
+	}
+
+	@Override
+	protected byte[] encode(Collection<Measure> measures) {
+		long encodeStart = System.nanoTime();
+		String measuresAsString = inliner.inline(measures);
+		byte[] payload = measuresAsString.getBytes(Miscellaneous.UTF8);
+		metrics.encoded(System.nanoTime() - encodeStart);
+
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.debug("Measures being sent:\n{}", measuresAsString);
+		}
+		return payload;
+	}
+
+	@Override
+	protected boolean doSend(EncodedBacklog.Chunk chunk) {
+		return post(chunk, timeoutInMillis());
+	}
+
+	/**
+	 * @return the timeout of a request, no longer than the deadline of the tick of the current thread, 0 if it passed
+	 */
+	private static int timeoutInMillis() {
+		return (int) Math.max(0, TimeUnit.NANOSECONDS.toMillis(TickDeadline.remainingNanos(TimeUnit.SECONDS.toNanos(2))));
+	}
+
+	/**
+	 * @param timeout the connect and read timeout in milliseconds, the chunk is not posted if not positive, 0 being
+	 * no timeout at all for {@link HttpURLConnection}
+	 */
+	private boolean post(EncodedBacklog.Chunk chunk, int timeout) {
+		if (timeout <= 0) {
+			LOGGER.debug("{} Measures not sent to {}://{}:{}, the tick is out of time", chunk.points(), writeURL.getProtocol(), writeURL.getHost(), writeURL.getPort());
+			metrics.inc("deadline-deferred-sends", 1);
+			return false;
+		}
 		HttpURLConnection con = null;
 		try {
 			con = (HttpURLConnection) writeURL.openConnection();
 			con.setRequestMethod("POST");
-			con.setConnectTimeout(Long.valueOf(TimeUnit.SECONDS.toMillis(2)).intValue());
-			con.setReadTimeout(Long.valueOf(TimeUnit.SECONDS.toMillis(2)).intValue());
+			con.setConnectTimeout(timeout);
+			con.setReadTimeout(timeout);
+			if (chunk.isCompressed()) {
+				con.setRequestProperty("Content-Encoding", "gzip");
+			}
 
 			// Send post request
 			con.setDoOutput(true);
 			OutputStream wr = con.getOutputStream();
-			String measuresAsString = inliner.inline(measures);
-
-			if (LOGGER.isDebugEnabled()) {
-				LOGGER.debug("Measures being sent:\n{}", measuresAsString);
-			}
-			wr.write(measuresAsString.getBytes(Miscellaneous.UTF8));
+			chunk.writeTo(wr);
+			metrics.written(chunk.length());
 
 			wr.flush();
 			wr.close();
@@ -72,13 +258,13 @@ public class HttpInlinerSender extends QueueableSender {
 
 			switch (responseCode) {
 			case HttpURLConnection.HTTP_NO_CONTENT:
-				LOGGER.debug("{} Measures sent to {}://{}:{}", measures.size(), writeURL.getProtocol(), writeURL.getHost(), writeURL.getPort());
+				LOGGER.debug("{} Measures sent to {}://{}:{}", chunk.points(), writeURL.getProtocol(), writeURL.getHost(), writeURL.getPort());
 				break;
 			case HttpURLConnection.HTTP_OK:
-				LOGGER.info("{} Measures sent to {}://{}:{} but not saved by infludb, reason:\n{}", measures.size(), writeURL.getProtocol(), writeURL.getHost(), writeURL.getPort(), Miscellaneous.readFrom(con.getInputStream()));
+				LOGGER.info("{} Measures sent to {}://{}:{} but not saved by infludb, reason:\n{}", chunk.points(), writeURL.getProtocol(), writeURL.getHost(), writeURL.getPort(), Miscellaneous.readFrom(con.getInputStream()));
 				break;
 			default:
-				LOGGER.info("failed to send {} Measures to {}://{}:{}, HTTP CODE received: {}\n", measures.size(), writeURL.getProtocol(), writeURL.getHost(), writeURL.getPort(), responseCode,  Miscellaneous.readFrom(con.getInputStream()));
+				LOGGER.info("failed to send {} Measures to {}://{}:{}, HTTP CODE received: {}\n", chunk.points(), writeURL.getProtocol(), writeURL.getHost(), writeURL.getPort(), responseCode,  Miscellaneous.readFrom(con.getInputStream()));
 				break;
 			}
 
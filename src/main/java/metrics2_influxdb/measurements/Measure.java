@@ -3,16 +3,34 @@ package metrics2_influxdb.measurements;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
 
 import com.yammer.metrics.core.Clock;
 
 import metrics2_influxdb.misc.Miscellaneous;
 
 public class Measure {
+	public static final String COUNTER = "counter";
+	public static final String GAUGE = "gauge";
+	public static final String METER = "meter";
+	public static final String TIMER = "timer";
+	public static final String HISTOGRAM = "histogram";
+	public static final String INTERVAL_RECORDER = "interval-recorder";
+
+	/**
+	 * The priority class of a measure, lower priority measures are shed first when a sender is under pressure.
+	 */
+	public enum Priority {
+		LOW, NORMAL, CRITICAL
+	}
+
 	private String name;
 	private Map<String, String> tags;
 	private Map<String, String> values;
 	private long timestamp;
+	private String type;
+	private Priority priority = Priority.NORMAL;
 
 	public Measure(String name) {
 		this(name, (Map<String, String>)null, (Map<String, String>)null, Clock.defaultClock().time());
@@ -176,6 +194,56 @@ public class Measure {
 		return this;
 	}
 
+	/**
+	 * @return the type of the metric this measure was made of, {@link #COUNTER}, {@link #TIMER}... or null;
+	 * it is not sent to InfluxDB
+	 */
+	public String getType() {
+		return type;
+	}
+
+	public void setType(String type) {
+		this.type = type;
+	}
+
+	public Measure type(String type) {
+		setType(type);
+		return this;
+	}
+
+	/**
+	 * @return the priority class of this measure, {@link Priority#NORMAL} by default; it is not sent to InfluxDB
+	 */
+	public Priority getPriority() {
+		return priority;
+	}
+
+	public void setPriority(Priority priority) {
+		Objects.requireNonNull(priority, "given Priority cannot be null");
+		this.priority = priority;
+	}
+
+	public Measure priority(Priority priority) {
+		setPriority(priority);
+		return this;
+	}
+
+	/**
+	 * @return the measurement name followed by the tags sorted by key, identifying the series of this measure
+	 */
+	public String getSeriesKey() {
+		StringBuilder key = new StringBuilder(name);
+		if (tags.size() == 1) {
+			Map.Entry<String, String> tag = tags.entrySet().iterator().next();
+			key.append(',').append(tag.getKey()).append('=').append(tag.getValue());
+		} else if (tags.size() > 1) {
+			for (Map.Entry<String, String> tag : new TreeMap<String, String>(tags).entrySet()) {
+				key.append(',').append(tag.getKey()).append('=').append(tag.getValue());
+			}
+		}
+		return key.toString();
+	}
+
 	public Measure addTag(String tagKey, String tagValue) {
 		tags.put(tagKey, tagValue);
 		return this;
@@ -2,32 +2,94 @@ package metrics2_influxdb.measurements;
 
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.yammer.metrics.core.*;
-import com.yammer.metrics.reporting.AbstractPollingReporter;
 import com.yammer.metrics.stats.Snapshot;
 
+import metrics2_influxdb.api.measurements.FieldGroupingMetricMeasurementTransformer;
 import metrics2_influxdb.api.measurements.MetricMeasurementTransformer;
+import metrics2_influxdb.metrics.ExtendedMetricProcessor;
+import metrics2_influxdb.metrics.IntervalRecorder;
+import metrics2_influxdb.metrics.StripedCounter;
+import metrics2_influxdb.metrics.StripedMeter;
+import metrics2_influxdb.reporting.ScheduledPollingReporter;
 
 public class MeasurementReporter
-        extends AbstractPollingReporter
-        implements MetricProcessor<Long> {
+        extends ScheduledPollingReporter
+        implements ExtendedMetricProcessor<Long> {
+	private final static Logger LOGGER = LoggerFactory.getLogger(MeasurementReporter.class);
 	private final Sender sender;
-	private final Clock clock;
 	private Map<String, String> baseTags;
 	private MetricMeasurementTransformer transformer;
+	private CollectionProfiler profiler;
+	private GaugeEvaluator gaugeEvaluator;
+	private HistogramBuckets histogramBuckets;
+	private boolean percentilesReported = true;
+	private DeltaTracker deltaTracker;
+	private final Map<String, Measure> groupedGauges = new LinkedHashMap<String, Measure>();
 
 	public MeasurementReporter(Sender sender, MetricsRegistry registry, Clock clock, Map<String, String> baseTags, MetricMeasurementTransformer transformer) {
-		super(registry, "measurement-reporter");
+		super(registry, "measurement-reporter", clock);
 		this.baseTags = baseTags;
 		this.sender = sender;
-		this.clock = clock;
 		this.transformer = transformer;
 	}
 
+	/**
+	 * Profiles the collection cost of each metric, and reports the most expensive ones.
+	 * @param profiler the profiler to use, null to deactivate profiling
+	 */
+	public void setCollectionProfiler(CollectionProfiler profiler) {
+		this.profiler = profiler;
+	}
+
+	/**
+	 * Evaluates the gauges in parallel with a deadline, instead of one after the other on the reporting thread.
+	 * The evaluator is closed with this reporter.
+	 * @param gaugeEvaluator the evaluator to use, null to evaluate gauges on the reporting thread
+	 */
+	public void setGaugeEvaluator(GaugeEvaluator gaugeEvaluator) {
+		this.gaugeEvaluator = gaugeEvaluator;
+	}
+
+	/**
+	 * Reports cumulative bucket counts for timers and histograms, that can be summed across hosts.
+	 * @param histogramBuckets the buckets to report, null to report none
+	 */
+	public void setHistogramBuckets(HistogramBuckets histogramBuckets) {
+		this.histogramBuckets = histogramBuckets;
+	}
+
+	/**
+	 * @param percentilesReported false to stop reporting the per host percentiles of timers and histograms,
+	 * typically when buckets are reported instead
+	 */
+	public void setPercentilesReported(boolean percentilesReported) {
+		this.percentilesReported = percentilesReported;
+	}
+
+	/**
+	 * Adds per interval delta and per second rate fields to counters, meters, timers and histograms.
+	 * @param deltaTracker the tracker of the previous counts, null to report no delta
+	 */
+	public void setDeltaTracker(DeltaTracker deltaTracker) {
+		this.deltaTracker = deltaTracker;
+	}
+
+	@Override
+	protected void onShutdown() {
+		if (gaugeEvaluator != null) {
+			gaugeEvaluator.close();
+		}
+	}
+
 // 	@SuppressWarnings("rawtypes")
 //	@Override
 //	public void report(SortedMap<String, Gauge> gauges
@@ -63,32 +125,89 @@ public class MeasurementReporter
 
 	@Override
   public void run() {
-    final long timestamp = clock.time();
-    final Set<Entry<MetricName, Metric>> metrics = getMetricsRegistry().allMetrics().entrySet();
-    try {
+    final long timestamp = tickTimestamp();
+    if (deltaTracker != null) {
+      deltaTracker.tick(timestamp, getPeriodInMillis());
+    }
+    final long start = System.nanoTime();
+    final List<Entry<MetricName, Metric>> metrics = tickMetrics();
+    final boolean profiled = profiler != null && profiler.sample();
+    if (gaugeEvaluator != null) {
       for (Entry<MetricName, Metric> entry : metrics) {
-        Metric metric = entry.getValue();
-        metric.processWith(this, entry.getKey(), timestamp);
+        if (isPlainGauge(entry.getValue())) {
+          gaugeEvaluator.submit(entry.getKey(), (Gauge<?>) entry.getValue());
+        }
+      }
+    }
+    for (Entry<MetricName, Metric> entry : metrics) {
+      Metric metric = entry.getValue();
+      // a failing metric must not prevent the others from being reported
+      try {
+        if (profiled) {
+          long metricStart = System.nanoTime();
+          metric.processWith(this, entry.getKey(), timestamp);
+          profiler.record(entry.getKey(), System.nanoTime() - metricStart);
+        } else {
+          metric.processWith(this, entry.getKey(), timestamp);
+        }
+      } catch (Throwable e) {
+        getReportingMetrics().inc("collect-failures", 1);
+        LOGGER.warn("failed to collect metric {}", entry.getKey(), e);
+      }
+    }
+    if (!groupedGauges.isEmpty()) {
+      sender.send(groupedGauges.values());
+      groupedGauges.clear();
+    }
+    getReportingMetrics().collected(System.nanoTime() - start);
+    if (gaugeEvaluator != null) {
+      for (MetricName name : gaugeEvaluator.names()) {
+        if (!isRegistered(name)) {
+          gaugeEvaluator.forget(name);
+        }
       }
-    } catch (Throwable e) {
-      e.printStackTrace();
+    }
+    if (profiled) {
+      sender.send(profiler.measures(baseTags, timestamp));
     }
 
     sender.flush();
   }
 
+  /**
+   * @return true if the given metric is reported through {@link #processGauge(MetricName, Gauge, Long)}, the gauge
+   * based metrics of this library having their own process methods
+   */
+  /**
+   * Reports the gauges grouped into a same measurement in the same slice, for them to make a single point.
+   */
   @Override
-  public void processTimer(MetricName name, Timer timer, Long timestamp) throws IOException {
-    sender.send(fromTimer(name.getName(), timer, timestamp));
+  protected int partitionKey(MetricName name, Metric metric) {
+    if (isPlainGauge(metric) && transformer instanceof FieldGroupingMetricMeasurementTransformer
+        && ((FieldGroupingMetricMeasurementTransformer) transformer).fieldName(name.getName()) != null) {
+      return 31 * transformer.measurementName(name.getName()).hashCode() + transformer.tags(name.getName()).hashCode();
+    }
+    return super.partitionKey(name, metric);
   }
 
-  private Measure fromTimer(String metricName, Timer t, long timestamp) {
-		Snapshot snapshot = t.getSnapshot();
+  private static boolean isPlainGauge(Metric metric) {
+    return metric instanceof Gauge
+        && !(metric instanceof StripedCounter || metric instanceof StripedMeter || metric instanceof IntervalRecorder);
+  }
+
+  @Override
+  public void processTimer(MetricName name, Timer timer, Long timestamp) throws IOException {
+    Snapshot snapshot = timer.getSnapshot();
+    sender.send(withDeltas(fromTimer(name.getName(), timer, snapshot, timestamp), name, timer.count(), true));
+    sendBuckets(name.getName(), Measure.TIMER, snapshot, timer.count(), timestamp);
+  }
 
+  private Measure fromTimer(String metricName, Timer t, Snapshot snapshot, long timestamp) {
 		Map<String, String> tags = new HashMap<String, String>(baseTags);
 		tags.putAll(transformer.tags(metricName));
 
 		Measure measure = new Measure(transformer.measurementName(metricName))
+				.type(Measure.TIMER)
 				.timestamp(timestamp)
 				.addTag(tags)
 				.addValue("count", snapshot.size())
@@ -96,23 +215,82 @@ public class MeasurementReporter
 				.addValue("max", t.max())
 				.addValue("mean", t.mean())
 				.addValue("std-dev", t.stdDev())
-				.addValue("50-percentile", snapshot.getMedian())
-				.addValue("75-percentile", snapshot.get75thPercentile())
-				.addValue("95-percentile", snapshot.get95thPercentile())
-				.addValue("99-percentile", snapshot.get99thPercentile())
-				.addValue("999-percentile", snapshot.get999thPercentile())
 				.addValue("one-minute", t.oneMinuteRate())
 				.addValue("five-minute", t.fiveMinuteRate())
 				.addValue("fifteen-minute", t.fifteenMinuteRate())
 				.addValue("mean-minute", t.meanRate())
 				.addValue("run-count", t.count());
+		if (percentilesReported) {
+			addPercentiles(measure, snapshot);
+		}
 
 		return measure;
 	}
 
+	private static void addPercentiles(Measure measure, Snapshot snapshot) {
+		measure.addValue("50-percentile", snapshot.getMedian())
+				.addValue("75-percentile", snapshot.get75thPercentile())
+				.addValue("95-percentile", snapshot.get95thPercentile())
+				.addValue("99-percentile", snapshot.get99thPercentile())
+				.addValue("999-percentile", snapshot.get999thPercentile());
+	}
+
+	private Measure withDeltas(Measure measure, MetricName name, long count, boolean monotonic) {
+		return (deltaTracker == null) ? measure : deltaTracker.addDeltas(measure, name, count, monotonic);
+	}
+
+	private void sendBuckets(String metricName, String type, Snapshot snapshot, long count, long timestamp) {
+		if (histogramBuckets == null) {
+			return;
+		}
+		Map<String, String> tags = new HashMap<String, String>(baseTags);
+		tags.putAll(transformer.tags(metricName));
+		long[] counts = histogramBuckets.cumulativeCounts(snapshot, count);
+		sendBuckets(histogramBuckets.measures(transformer.measurementName(metricName), tags, counts, timestamp), type);
+	}
+
+	private void sendBuckets(List<Measure> buckets, String type) {
+		for (Measure bucket : buckets) {
+			bucket.setType(type);
+		}
+		sender.send(buckets);
+	}
+
+	@Override
+	public void processIntervalRecorder(MetricName name, IntervalRecorder recorder, Long timestamp) throws Exception {
+		IntervalRecorder.IntervalSnapshot snapshot = recorder.intervalSnapshot();
+		String metricName = name.getName();
+		Map<String, String> tags = new HashMap<String, String>(baseTags);
+		tags.putAll(transformer.tags(metricName));
+
+		Measure measure = new Measure(transformer.measurementName(metricName))
+				.type(Measure.INTERVAL_RECORDER)
+				.timestamp(timestamp)
+				.addTag(tags)
+				.addValue("count", snapshot.count());
+		if (snapshot.count() > 0) {
+			measure.addValue("min", snapshot.min())
+					.addValue("max", snapshot.max())
+					.addValue("mean", snapshot.mean());
+			if (percentilesReported) {
+				measure.addValue("50-percentile", snapshot.getValue(0.5))
+						.addValue("75-percentile", snapshot.getValue(0.75))
+						.addValue("95-percentile", snapshot.getValue(0.95))
+						.addValue("99-percentile", snapshot.getValue(0.99))
+						.addValue("999-percentile", snapshot.getValue(0.999));
+			}
+		}
+		sender.send(measure);
+
+		if (histogramBuckets != null) {
+			long[] counts = histogramBuckets.cumulativeCounts(snapshot);
+			sendBuckets(histogramBuckets.measures(transformer.measurementName(metricName), tags, counts, timestamp), Measure.INTERVAL_RECORDER);
+		}
+	}
+
 	@Override
   public void processMeter(MetricName name, Metered meter, Long timestamp) throws IOException {
-	  sender.send(fromMeter(name.getName(), meter, timestamp));
+	  sender.send(withDeltas(fromMeter(name.getName(), meter, timestamp), name, meter.count(), true));
 	}
 
 	private Measure fromMeter(String metricName, Metered mt, long timestamp) {
@@ -120,6 +298,7 @@ public class MeasurementReporter
 		tags.putAll(transformer.tags(metricName));
 
 		Measure measure = new Measure(transformer.measurementName(metricName))
+				.type(Measure.METER)
 				.timestamp(timestamp)
 				.addTag(tags)
 				.addValue("count", mt.count())
@@ -132,16 +311,17 @@ public class MeasurementReporter
 
   @Override
   public void processHistogram(MetricName name, Histogram hist, Long timestamp) throws IOException {
-    sender.send(fromHistogram(name.getName(), hist, timestamp));
+    Snapshot snapshot = hist.getSnapshot();
+    sender.send(withDeltas(fromHistogram(name.getName(), hist, snapshot, timestamp), name, hist.count(), true));
+    sendBuckets(name.getName(), Measure.HISTOGRAM, snapshot, hist.count(), timestamp);
   }
 
-	private Measure fromHistogram(String metricName, Histogram h, long timestamp) {
-		Snapshot snapshot = h.getSnapshot();
-
+	private Measure fromHistogram(String metricName, Histogram h, Snapshot snapshot, long timestamp) {
 		Map<String, String> tags = new HashMap<String, String>(baseTags);
 		tags.putAll(transformer.tags(metricName));
 
 		Measure measure = new Measure(transformer.measurementName(metricName))
+				.type(Measure.HISTOGRAM)
 				.timestamp(timestamp)
 				.addTag(tags)
 				.addValue("count", snapshot.size())
@@ -149,46 +329,75 @@ public class MeasurementReporter
 				.addValue("max", h.max())
 				.addValue("mean", h.mean())
 				.addValue("std-dev", h.stdDev())
-				.addValue("50-percentile", snapshot.getMedian())
-				.addValue("75-percentile", snapshot.get75thPercentile())
-				.addValue("95-percentile", snapshot.get95thPercentile())
-				.addValue("99-percentile", snapshot.get99thPercentile())
-				.addValue("999-percentile", snapshot.get999thPercentile())
 				.addValue("run-count", h.count());
+		if (percentilesReported) {
+			addPercentiles(measure, snapshot);
+		}
 		return measure;
 	}
 
   @Override
   public void processCounter(MetricName name, Counter counter, Long timestamp) throws IOException {
-    sender.send(fromCounter(name.getName(), counter, timestamp));
+    long count = counter.count();
+    sender.send(withDeltas(fromCounter(name.getName(), count, timestamp), name, count, false));
   }
 
-	private Measure fromCounter(String metricName, Counter c, long timestamp) {
+  @Override
+  public void processStripedCounter(MetricName name, StripedCounter counter, Long timestamp) throws IOException {
+    long count = counter.count();
+    sender.send(withDeltas(fromCounter(name.getName(), count, timestamp), name, count, false));
+  }
+
+	private Measure fromCounter(String metricName, long count, long timestamp) {
 		Map<String, String> tags = new HashMap<String, String>(baseTags);
 		tags.putAll(transformer.tags(metricName));
 
 		Measure measure = new Measure(transformer.measurementName(metricName))
+				.type(Measure.COUNTER)
 				.timestamp(timestamp)
 				.addTag(tags)
-				.addValue("count", c.count());
+				.addValue("count", count);
 
 		return measure;
 	}
 
   @Override
-  public void processGauge(MetricName name, Gauge gauge, Long timestamp) throws IOException {
-    sender.send(fromGauge(name.getName(), gauge, timestamp));
+  public void processGauge(MetricName name, Gauge<?> gauge, Long timestamp) throws Exception {
+    Object value = (gaugeEvaluator == null) ? gauge.value() : gaugeEvaluator.value(name, gauge);
+    String field = (transformer instanceof FieldGroupingMetricMeasurementTransformer)
+        ? ((FieldGroupingMetricMeasurementTransformer) transformer).fieldName(name.getName())
+        : null;
+    if (field == null) {
+      sender.send(fromGauge(name.getName(), "value", value, timestamp));
+    } else {
+      group(fromGauge(name.getName(), field, value, timestamp));
+    }
   }
 
-	@SuppressWarnings("rawtypes")
-	private Measure fromGauge(String metricName, Gauge g, long timestamp) {
+	/**
+	 * Merges the given measure into the one of the same series reported at the end of the tick.
+	 */
+	private void group(Measure measure) {
+		if (measure == null) {
+			return;
+		}
+		String key = measure.getSeriesKey();
+		Measure grouped = groupedGauges.get(key);
+		if (grouped == null) {
+			groupedGauges.put(key, measure);
+		} else {
+			grouped.getValues().putAll(measure.getValues());
+		}
+	}
+
+	private Measure fromGauge(String metricName, String field, Object o, long timestamp) {
 		Map<String, String> tags = new HashMap<String, String>(baseTags);
 		tags.putAll(transformer.tags(metricName));
 
 		Measure measure = new Measure(transformer.measurementName(metricName))
+				.type(Measure.GAUGE)
 				.timestamp(timestamp)
 				.addTag(tags);
-		Object o = g.value();
 
 		if (o == null) {
 			// skip null values
@@ -196,24 +405,24 @@ public class MeasurementReporter
 		}
 		if (o instanceof Long || o instanceof Integer) {
 			long value = ((Number)o).longValue();
-			measure.addValue("value", value);
+			measure.addValue(field, value);
 		} else if (o instanceof Double) {
 			Double d = (Double) o;
 			if (d.isInfinite() || d.isNaN()) {
 				// skip Infinite & NaN
 				return null;
 			}
-			measure.addValue("value", d.doubleValue());
+			measure.addValue(field, d.doubleValue());
 		} else if (o instanceof Float) {
 			Float f = (Float) o;
 			if (f.isInfinite() || f.isNaN()) {
 				// skip Infinite & NaN
 				return null;
 			}
-			measure.addValue("value", f.floatValue());
+			measure.addValue(field, f.floatValue());
 		} else {
 			String value = ""+o;
-			measure.addValue("value", value);
+			measure.addValue(field, value);
 		}
 
 		return measure;
@@ -0,0 +1,26 @@
+package metrics2_influxdb.measurements;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A backlog of a {@link QueueableSender} holding only the measures which could not be sent, such as
+ * {@link CoalescingBacklog} and {@link CompressedBacklog}: the measures of the current batch are held apart, as they
+ * are, until a send fails.
+ * <br>
+ * The backlog is sent in slices, each one removed once sent, so that a long outage is neither sent as a single
+ * request nor decoded at once. The measures an outage backlog replaces or rejects are counted as dropped by the
+ * sender.
+ */
+public interface OutageBacklog extends Collection<Measure> {
+	/**
+	 * @param max the maximum number of measures to return
+	 * @return the next measures to send, at most max, still held until {@link #removePeeked()}
+	 */
+	List<Measure> peek(int max);
+
+	/**
+	 * Removes the measures returned by the last {@link #peek(int)}, nothing having been added meanwhile.
+	 */
+	void removePeeked();
+}
@@ -1,39 +1,401 @@
 package metrics2_influxdb.measurements;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.core.Gauge;
 
 import metrics2_influxdb.misc.BoundedFIFO;
+import metrics2_influxdb.reporting.ReportingMetrics;
+import metrics2_influxdb.reporting.TickDeadline;
 
 public class QueueableSender extends AbstractSender {
 	private final Collection<Measure> measures;
+	// the measures not sent yet, when the backlog only holds the ones which could not be sent
+	private final List<Measure> batch;
 	private int queueSize;
+	private boolean lastSendFailed;
+	// a blocking backpressure policy timed out since the last successful send
+	private boolean blockTimedOut;
+	private int pending;
+	private EncodedBacklog encodedBacklog;
+	private final BackpressurePolicy[] policies = new BackpressurePolicy[Measure.Priority.values().length];
+	// no measure of a lower priority is held
+	private int lowestPriorityHeld = Integer.MAX_VALUE;
 
 	protected QueueableSender(int queueSize) {
+		this(queueSize, new BoundedFIFO<Measure>(queueSize));
+	}
+
+	/**
+	 * @param queueSize the number of measures triggering a send before the next flush
+	 * @param backlog holds the measures until they are sent, and while they cannot be sent; an
+	 * {@link OutageBacklog} only holds the measures of the sends which failed
+	 */
+	protected QueueableSender(int queueSize, Collection<Measure> backlog) {
 		this.queueSize = queueSize;
-		measures = new BoundedFIFO<>(queueSize);
+		measures = backlog;
+		batch = backlog instanceof OutageBacklog ? new ArrayList<Measure>() : null;
+		Arrays.fill(policies, BackpressurePolicy.dropOldest());
 	}
 
 	@Override
-	public void flush() {
-		if (doSend(measures)) {
-			measures.clear();
+	public void setReportingMetrics(ReportingMetrics metrics) {
+		super.setReportingMetrics(metrics);
+		metrics.gauge("queue-depth", new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return measures.size();
+			}
+		});
+		if (encodedBacklog != null) {
+			encodedBacklog.setReportingMetrics(metrics);
 		}
 	}
 
+	/**
+	 * Holds the measures which could not be sent already encoded in the given backlog, instead of as
+	 * {@link Measure} objects. The measures of a flush are encoded once, the payload posted being the one held when
+	 * the send fails.
+	 * @param encodedBacklog the backlog, null to hold the measures
+	 * @throws UnsupportedOperationException if the sender does not support it, see {@link #isEncodingSupported()}
+	 * @throws IllegalStateException if the sender has an {@link OutageBacklog}
+	 */
+	public void setEncodedBacklog(EncodedBacklog encodedBacklog) {
+		if (encodedBacklog != null && !isEncodingSupported()) {
+			throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support an encoded backlog");
+		}
+		if (encodedBacklog != null && batch != null) {
+			throw new IllegalStateException("an encoded backlog cannot be combined with " + measures.getClass().getSimpleName());
+		}
+		this.encodedBacklog = encodedBacklog;
+		if (encodedBacklog != null) {
+			encodedBacklog.setReportingMetrics(metrics);
+		}
+	}
+
+	/**
+	 * Sets what is done with a new measure when the {@link BoundedFIFO} backlog is full because InfluxDB cannot be
+	 * reached, whatever its priority; {@link BackpressurePolicy#dropOldest()} by default.
+	 * @param policy the policy to apply
+	 */
+	public void setBackpressurePolicy(BackpressurePolicy policy) {
+		for (Measure.Priority priority : Measure.Priority.values()) {
+			setBackpressurePolicy(priority, policy);
+		}
+	}
+
+	/**
+	 * Sets what is done with a new measure of the given priority when the {@link BoundedFIFO} backlog is full because
+	 * InfluxDB cannot be reached. {@link BackpressurePolicy.Kind#BLOCK} retries to send the backlog until the timeout;
+	 * once it timed out, the oldest measures are dropped without blocking until a send succeeds.
+	 * @param priority the priority of the measures the policy applies to
+	 * @param policy the policy to apply
+	 */
+	public void setBackpressurePolicy(Measure.Priority priority, BackpressurePolicy policy) {
+		if (policy == null) {
+			throw new IllegalArgumentException("given BackpressurePolicy cannot be null");
+		}
+		policies[priority.ordinal()] = policy;
+	}
+
+	@Override
+	public void flush() {
+		sendQueued();
+	}
+
 	@Override
 	public void send(Measure m) {
 		if (m == null) {
 			return;     // NOOP for null measures
 		}
-		if (measures.size() == queueSize) {
+		if (pending >= queueSize) {
 			// we have already reached the maximumn number of measure that can be sent in one shot
 			// let's send them before adding a new one
-			if (doSend(measures)) {
-				measures.clear();
+			sendQueued();
+		}
+		if (batch != null) {
+			batch.add(m);
+			pending++;
+			return;
+		}
+		int size = measures.size();
+		if (size >= queueSize && measures instanceof BoundedFIFO) {
+			if (!makeRoom(m)) {
+				return;
+			}
+			size = measures.size();
+		}
+		if (!measures.add(m) || (size == queueSize && measures instanceof BoundedFIFO)) {
+			// the measure has not been held, or the oldest one has been evicted
+			metrics.dropped(1);
+		}
+		lowestPriorityHeld = Math.min(lowestPriorityHeld, m.getPriority().ordinal());
+		pending++;
+	}
+
+	/**
+	 * Applies the backpressure policy of the given measure, the backlog being full.
+	 * @return true if the measure is to be added, evicting the oldest one if the backlog is still full
+	 */
+	private boolean makeRoom(Measure m) {
+		if (shedLowerPriority(m.getPriority().ordinal())) {
+			metrics.inc("backpressure-shed", 1);
+			metrics.dropped(1);
+			return true;
+		}
+		BackpressurePolicy policy = policies[m.getPriority().ordinal()];
+		switch (policy.getKind()) {
+		case DROP_NEWEST:
+			metrics.inc("backpressure-dropped-newest", 1);
+			metrics.dropped(1);
+			return false;
+		case SAMPLE:
+			if (!policy.sampled()) {
+				metrics.inc("backpressure-sampled-out", 1);
+				metrics.dropped(1);
+				return false;
+			}
+			break;
+		case BLOCK:
+			if (blockTimedOut) {
+				// InfluxDB is still unreachable, blocking again for each measure would stall the tick
+				break;
+			}
+			if (retryUntil(System.nanoTime() + TickDeadline.remainingNanos(policy.getTimeoutInNanos()))) {
+				return true;
+			}
+			blockTimedOut = true;
+			metrics.inc("backpressure-block-timeouts", 1);
+			break;
+		default:
+			break;
+		}
+		metrics.inc("backpressure-dropped-oldest", 1);
+		return true;
+	}
+
+	/**
+	 * Removes the oldest measure of the lowest priority held, if lower than the given one.
+	 */
+	private boolean shedLowerPriority(int priority) {
+		if (lowestPriorityHeld >= priority) {
+			return false;
+		}
+		int lowest = priority;
+		for (Measure held : measures) {
+			lowest = Math.min(lowest, held.getPriority().ordinal());
+		}
+		lowestPriorityHeld = lowest;
+		if (lowest == priority) {
+			return false;
+		}
+		for (Iterator<Measure> it = measures.iterator(); it.hasNext();) {
+			if (it.next().getPriority().ordinal() == lowest) {
+				it.remove();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Retries to send the backlog, backing off between the attempts, until it is sent or the deadline passed.
+	 */
+	private boolean retryUntil(long deadline) {
+		metrics.inc("backpressure-blocked", 1);
+		long backoff = TimeUnit.MILLISECONDS.toNanos(10);
+		while (true) {
+			if (sendQueued()) {
+				return true;
+			}
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				return false;
+			}
+			try {
+				TimeUnit.NANOSECONDS.sleep(Math.min(backoff, remaining));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+			backoff *= 2;
+		}
+	}
+
+	private boolean sendQueued() {
+		pending = 0;
+		if (TickDeadline.passed()) {
+			return deferred();
+		}
+		if (encodedBacklog != null) {
+			return sendEncoded();
+		}
+		if (batch != null) {
+			return sendBatch();
+		}
+		boolean sent = trySend(measures);
+		if (sent) {
+			measures.clear();
+			lowestPriorityHeld = Integer.MAX_VALUE;
+		}
+		return sent;
+	}
+
+	/**
+	 * Keeps the measures not sent for the next tick, the current one being out of time.
+	 * @return false, the measures not having been sent
+	 */
+	private boolean deferred() {
+		metrics.inc("deadline-deferred-sends", 1);
+		if (batch != null && batch.size() >= queueSize) {
+			// bounds the batch while ticks keep overrunning
+			backlog(batch);
+			batch.clear();
+		}
+		return false;
+	}
+
+	/**
+	 * Sends the {@link OutageBacklog}, in slices of the queue size, then the current batch, moving the batch into the
+	 * backlog if they could not be sent.
+	 */
+	private boolean sendBatch() {
+		OutageBacklog backlog = (OutageBacklog) measures;
+		boolean sent = true;
+		while (sent && !backlog.isEmpty()) {
+			if (TickDeadline.passed()) {
+				return deferred();
+			}
+			sent = trySend(backlog.peek(queueSize));
+			if (sent) {
+				backlog.removePeeked();
+			}
+		}
+		if (sent) {
+			sent = batch.isEmpty() || trySend(batch);
+		}
+		if (!sent) {
+			backlog(batch);
+		}
+		batch.clear();
+		return sent;
+	}
+
+	/**
+	 * Moves the given measures into the {@link OutageBacklog}, counting the measures it replaced or rejected as
+	 * dropped.
+	 */
+	private void backlog(Collection<Measure> unsent) {
+		for (Measure m : unsent) {
+			int size = measures.size();
+			measures.add(m);
+			int dropped = size + 1 - measures.size();
+			if (dropped > 0) {
+				metrics.dropped(dropped);
+			}
+		}
+	}
+
+	private boolean trySend(Collection<Measure> measuresToSend) {
+		int size = measuresToSend.size();
+		if (size > 0 && lastSendFailed) {
+			metrics.retried();
+		}
+
+		long start = System.nanoTime();
+		boolean sent = doSend(measuresToSend);
+		if (size > 0) {
+			if (sent) {
+				metrics.sent(System.nanoTime() - start, size);
+				blockTimedOut = false;
+			} else {
+				metrics.failed(System.nanoTime() - start, size);
 			}
+			lastSendFailed = !sent;
 		}
-		measures.add(m);
+		return sent;
+	}
+
+	/**
+	 * Sends the chunks of the encoded backlog then the measures, encoded once, putting the encoded measures into the
+	 * backlog if they could not be sent.
+	 */
+	private boolean sendEncoded() {
+		boolean sent = true;
+		EncodedBacklog.Chunk chunk;
+		while (sent && (chunk = encodedBacklog.peek()) != null) {
+			if (TickDeadline.passed()) {
+				// the measures are kept as they are, not encoded, for the next tick
+				return deferred();
+			}
+			sent = sendChunk(chunk);
+			if (sent) {
+				encodedBacklog.remove();
+			}
+		}
+
+		int size = measures.size();
+		if (size > 0) {
+			byte[] payload = encode(measures);
+			if (!sent || !sendChunk(EncodedBacklog.Chunk.wrap(payload, size))) {
+				sent = false;
+				int dropped = encodedBacklog.add(payload, size);
+				if (dropped > 0) {
+					metrics.dropped(dropped);
+				}
+			}
+			measures.clear();
+			lowestPriorityHeld = Integer.MAX_VALUE;
+		}
+		return sent;
+	}
+
+	private boolean sendChunk(EncodedBacklog.Chunk chunk) {
+		if (lastSendFailed) {
+			metrics.retried();
+		}
+		long start = System.nanoTime();
+		boolean sent = doSend(chunk);
+		lastSendFailed = !sent;
+		if (sent) {
+			metrics.sent(System.nanoTime() - start, chunk.points());
+			blockTimedOut = false;
+		} else {
+			metrics.failed(System.nanoTime() - start, chunk.points());
+		}
+		return sent;
+	}
+
+	/**
+	 * @return true if the sender implements {@link #encode(Collection)} and {@link #doSend(EncodedBacklog.Chunk)},
+	 * required by an {@link EncodedBacklog} and a {@link FanOutSender}; false by default
+	 */
+	protected boolean isEncodingSupported() {
+		return false;
+	}
+
+	/**
+	 * Serializes measures, for senders supporting encoding, see {@link #isEncodingSupported()}.
+	 * @param measuresToEncode the measures to serialize
+	 * @return the serialized measures
+	 */
+	protected byte[] encode(Collection<Measure> measuresToEncode) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support encoding");
+	}
+
+	/**
+	 * Sends already serialized measures, for senders supporting encoding, see {@link #isEncodingSupported()}.
+	 * @param chunk the serialized measures
+	 * @return true if the measures have been sent and can be discarded, false otherwise
+	 */
+	protected boolean doSend(EncodedBacklog.Chunk chunk) {
+		throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support encoding");
 	}
 
 	/**
@@ -48,5 +410,11 @@ public class QueueableSender extends AbstractSender {
 	@Override
 	public void close() throws IOException {
 		measures.clear();
+		if (batch != null) {
+			batch.clear();
+		}
+		if (encodedBacklog != null) {
+			encodedBacklog.clear();
+		}
 	}
 }
@@ -0,0 +1,174 @@
+package metrics2_influxdb.measurements;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * A {@link Sender} dispatching measures to destination senders, typically {@link HttpInlinerSender}s writing into
+ * different databases and retention policies.
+ * <br>
+ * A measure is sent to the destination of every matching {@link Rule}, or to the default destination when no rule
+ * matches; a destination shared by several matching rules gets the measure once. Each destination keeps its own
+ * batch, so a tick ends up in a single request per destination.
+ * <br>
+ * Must be used by a single reporting thread.
+ */
+public class RoutingSender implements Sender {
+	/**
+	 * Selects the measures sent to a destination.
+	 */
+	public interface Rule {
+		boolean matches(Measure m);
+	}
+
+	private final Sender defaultSender;
+	private final List<Rule> rules = new ArrayList<Rule>();
+	private final List<Sender> routes = new ArrayList<Sender>();
+	private final List<Sender> destinations = new ArrayList<Sender>();
+	private final List<Sender> sentTo = new ArrayList<Sender>();
+
+	/**
+	 * @param defaultSender the destination of the measures matching no rule, null to drop them
+	 */
+	public RoutingSender(Sender defaultSender) {
+		this.defaultSender = defaultSender;
+		if (defaultSender != null) {
+			destinations.add(defaultSender);
+		}
+	}
+
+	/**
+	 * Adds a route, rules are evaluated in the order they have been added.
+	 * @param rule the selector of the measures
+	 * @param destination the sender of the selected measures
+	 * @return {@code this}
+	 */
+	public RoutingSender route(Rule rule, Sender destination) {
+		rules.add(rule);
+		routes.add(destination);
+		if (!containsInstance(destinations, destination)) {
+			destinations.add(destination);
+		}
+		return this;
+	}
+
+	private static boolean containsInstance(List<Sender> senders, Sender sender) {
+		for (Sender s : senders) {
+			if (s == sender) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void send(Measure m) {
+		if (m == null) {
+			return;
+		}
+		sentTo.clear();
+		for (int i = 0; i < rules.size(); i++) {
+			if (rules.get(i).matches(m) && !containsInstance(sentTo, routes.get(i))) {
+				routes.get(i).send(m);
+				sentTo.add(routes.get(i));
+			}
+		}
+		if (sentTo.isEmpty() && defaultSender != null) {
+			defaultSender.send(m);
+		}
+	}
+
+	@Override
+	public void send(Collection<Measure> measures) {
+		if (measures == null) {
+			return;
+		}
+		for (Measure m : measures) {
+			send(m);
+		}
+	}
+
+	@Override
+	public void flush() {
+		for (Sender destination : destinations) {
+			destination.flush();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		IOException failure = null;
+		for (Sender destination : destinations) {
+			try {
+				destination.close();
+			} catch (IOException e) {
+				failure = e;
+			}
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	/**
+	 * @param regex the pattern the whole measurement name must match
+	 * @return a rule selecting measures by their measurement name
+	 */
+	public static Rule measurement(String regex) {
+		final Pattern pattern = Pattern.compile(regex);
+		return new Rule() {
+			@Override
+			public boolean matches(Measure m) {
+				return pattern.matcher(m.getName()).matches();
+			}
+		};
+	}
+
+	/**
+	 * @param key the tag key
+	 * @param regex the pattern the whole tag value must match
+	 * @return a rule selecting measures by the value of one of their tags
+	 */
+	public static Rule tag(final String key, String regex) {
+		final Pattern pattern = Pattern.compile(regex);
+		return new Rule() {
+			@Override
+			public boolean matches(Measure m) {
+				String value = m.getTags().get(key);
+				return value != null && pattern.matcher(value).matches();
+			}
+		};
+	}
+
+	/**
+	 * @param types the types of metrics, see {@link Measure#getType()}
+	 * @return a rule selecting measures by the type of the metric they have been made of
+	 */
+	public static Rule type(String... types) {
+		final Set<String> selected = new HashSet<String>(Arrays.asList(types));
+		return new Rule() {
+			@Override
+			public boolean matches(Measure m) {
+				return m.getType() != null && selected.contains(m.getType());
+			}
+		};
+	}
+
+	/**
+	 * @return a rule selecting all measures
+	 */
+	public static Rule all() {
+		return new Rule() {
+			@Override
+			public boolean matches(Measure m) {
+				return true;
+			}
+		};
+	}
+}
@@ -0,0 +1,300 @@
+package metrics2_influxdb.measurements;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import metrics2_influxdb.misc.BoundedFIFO;
+import metrics2_influxdb.misc.Miscellaneous;
+import metrics2_influxdb.reporting.TickDeadline;
+import metrics2_influxdb.serialization.line.Inliner;
+
+/**
+ * Writes newline delimited line protocol over a persistent stream connection, opened by the subclasses.
+ * <br>
+ * The measures are encoded in slices written together with a gathering write, without copying them into a single
+ * buffer. The connection is opened on the first send and kept; when it breaks, or the peer closed it, it is opened
+ * again, backing off exponentially while the peer cannot be reached. The measures are kept in the backlog until
+ * written.
+ * <br>
+ * The socket send buffer is bounded, see {@link #setMaxInFlightBytes(int)}: it bounds the bytes written but not yet
+ * delivered. The last lines written, up to twice that size (the kernel may double the requested buffer), are kept and
+ * written again first when a write fails or the connection is reset, since the bytes the kernel accepted are lost
+ * with it. Points being idempotent in InfluxDB, the ones delivered twice overwrite themselves. An orderly close by the
+ * peer is taken as everything written having been read, and the bytes received but not yet read when the peer
+ * crashes are lost: delivery is at least once for the window only.
+ */
+public abstract class StreamInlinerSender extends QueueableSender {
+	private final static Logger LOGGER = LoggerFactory.getLogger(StreamInlinerSender.class);
+	private static final int MAX_MEASURES_PER_WRITE = 5000;
+	private static final int MEASURES_PER_SLICE = 500;
+	private static final long WRITE_TIMEOUT_IN_NANOS = TimeUnit.SECONDS.toNanos(2);
+	private static final long FIRST_BACKOFF_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long MAX_BACKOFF_IN_NANOS = TimeUnit.SECONDS.toNanos(30);
+	private static final byte[] NEW_LINE = { '\n' };
+
+	private final Inliner inliner;
+	private final String peer;
+	private int maxInFlightBytes = 64 * 1024;
+	private SocketChannel channel;
+	private Selector selector;
+	private long backoffInNanos;
+	private long nextConnect;
+	// the tail of the lines written, starting on a line
+	private byte[] window;
+	private int windowLength;
+	private boolean resendWindow;
+
+	/**
+	 * @param peer describes the peer in the logs
+	 * @param backlog holds the measures while they cannot be sent, null for a {@link BoundedFIFO}
+	 */
+	protected StreamInlinerSender(String peer, Collection<Measure> backlog) {
+		super(MAX_MEASURES_PER_WRITE, backlog != null ? backlog : new BoundedFIFO<Measure>(MAX_MEASURES_PER_WRITE));
+		this.inliner = new Inliner(TimeUnit.NANOSECONDS);
+		this.inliner.setSortedBySeries(true);
+		this.peer = peer;
+	}
+
+	/**
+	 * @param sortedBySeries true to write the points of each slice grouped by series, default to true
+	 * @see Inliner#setSortedBySeries(boolean)
+	 */
+	public void setSortedBySeries(boolean sortedBySeries) {
+		inliner.setSortedBySeries(sortedBySeries);
+	}
+
+	/**
+	 * Opens a blocking connection to the peer.
+	 * @param sendBufferSize the size of the send buffer to set, when supported
+	 * @return the connected channel
+	 * @throws IOException if the peer cannot be reached
+	 */
+	protected abstract SocketChannel openChannel(int sendBufferSize) throws IOException;
+
+	/**
+	 * @param maxInFlightBytes the size of the socket send buffer, default to 64KB, taken into account on the next
+	 * connection, when the socket supports it; the lines written again after a reset are twice that size
+	 */
+	public void setMaxInFlightBytes(int maxInFlightBytes) {
+		if (maxInFlightBytes < 1) {
+			throw new IllegalArgumentException("maxInFlightBytes must be positive: " + maxInFlightBytes);
+		}
+		this.maxInFlightBytes = maxInFlightBytes;
+		this.window = null;
+		this.windowLength = 0;
+	}
+
+	@Override
+	protected boolean doSend(Collection<Measure> measures) {
+		if (measures.isEmpty()) {
+			return true;
+		}
+		long encodeStart = System.nanoTime();
+		List<ByteBuffer> slices = new ArrayList<ByteBuffer>();
+		List<Measure> slice = new ArrayList<Measure>(Math.min(MEASURES_PER_SLICE, measures.size()));
+		for (Iterator<Measure> it = measures.iterator(); it.hasNext();) {
+			slice.add(it.next());
+			if (slice.size() == MEASURES_PER_SLICE || !it.hasNext()) {
+				slices.add(ByteBuffer.wrap(inliner.inline(slice).getBytes(Miscellaneous.UTF8)));
+				slices.add(ByteBuffer.wrap(NEW_LINE));
+				slice.clear();
+			}
+		}
+		metrics.encoded(System.nanoTime() - encodeStart);
+		return write(slices.toArray(new ByteBuffer[slices.size()]), measures.size());
+	}
+
+	@Override
+	protected boolean isEncodingSupported() {
+		return true;
+	}
+
+	@Override
+	protected byte[] encode(Collection<Measure> measures) {
+		long encodeStart = System.nanoTime();
+		byte[] payload = (inliner.inline(measures) + "\n").getBytes(Miscellaneous.UTF8);
+		metrics.encoded(System.nanoTime() - encodeStart);
+		return payload;
+	}
+
+	@Override
+	protected boolean doSend(EncodedBacklog.Chunk chunk) {
+		if (chunk.isCompressed()) {
+			LOGGER.error("cannot write gzip compressed measures to {}", peer);
+			return false;
+		}
+		return write(chunk.toByteBuffers(), chunk.points());
+	}
+
+	private boolean write(ByteBuffer[] buffers, int points) {
+		if (!connected()) {
+			return false;
+		}
+		ByteBuffer[] sent = new ByteBuffer[buffers.length];
+		for (int i = 0; i < buffers.length; i++) {
+			sent[i] = buffers[i].duplicate();
+		}
+		if (resendWindow && windowLength > 0) {
+			ByteBuffer[] withWindow = new ByteBuffer[buffers.length + 1];
+			withWindow[0] = ByteBuffer.wrap(window, 0, windowLength);
+			System.arraycopy(buffers, 0, withWindow, 1, buffers.length);
+			buffers = withWindow;
+		}
+		long remaining = 0;
+		for (ByteBuffer buffer : buffers) {
+			remaining += buffer.remaining();
+		}
+		long deadline = System.nanoTime() + TickDeadline.remainingNanos(WRITE_TIMEOUT_IN_NANOS);
+		try {
+			while (remaining > 0) {
+				long written = channel.write(buffers);
+				metrics.written(written);
+				remaining -= written;
+				if (remaining > 0) {
+					// the send buffer is full, wait for the peer to read
+					long timeout = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+					if (timeout <= 0 || selector.select(timeout) == 0) {
+						throw new IOException("write timed out");
+					}
+					selector.selectedKeys().clear();
+				}
+			}
+			LOGGER.debug("{} Measures sent to {}", points, peer);
+			resendWindow = false;
+			keepWritten(sent);
+			return true;
+		} catch (IOException e) {
+			// the measures are kept and written again on a new connection, after the window
+			LOGGER.warn("couldn't write metrics to {}, reason: {}", peer, e.getMessage());
+			resendWindow = true;
+			disconnect();
+			return false;
+		}
+	}
+
+	/**
+	 * Appends the given written bytes to the window, dropping its oldest lines beyond its capacity.
+	 */
+	private void keepWritten(ByteBuffer[] written) {
+		if (window == null) {
+			window = new byte[2 * maxInFlightBytes];
+		}
+		boolean lineStart = true;
+		for (ByteBuffer buffer : written) {
+			int length = buffer.remaining();
+			int dropped = windowLength + length - window.length;
+			if (dropped > 0) {
+				if (length >= window.length) {
+					int from = buffer.limit() - window.length;
+					lineStart = from > buffer.position()
+							? buffer.get(from - 1) == '\n'
+							: windowLength == 0 || window[windowLength - 1] == '\n';
+					buffer.position(from);
+					length = window.length;
+					windowLength = 0;
+				} else {
+					lineStart = window[dropped - 1] == '\n';
+					System.arraycopy(window, dropped, window, 0, windowLength - dropped);
+					windowLength -= dropped;
+				}
+			}
+			buffer.get(window, windowLength, length);
+			windowLength += length;
+		}
+		if (!lineStart) {
+			// a truncated line would be rejected, the window starts after it
+			int next = 0;
+			while (next < windowLength && window[next] != '\n') {
+				next++;
+			}
+			next = Math.min(windowLength, next + 1);
+			System.arraycopy(window, next, window, 0, windowLength - next);
+			windowLength -= next;
+		}
+	}
+
+	/**
+	 * @return true if the connection is open, opening it if needed and not backing off
+	 */
+	private boolean connected() {
+		if (channel != null) {
+			try {
+				if (peerClosed()) {
+					LOGGER.info("{} closed the connection, reconnecting", peer);
+					disconnect();
+				}
+			} catch (IOException e) {
+				// what the peer had not read yet is lost
+				LOGGER.warn("connection to {} broken, reconnecting, reason: {}", peer, e.getMessage());
+				resendWindow = true;
+				disconnect();
+			}
+		}
+		if (channel != null) {
+			return true;
+		}
+		if (System.nanoTime() - nextConnect < 0) {
+			return false;
+		}
+		try {
+			channel = openChannel(maxInFlightBytes);
+			channel.configureBlocking(false);
+			selector = Selector.open();
+			channel.register(selector, SelectionKey.OP_WRITE);
+			backoffInNanos = 0;
+			return true;
+		} catch (IOException | RuntimeException e) {
+			backoffInNanos = backoffInNanos == 0 ? FIRST_BACKOFF_IN_NANOS : Math.min(MAX_BACKOFF_IN_NANOS, backoffInNanos * 2);
+			nextConnect = System.nanoTime() + backoffInNanos;
+			LOGGER.warn("couldn't connect to {}, retrying in {}ms, reason: {}", peer, TimeUnit.NANOSECONDS.toMillis(backoffInNanos), e.getMessage());
+			disconnect();
+			return false;
+		}
+	}
+
+	/**
+	 * @return true if the peer closed the connection, which a write would only report on a later write
+	 * @throws IOException if the connection has been reset
+	 */
+	private boolean peerClosed() throws IOException {
+		// the peer never writes, anything read is discarded
+		ByteBuffer probe = ByteBuffer.allocate(256);
+		int read;
+		while ((read = channel.read(probe)) > 0) {
+			probe.clear();
+		}
+		return read < 0;
+	}
+
+	private void disconnect() {
+		try {
+			if (selector != null) {
+				selector.close();
+			}
+			if (channel != null) {
+				channel.close();
+			}
+		} catch (IOException e) {
+			LOGGER.debug("failed to close the connection to {}", peer, e);
+		}
+		selector = null;
+		channel = null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		disconnect();
+		super.close();
+	}
+}
@@ -0,0 +1,48 @@
+package metrics2_influxdb.measurements;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import metrics2_influxdb.TcpInfluxdbProtocol;
+import metrics2_influxdb.reporting.TickDeadline;
+
+/**
+ * Writes newline delimited line protocol over a persistent TCP connection, see {@link StreamInlinerSender}.
+ */
+public class TcpInlinerSender extends StreamInlinerSender {
+	private static final long CONNECT_TIMEOUT_IN_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+	private final InetSocketAddress serverAddress;
+
+	public TcpInlinerSender(TcpInfluxdbProtocol protocol) {
+		this(protocol, null);
+	}
+
+	/**
+	 * @param protocol the agent or InfluxDB server to write to
+	 * @param backlog holds the measures while they cannot be sent, see {@link CoalescingBacklog}, null for a bounded FIFO
+	 */
+	public TcpInlinerSender(TcpInfluxdbProtocol protocol, Collection<Measure> backlog) {
+		super("TCP[" + protocol.host + ":" + protocol.port + "]", backlog);
+		serverAddress = new InetSocketAddress(protocol.host, protocol.port);
+	}
+
+	@Override
+	protected SocketChannel openChannel(int sendBufferSize) throws IOException {
+		SocketChannel channel = SocketChannel.open();
+		try {
+			channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+			channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+			int timeout = (int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(TickDeadline.remainingNanos(CONNECT_TIMEOUT_IN_NANOS)));
+			channel.socket().connect(serverAddress, timeout);
+			return channel;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+}
@@ -12,6 +12,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import metrics2_influxdb.UdpInfluxdbProtocol;
+import metrics2_influxdb.misc.BoundedFIFO;
 import metrics2_influxdb.misc.Miscellaneous;
 import metrics2_influxdb.serialization.line.Inliner;
 
@@ -22,7 +23,15 @@ public class UdpInlinerSender extends QueueableSender {
 	private final InetSocketAddress serverAddress;
 
 	public UdpInlinerSender(UdpInfluxdbProtocol protocol) {
-		super(MAX_MEASURES_IN_SINGLE_POST);
+		this(protocol, new BoundedFIFO<Measure>(MAX_MEASURES_IN_SINGLE_POST));
+	}
+
+	/**
+	 * @param protocol the InfluxDB server to write to
+	 * @param backlog holds the measures while they cannot be sent, see {@link CoalescingBacklog}
+	 */
+	public UdpInlinerSender(UdpInfluxdbProtocol protocol, Collection<Measure> backlog) {
+		super(MAX_MEASURES_IN_SINGLE_POST, backlog);
 		inliner = new Inliner(TimeUnit.NANOSECONDS);
 		serverAddress = new InetSocketAddress(protocol.host, protocol.port);
 	}
@@ -44,14 +53,17 @@ public class UdpInlinerSender extends QueueableSender {
 		int errorCounter = 0;
 		int successCounter = 0;
 		while(measuresIterator.hasNext()) {
+			long encodeStart = System.nanoTime();
 			String measuresAsString = inliner.inline(measuresIterator.next());
+			byte[] payload = measuresAsString.getBytes(Miscellaneous.UTF8);
+			metrics.encoded(System.nanoTime() - encodeStart);
 			try {
 				if (LOGGER.isDebugEnabled()) {
 					LOGGER.debug("Measure being sent:\n{}", measuresAsString);
 				}
 
-				ByteBuffer buffer = ByteBuffer.wrap(measuresAsString.getBytes(Miscellaneous.UTF8));
-				channel.send(buffer, serverAddress);
+				ByteBuffer buffer = ByteBuffer.wrap(payload);
+				metrics.written(channel.send(buffer, serverAddress));
 				successCounter++;
 			} catch (Throwable e) {
 				errorCounter++;
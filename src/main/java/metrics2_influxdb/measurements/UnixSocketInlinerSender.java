@@ -0,0 +1,94 @@
+package metrics2_influxdb.measurements;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+import metrics2_influxdb.UnixSocketInfluxdbProtocol;
+import metrics2_influxdb.reporting.TickDeadline;
+
+/**
+ * Writes newline delimited line protocol over a Unix domain stream socket, see {@link StreamInlinerSender}, saving
+ * the cost of the loopback network stack for a co-located agent.
+ * <br>
+ * The Unix domain sockets of Java 16 and later are looked up at runtime, this library targeting older runtimes;
+ * the construction fails with an {@link UnsupportedOperationException} on a runtime without them.
+ */
+public class UnixSocketInlinerSender extends StreamInlinerSender {
+	private static final long CONNECT_TIMEOUT_IN_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+	private final SocketAddress address;
+	private final ProtocolFamily unix;
+	private final Method open;
+
+	public UnixSocketInlinerSender(UnixSocketInfluxdbProtocol protocol) {
+		this(protocol, null);
+	}
+
+	/**
+	 * @param protocol the socket of the agent to write to
+	 * @param backlog holds the measures while they cannot be sent, see {@link CoalescingBacklog}, null for a bounded FIFO
+	 */
+	public UnixSocketInlinerSender(UnixSocketInfluxdbProtocol protocol, Collection<Measure> backlog) {
+		super("unix[" + protocol.path + "]", backlog);
+		try {
+			Class<?> addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+			address = (SocketAddress) addressClass.getMethod("of", String.class).invoke(null, protocol.path);
+			unix = StandardProtocolFamily.valueOf("UNIX");
+			open = SocketChannel.class.getMethod("open", ProtocolFamily.class);
+		} catch (ClassNotFoundException | NoSuchMethodException | IllegalArgumentException e) {
+			throw new UnsupportedOperationException("Unix domain sockets require a Java 16 or later runtime", e);
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			throw new IllegalArgumentException("invalid Unix domain socket path: " + protocol.path, e);
+		}
+	}
+
+	@Override
+	protected SocketChannel openChannel(int sendBufferSize) throws IOException {
+		SocketChannel channel;
+		try {
+			channel = (SocketChannel) open.invoke(null, unix);
+		} catch (IllegalAccessException | InvocationTargetException e) {
+			throw new IOException("failed to open a Unix domain socket", e.getCause() != null ? e.getCause() : e);
+		}
+		try {
+			if (channel.supportedOptions().contains(StandardSocketOptions.SO_SNDBUF)) {
+				channel.setOption(StandardSocketOptions.SO_SNDBUF, sendBufferSize);
+			}
+			connect(channel);
+			return channel;
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Connects without blocking past the connect timeout: once a listener which does not accept has filled its
+	 * backlog, a blocking connect waits for it indefinitely, where a non blocking one fails or is pending.
+	 */
+	private void connect(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		if (!channel.connect(address)) {
+			try (Selector selector = Selector.open()) {
+				channel.register(selector, SelectionKey.OP_CONNECT);
+				long timeout = Math.max(1, TimeUnit.NANOSECONDS.toMillis(TickDeadline.remainingNanos(CONNECT_TIMEOUT_IN_NANOS)));
+				if (selector.select(timeout) == 0) {
+					throw new SocketTimeoutException("connect timed out");
+				}
+				channel.finishConnect();
+			}
+		}
+		channel.configureBlocking(true);
+	}
+}
@@ -0,0 +1,16 @@
+package metrics2_influxdb.metrics;
+
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricProcessor;
+
+/**
+ * A {@link MetricProcessor} which understands the metrics types of this library.
+ * <br>
+ * Those metrics are registered in a {@link com.yammer.metrics.core.MetricsRegistry} as gauges; processors
+ * which do not implement this interface see them as such.
+ */
+public interface ExtendedMetricProcessor<T> extends MetricProcessor<T> {
+	public void processIntervalRecorder(MetricName name, IntervalRecorder recorder, T context) throws Exception;
+
+	public void processStripedCounter(MetricName name, StripedCounter counter, T context) throws Exception;
+}
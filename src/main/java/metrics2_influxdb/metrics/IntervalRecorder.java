@@ -0,0 +1,294 @@
+package metrics2_influxdb.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricProcessor;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * A latency recorder reporting exact percentiles of the last interval, with a bounded relative error.
+ * <br>
+ * Durations are counted in log-linear buckets (HDR histogram style): each power of 2 is split into
+ * 2<sup>precisionBits</sup> linear sub-buckets, so a value is known with a relative error lower than
+ * 2<sup>-precisionBits</sup>. Recording is lock-free: writers increment the counters of the active buffer, and
+ * each report swaps the active and inactive buffers, reads the inactive one and resets it. No value is sorted
+ * and nothing is smoothed over more than one interval.
+ * <br>
+ * A recorder must be reported by a single reporter, as each report consumes the interval. It is registered as a
+ * {@link Gauge} (see {@link #register(MetricsRegistry, MetricName)}) without value for the reporters which do not
+ * implement {@link ExtendedMetricProcessor}.
+ */
+public class IntervalRecorder extends Gauge<Long> {
+	public static final int DEFAULT_PRECISION_BITS = 6;
+	public static final long DEFAULT_HIGHEST_TRACKABLE_IN_NANOS = TimeUnit.HOURS.toNanos(1);
+
+	private final TimeUnit durationUnit;
+	private final int precisionBits;
+	private final int subBucketCount;
+	private final Buffer even;
+	private final Buffer odd;
+	private final long[] counts;
+	private final IntervalSnapshot snapshot;
+
+	// writer/reader phaser: writers announce themselves on start, and on end in the epoch of their phase
+	private final AtomicLong startEpoch = new AtomicLong(0);
+	private final AtomicLong evenEndEpoch = new AtomicLong(0);
+	private final AtomicLong oddEndEpoch = new AtomicLong(Long.MIN_VALUE);
+
+	/**
+	 * Registers a new recorder reporting milliseconds, tracking up to 1 hour with a 1.6% precision.
+	 */
+	public static IntervalRecorder register(MetricsRegistry registry, MetricName name) {
+		return register(registry, name, new IntervalRecorder(TimeUnit.MILLISECONDS, DEFAULT_HIGHEST_TRACKABLE_IN_NANOS, TimeUnit.NANOSECONDS, DEFAULT_PRECISION_BITS));
+	}
+
+	/**
+	 * Registers the given recorder, or returns the one already registered with the given name.
+	 * @throws IllegalArgumentException if another type of metric is registered with the given name
+	 */
+	public static IntervalRecorder register(MetricsRegistry registry, MetricName name, IntervalRecorder recorder) {
+		Gauge<?> registered = registry.newGauge(name, recorder);
+		if (!(registered instanceof IntervalRecorder)) {
+			throw new IllegalArgumentException("a metric which is not an IntervalRecorder is already registered as " + name);
+		}
+		return (IntervalRecorder) registered;
+	}
+
+	/**
+	 * @param durationUnit the unit of the reported values
+	 * @param highestTrackable the highest duration recorded precisely, longer ones are counted in the last bucket
+	 * @param unit the unit of highestTrackable
+	 * @param precisionBits the number of bits of precision, from 1 to 10
+	 */
+	public IntervalRecorder(TimeUnit durationUnit, long highestTrackable, TimeUnit unit, int precisionBits) {
+		if (precisionBits < 1 || precisionBits > 10) {
+			throw new IllegalArgumentException("given precisionBits must be between 1 and 10");
+		}
+		this.durationUnit = durationUnit;
+		this.precisionBits = precisionBits;
+		this.subBucketCount = 1 << precisionBits;
+		int length = index(Math.max(unit.toNanos(highestTrackable), subBucketCount)) + 1;
+		this.even = new Buffer(length);
+		this.odd = new Buffer(length);
+		this.counts = new long[length];
+		this.snapshot = new IntervalSnapshot();
+	}
+
+	/**
+	 * Records a duration.
+	 */
+	public void update(long duration, TimeUnit unit) {
+		long nanos = unit.toNanos(duration);
+		if (nanos < 0) {
+			return;
+		}
+		long epoch = startEpoch.getAndIncrement();
+		if (epoch < 0) {
+			odd.record(nanos, Math.min(index(nanos), counts.length - 1));
+			oddEndEpoch.getAndIncrement();
+		} else {
+			even.record(nanos, Math.min(index(nanos), counts.length - 1));
+			evenEndEpoch.getAndIncrement();
+		}
+	}
+
+	/**
+	 * @return a context whose {@link Context#stop()} records the elapsed time
+	 */
+	public Context time() {
+		return new Context(this);
+	}
+
+	public TimeUnit durationUnit() {
+		return durationUnit;
+	}
+
+	/**
+	 * Ends the current interval and returns its summary.
+	 * The returned snapshot is reused, it is valid until the next call.
+	 */
+	public synchronized IntervalSnapshot intervalSnapshot() {
+		// flip the phase and wait for the writers of the previous phase to be done with their buffer
+		boolean nextPhaseIsEven = startEpoch.get() < 0;
+		long initialStartValue = nextPhaseIsEven ? 0 : Long.MIN_VALUE;
+		(nextPhaseIsEven ? evenEndEpoch : oddEndEpoch).set(initialStartValue);
+		long startValueAtFlip = startEpoch.getAndSet(initialStartValue);
+		AtomicLong previousEndEpoch = nextPhaseIsEven ? oddEndEpoch : evenEndEpoch;
+		while (previousEndEpoch.get() != startValueAtFlip) {
+			Thread.yield();
+		}
+
+		Buffer inactive = nextPhaseIsEven ? odd : even;
+		long count = 0;
+		for (int i = 0; i < counts.length; i++) {
+			long c = inactive.counts.get(i);
+			if (c != 0) {
+				inactive.counts.set(i, 0);
+			}
+			counts[i] = c;
+			count += c;
+		}
+		snapshot.count = count;
+		snapshot.sum = inactive.sum.getAndSet(0);
+		snapshot.min = inactive.min.getAndSet(Long.MAX_VALUE);
+		snapshot.max = inactive.max.getAndSet(0);
+		return snapshot;
+	}
+
+	/**
+	 * Seen as a gauge without value by reporters which do not understand recorders.
+	 */
+	@Override
+	public Long value() {
+		return null;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <U> void processWith(MetricProcessor<U> processor, MetricName name, U context) throws Exception {
+		if (processor instanceof ExtendedMetricProcessor) {
+			((ExtendedMetricProcessor<U>) processor).processIntervalRecorder(name, this, context);
+		} else {
+			super.processWith(processor, name, context);
+		}
+	}
+
+	private int index(long nanos) {
+		if (nanos < subBucketCount) {
+			return (int) nanos;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+		long subBucket = nanos >>> (exponent - precisionBits);
+		return (int) ((exponent - precisionBits) * subBucketCount + subBucket);
+	}
+
+	private long lowestOf(int index) {
+		if (index < 2 * subBucketCount) {
+			return index;
+		}
+		int shift = index / subBucketCount - 1;
+		return ((long) (index % subBucketCount + subBucketCount)) << shift;
+	}
+
+	private long highestOf(int index) {
+		if (index < 2 * subBucketCount) {
+			return index;
+		}
+		int shift = index / subBucketCount - 1;
+		return lowestOf(index) + (1L << shift) - 1;
+	}
+
+	private double toDurationUnit(double nanos) {
+		return nanos / durationUnit.toNanos(1);
+	}
+
+	private static class Buffer {
+		private final AtomicLongArray counts;
+		private final AtomicLong sum = new AtomicLong();
+		private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+		private final AtomicLong max = new AtomicLong();
+
+		Buffer(int length) {
+			counts = new AtomicLongArray(length);
+		}
+
+		void record(long nanos, int index) {
+			counts.incrementAndGet(index);
+			sum.addAndGet(nanos);
+			long current;
+			while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+				// retry
+			}
+			while (nanos < (current = min.get()) && !min.compareAndSet(current, nanos)) {
+				// retry
+			}
+		}
+	}
+
+	/**
+	 * Records the elapsed time on {@link #stop()}.
+	 */
+	public static class Context {
+		private final IntervalRecorder recorder;
+		private final long start;
+
+		private Context(IntervalRecorder recorder) {
+			this.recorder = recorder;
+			this.start = System.nanoTime();
+		}
+
+		public void stop() {
+			recorder.update(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * The summary of an interval, values are expressed in the duration unit of the recorder.
+	 */
+	public class IntervalSnapshot {
+		private long count;
+		private long sum;
+		private long min;
+		private long max;
+
+		private IntervalSnapshot() {
+		}
+
+		public long count() {
+			return count;
+		}
+
+		public double min() {
+			return count == 0 ? 0 : toDurationUnit(min);
+		}
+
+		public double max() {
+			return count == 0 ? 0 : toDurationUnit(max);
+		}
+
+		public double mean() {
+			return count == 0 ? 0 : toDurationUnit((double) sum / count);
+		}
+
+		/**
+		 * @param quantile a quantile between 0 and 1
+		 * @return the value under which the given quantile of the interval durations fall
+		 */
+		public double getValue(double quantile) {
+			if (count == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(quantile * count));
+			long seen = 0;
+			int i = 0;
+			while (i < counts.length - 1 && (seen += counts[i]) < rank) {
+				i++;
+			}
+			long middle = lowestOf(i) + (highestOf(i) - lowestOf(i)) / 2;
+			return toDurationUnit(Math.max(min, Math.min(max, middle)));
+		}
+
+		/**
+		 * @param boundaries ascending bounds, expressed in the duration unit of the recorder
+		 * @return for each boundary, the number of durations lower or equal to it, at the precision of the buckets
+		 */
+		public long[] cumulativeCounts(double[] boundaries) {
+			long[] cumulative = new long[boundaries.length];
+			long seen = 0;
+			int i = 0;
+			for (int b = 0; b < boundaries.length; b++) {
+				double boundaryInNanos = boundaries[b] * durationUnit.toNanos(1);
+				while (i < counts.length && highestOf(i) <= boundaryInNanos) {
+					seen += counts[i];
+					i++;
+				}
+				cumulative[b] = seen;
+			}
+			return cumulative;
+		}
+	}
+}
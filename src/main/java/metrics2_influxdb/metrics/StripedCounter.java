@@ -0,0 +1,76 @@
+package metrics2_influxdb.metrics;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricProcessor;
+import com.yammer.metrics.core.MetricsRegistry;
+
+/**
+ * A counter for highly contended increments: unlike {@link Counter} and its single atomic long, the count is split
+ * into cells summed only when read, so that an increment costs one uncontended add.
+ * <br>
+ * Registered as a {@link Gauge} (see {@link #register(MetricsRegistry, MetricName)}), whose value is the count for
+ * the reporters which do not implement {@link ExtendedMetricProcessor}.
+ */
+public class StripedCounter extends Gauge<Long> {
+	private final Stripes stripes;
+
+	/**
+	 * Registers a new counter, or returns the one already registered with the given name.
+	 * @throws IllegalArgumentException if another type of metric is registered with the given name
+	 */
+	public static StripedCounter register(MetricsRegistry registry, MetricName name) {
+		Gauge<?> registered = registry.newGauge(name, new StripedCounter());
+		if (!(registered instanceof StripedCounter)) {
+			throw new IllegalArgumentException("a metric which is not a StripedCounter is already registered as " + name);
+		}
+		return (StripedCounter) registered;
+	}
+
+	public StripedCounter() {
+		this(Stripes.defaultStripes());
+	}
+
+	/**
+	 * @param stripes the number of cells, rounded up to a power of 2
+	 */
+	public StripedCounter(int stripes) {
+		this.stripes = new Stripes(stripes);
+	}
+
+	public void inc() {
+		stripes.add(1);
+	}
+
+	public void inc(long n) {
+		stripes.add(n);
+	}
+
+	public void dec() {
+		stripes.add(-1);
+	}
+
+	public void dec(long n) {
+		stripes.add(-n);
+	}
+
+	public long count() {
+		return stripes.sum();
+	}
+
+	@Override
+	public Long value() {
+		return count();
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public <U> void processWith(MetricProcessor<U> processor, MetricName name, U context) throws Exception {
+		if (processor instanceof ExtendedMetricProcessor) {
+			((ExtendedMetricProcessor<U>) processor).processStripedCounter(name, this, context);
+		} else {
+			super.processWith(processor, name, context);
+		}
+	}
+}
@@ -0,0 +1,146 @@
+package metrics2_influxdb.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Meter;
+import com.yammer.metrics.core.Metered;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricProcessor;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.stats.EWMA;
+
+/**
+ * A meter for highly contended marks: unlike {@link Meter}, which updates an atomic count and three moving averages
+ * on each mark, a mark costs one uncontended add in a striped count. The moving averages are caught up lazily, on
+ * read, with the marks counted since the last read spread over the elapsed ticks.
+ * <br>
+ * Registered as a {@link Gauge} (see {@link #register(MetricsRegistry, MetricName, String, TimeUnit)}) but processed
+ * as a {@link Metered} by every reporter.
+ */
+public class StripedMeter extends Gauge<Long> implements Metered {
+	private static final long TICK_INTERVAL = TimeUnit.SECONDS.toNanos(5);
+
+	private final Stripes stripes;
+	private final String eventType;
+	private final TimeUnit rateUnit;
+	private final Clock clock;
+	private final long startTime;
+	private final EWMA m1Rate = EWMA.oneMinuteEWMA();
+	private final EWMA m5Rate = EWMA.fiveMinuteEWMA();
+	private final EWMA m15Rate = EWMA.fifteenMinuteEWMA();
+	private long lastTick;
+	private long lastTickCount;
+
+	/**
+	 * Registers a new meter, or returns the one already registered with the given name.
+	 * @throws IllegalArgumentException if another type of metric is registered with the given name
+	 */
+	public static StripedMeter register(MetricsRegistry registry, MetricName name, String eventType, TimeUnit rateUnit) {
+		Gauge<?> registered = registry.newGauge(name, new StripedMeter(eventType, rateUnit, Clock.defaultClock(), Stripes.defaultStripes()));
+		if (!(registered instanceof StripedMeter)) {
+			throw new IllegalArgumentException("a metric which is not a StripedMeter is already registered as " + name);
+		}
+		return (StripedMeter) registered;
+	}
+
+	/**
+	 * @param eventType the plural name of the marked events
+	 * @param rateUnit the unit of the rates
+	 * @param clock the clock ticking the moving averages
+	 * @param stripes the number of cells, rounded up to a power of 2
+	 */
+	public StripedMeter(String eventType, TimeUnit rateUnit, Clock clock, int stripes) {
+		this.stripes = new Stripes(stripes);
+		this.eventType = eventType;
+		this.rateUnit = rateUnit;
+		this.clock = clock;
+		this.startTime = clock.tick();
+		this.lastTick = startTime;
+	}
+
+	public void mark() {
+		stripes.add(1);
+	}
+
+	public void mark(long n) {
+		stripes.add(n);
+	}
+
+	@Override
+	public long count() {
+		return stripes.sum();
+	}
+
+	@Override
+	public TimeUnit rateUnit() {
+		return rateUnit;
+	}
+
+	@Override
+	public String eventType() {
+		return eventType;
+	}
+
+	@Override
+	public double oneMinuteRate() {
+		tickIfNecessary();
+		return m1Rate.rate(rateUnit);
+	}
+
+	@Override
+	public double fiveMinuteRate() {
+		tickIfNecessary();
+		return m5Rate.rate(rateUnit);
+	}
+
+	@Override
+	public double fifteenMinuteRate() {
+		tickIfNecessary();
+		return m15Rate.rate(rateUnit);
+	}
+
+	@Override
+	public double meanRate() {
+		long count = count();
+		if (count == 0) {
+			return 0.0;
+		}
+		long elapsed = clock.tick() - startTime;
+		return ((double) count / elapsed) * TimeUnit.NANOSECONDS.convert(1, rateUnit);
+	}
+
+	@Override
+	public Long value() {
+		return count();
+	}
+
+	@Override
+	public <U> void processWith(MetricProcessor<U> processor, MetricName name, U context) throws Exception {
+		processor.processMeter(name, this, context);
+	}
+
+	private synchronized void tickIfNecessary() {
+		long now = clock.tick();
+		long ticks = (now - lastTick) / TICK_INTERVAL;
+		if (ticks <= 0) {
+			return;
+		}
+		lastTick += ticks * TICK_INTERVAL;
+
+		long count = count();
+		long marks = count - lastTickCount;
+		lastTickCount = count;
+		for (long t = 0; t < ticks; t++) {
+			// spread the marks over the elapsed ticks, the remainder on the last one
+			long share = (t == ticks - 1) ? marks - (marks / ticks) * (ticks - 1) : marks / ticks;
+			m1Rate.update(share);
+			m5Rate.update(share);
+			m15Rate.update(share);
+			m1Rate.tick();
+			m5Rate.tick();
+			m15Rate.tick();
+		}
+	}
+}
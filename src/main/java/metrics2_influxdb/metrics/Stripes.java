@@ -0,0 +1,49 @@
+package metrics2_influxdb.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A long split into padded cells, each thread adding to the cell of its id.
+ * Adds are uncontended as long as threads hit distinct cells; reads sum all the cells.
+ */
+class Stripes {
+	// one cell per 64 bytes cache line
+	private static final int PADDING = 8;
+
+	private final AtomicLongArray cells;
+	private final int mask;
+
+	/**
+	 * @param stripes the minimal number of cells, rounded up to a power of 2
+	 */
+	Stripes(int stripes) {
+		int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+		this.mask = size - 1;
+		this.cells = new AtomicLongArray(size * PADDING);
+	}
+
+	/**
+	 * @return a number of cells fitting the number of processors
+	 */
+	static int defaultStripes() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	void add(long n) {
+		cells.getAndAdd(cellOf(Thread.currentThread().getId()) * PADDING, n);
+	}
+
+	long sum() {
+		long sum = 0;
+		for (int i = 0; i <= mask; i++) {
+			sum += cells.get(i * PADDING);
+		}
+		return sum;
+	}
+
+	private int cellOf(long threadId) {
+		// thread ids are sequential, spread them over the cells
+		long h = threadId * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32)) & mask;
+	}
+}
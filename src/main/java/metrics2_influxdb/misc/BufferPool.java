@@ -0,0 +1,78 @@
+package metrics2_influxdb.misc;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of fixed size byte buffers, bounding the memory they take.
+ * <br>
+ * Buffers are allocated lazily up to the given maximum, and kept once released.
+ */
+public class BufferPool {
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final ArrayDeque<byte[]> free = new ArrayDeque<byte[]>();
+	private int allocated;
+
+	/**
+	 * @param bufferSize the size in bytes of each buffer
+	 * @param maxBuffers the maximum number of buffers
+	 */
+	public BufferPool(int bufferSize, int maxBuffers) {
+		if (bufferSize < 1 || maxBuffers < 1) {
+			throw new IllegalArgumentException("bufferSize and maxBuffers must be positive: " + bufferSize + ", " + maxBuffers);
+		}
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+	}
+
+	/**
+	 * @return a buffer, null if all the buffers are in use
+	 */
+	public synchronized byte[] acquire() {
+		byte[] buffer = free.poll();
+		if (buffer == null && allocated < maxBuffers) {
+			buffer = new byte[bufferSize];
+			allocated++;
+		}
+		return buffer;
+	}
+
+	/**
+	 * @param buffer a buffer previously acquired from this pool
+	 */
+	public synchronized void release(byte[] buffer) {
+		free.push(buffer);
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return the number of buffers which can still be acquired
+	 */
+	public synchronized int available() {
+		return free.size() + maxBuffers - allocated;
+	}
+
+	/**
+	 * @return the bytes of the buffers allocated so far
+	 */
+	public synchronized long allocatedBytes() {
+		return (long) allocated * bufferSize;
+	}
+
+	/**
+	 * @return the bytes of the buffers currently acquired
+	 */
+	public synchronized long usedBytes() {
+		return (long) (allocated - free.size()) * bufferSize;
+	}
+
+	/**
+	 * @return the maximum bytes the buffers can take
+	 */
+	public long capacityBytes() {
+		return (long) maxBuffers * bufferSize;
+	}
+}
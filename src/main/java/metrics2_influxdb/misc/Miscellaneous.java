@@ -4,6 +4,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.util.Objects;
@@ -25,6 +26,17 @@ public class Miscellaneous {
 		return URLEncoder.encode(s, UTF8.name());
 	}
 
+	/**
+	 * @return the name of the local host, "localhost" if it cannot be resolved
+	 */
+	public static String hostname() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (IOException e) {
+			return "localhost";
+		}
+	}
+
 	public static String readFrom(InputStream is) throws IOException {
 		try (InputStreamReader isr = new InputStreamReader(is, UTF8)) {
 			StringBuffer sb = new StringBuffer();
@@ -0,0 +1,223 @@
+package metrics2_influxdb.reporting;
+
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.Histogram;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.core.Timer;
+
+import metrics2_influxdb.misc.Miscellaneous;
+
+/**
+ * The own metrics of a reporter and of its sender: how long collecting, encoding and sending take,
+ * how much has been sent and what has been lost.
+ * <br>
+ * The metrics are registered in the given registry under names prefixed by {@value #PREFIX}; when that registry
+ * is not the reported one, the reporter reports it too.
+ * <br>
+ * Gauges are registered under a name of their own: a gauge registered under a name already taken, for instance by
+ * another sender or reporter sharing the registry, gets a numbered name, and {@link #scoped(String)} gives the
+ * gauges of a sender a descriptive prefix.
+ * <br>
+ * {@link #NOOP} is used unless the instrumentation has been activated, its updates do nothing.
+ */
+public class ReportingMetrics {
+	public static final String PREFIX = "influxdb-reporter.";
+	public static final ReportingMetrics NOOP = new ReportingMetrics();
+
+	private final MetricsRegistry registry;
+	private final String scope;
+	private final ConcurrentMap<String, Counter> counters;
+	private final Timer collect;
+	private final Timer encode;
+	private final Timer send;
+	private final Counter bytesWritten;
+	private final Counter pointsSent;
+	private final Counter failedBatches;
+	private final Counter retries;
+	private final Counter dropped;
+	private final Histogram batchSize;
+
+	private ReportingMetrics() {
+		registry = null;
+		scope = null;
+		counters = null;
+		collect = null;
+		encode = null;
+		send = null;
+		bytesWritten = null;
+		pointsSent = null;
+		failedBatches = null;
+		retries = null;
+		dropped = null;
+		batchSize = null;
+	}
+
+	public ReportingMetrics(MetricsRegistry registry) {
+		Objects.requireNonNull(registry, "given MetricsRegistry cannot be null");
+		this.registry = registry;
+		scope = null;
+		counters = new ConcurrentHashMap<>();
+		collect = registry.newTimer(name("collect"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+		encode = registry.newTimer(name("encode"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+		send = registry.newTimer(name("send"), TimeUnit.MILLISECONDS, TimeUnit.SECONDS);
+		bytesWritten = registry.newCounter(name("bytes-written"));
+		pointsSent = registry.newCounter(name("points-sent"));
+		failedBatches = registry.newCounter(name("failed-batches"));
+		retries = registry.newCounter(name("retries"));
+		dropped = registry.newCounter(name("dropped"));
+		batchSize = registry.newHistogram(name("batch-size"), true);
+	}
+
+	private ReportingMetrics(ReportingMetrics parent, String scope) {
+		registry = parent.registry;
+		this.scope = parent.scope == null ? scope : parent.scope + "." + scope;
+		counters = parent.counters;
+		collect = parent.collect;
+		encode = parent.encode;
+		send = parent.send;
+		bytesWritten = parent.bytesWritten;
+		pointsSent = parent.pointsSent;
+		failedBatches = parent.failedBatches;
+		retries = parent.retries;
+		dropped = parent.dropped;
+		batchSize = parent.batchSize;
+	}
+
+	/**
+	 * @param scope prefixes the names of the gauges registered through the returned instance, for instance the
+	 * destination of a sender
+	 * @return metrics sharing the timers and counters of this instance, registering their gauges under the given scope
+	 */
+	public ReportingMetrics scoped(String scope) {
+		Miscellaneous.requireNotEmptyParameter(scope, "scope");
+		return registry == null ? this : new ReportingMetrics(this, scope);
+	}
+
+	/**
+	 * @return the registry holding the metrics, null for {@link #NOOP}
+	 */
+	public MetricsRegistry getRegistry() {
+		return registry;
+	}
+
+	public boolean isEnabled() {
+		return registry != null;
+	}
+
+	/**
+	 * Registers a gauge along with the reporting metrics, NOOP when the instrumentation is not activated.
+	 * @param name the name of the gauge, will be prefixed by the scope, if any, and numbered if already taken
+	 * @param gauge the gauge to register
+	 */
+	public <T> void gauge(String name, Gauge<T> gauge) {
+		if (registry == null) {
+			return;
+		}
+		String scopedName = scope == null ? name : scope + "." + name;
+		synchronized (registry) {
+			MetricName metricName = name(scopedName);
+			for (int i = 2; registry.allMetrics().containsKey(metricName); i++) {
+				metricName = name(scopedName + "-" + i);
+			}
+			registry.newGauge(metricName, gauge);
+		}
+	}
+
+	/**
+	 * Increments the counter of the given name, NOOP when the instrumentation is not activated. Counters are shared
+	 * by all the scopes.
+	 * @param name the name of the counter, will be prefixed
+	 * @param n the amount to add
+	 */
+	public void inc(String name, long n) {
+		if (registry == null) {
+			return;
+		}
+		Counter counter = counters.get(name);
+		if (counter == null) {
+			counter = registry.newCounter(name(name));
+			counters.putIfAbsent(name, counter);
+		}
+		counter.inc(n);
+	}
+
+	/**
+	 * @param nanos the time spent collecting the metrics of a tick
+	 */
+	public void collected(long nanos) {
+		if (collect != null) {
+			collect.update(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * @param nanos the time spent serializing measures
+	 */
+	public void encoded(long nanos) {
+		if (encode != null) {
+			encode.update(nanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	/**
+	 * @param bytes the number of bytes written to the transport
+	 */
+	public void written(long bytes) {
+		if (bytesWritten != null) {
+			bytesWritten.inc(bytes);
+		}
+	}
+
+	/**
+	 * @param nanos the time spent sending the batch
+	 * @param points the number of points of the batch
+	 */
+	public void sent(long nanos, int points) {
+		if (send != null) {
+			send.update(nanos, TimeUnit.NANOSECONDS);
+			pointsSent.inc(points);
+			batchSize.update(points);
+		}
+	}
+
+	/**
+	 * @param nanos the time spent trying to send the batch
+	 * @param points the number of points of the batch, kept for a later retry
+	 */
+	public void failed(long nanos, int points) {
+		if (send != null) {
+			send.update(nanos, TimeUnit.NANOSECONDS);
+			failedBatches.inc();
+			batchSize.update(points);
+		}
+	}
+
+	/**
+	 * A batch which previously failed is sent again.
+	 */
+	public void retried() {
+		if (retries != null) {
+			retries.inc();
+		}
+	}
+
+	/**
+	 * @param measures the number of measures lost, ie evicted from a full queue
+	 */
+	public void dropped(long measures) {
+		if (dropped != null) {
+			dropped.inc(measures);
+		}
+	}
+
+	private static MetricName name(String name) {
+		return new MetricName("metrics2_influxdb", "reporting", PREFIX + name);
+	}
+}
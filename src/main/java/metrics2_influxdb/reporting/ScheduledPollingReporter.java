@@ -0,0 +1,359 @@
+package metrics2_influxdb.reporting;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Metric;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+import com.yammer.metrics.reporting.AbstractPollingReporter;
+
+import metrics2_influxdb.misc.Miscellaneous;
+import metrics2_influxdb.misc.VisibilityIncreasedForTests;
+
+/**
+ * An {@link AbstractPollingReporter} which knows the period it has been started with.
+ * <br>
+ * When timestamps alignment is activated, the reporter:
+ * <ul>
+ * <li>stamps every point of a tick with the start of the reporting interval, ie the floor of {@link Clock#time()} to the period</li>
+ * <li>delays each tick by an offset within the interval, derived from a per host key, so that a fleet of JVMs
+ * started at the same moment do not all send their points in the same instant</li>
+ * </ul>
+ * When partitions are used, the registry is hash partitioned into N slices and the period is divided into N sub-ticks,
+ * each sub-tick collecting and sending only one slice. Every metric is still reported once per period.
+ * <br>
+ * The metrics of the {@link ReportingMetrics} registry, when it is not the reported one, are reported along.
+ * <br>
+ * With a tick deadline, each tick must end within a share of the period: the synchronous senders stop sending at the
+ * deadline, see {@link TickDeadline}, and the ticks fired late because the previous one overran the period are
+ * skipped and counted by the {@code skipped-ticks} reporting metric, so that the collection cadence stays stable
+ * when InfluxDB is slow.
+ * <br>
+ * Once attached to a {@link SharedReportingRuntime}, the reporter ticks on the thread of the runtime instead of its
+ * own.
+ */
+public abstract class ScheduledPollingReporter extends AbstractPollingReporter {
+	private final ScheduledExecutorService executor;
+	private final Clock clock;
+	private boolean alignedTimestamps;
+	// resolved on start when not given, the local host name lookup may be slow
+	private String sendOffsetKey;
+	private int partitions = 1;
+	private int partition;
+	private long periodInMillis;
+	private long sendOffsetInMillis;
+	private ReportingMetrics reportingMetrics = ReportingMetrics.NOOP;
+	private ScheduledExecutorService scheduler;
+	private SharedReportingRuntime runtime;
+	private final List<ScheduledFuture<?>> scheduled = new ArrayList<>();
+	private double tickDeadlineRatio;
+	private long subPeriodInNanos;
+
+	protected ScheduledPollingReporter(MetricsRegistry registry, String name, Clock clock) {
+		super(registry, name);
+		// the registry hands back the executor just created for this name by AbstractPollingReporter
+		this.executor = registry.newScheduledThreadPool(1, name);
+		this.clock = clock;
+	}
+
+	/**
+	 * Stamps points at the interval boundary and delays the send by a per host offset within the interval.
+	 * Must be called before {@link #start(long, TimeUnit)}.
+	 * @param alignedTimestamps true to activate the alignment
+	 */
+	public void setAlignedTimestamps(boolean alignedTimestamps) {
+		this.alignedTimestamps = alignedTimestamps;
+	}
+
+	/**
+	 * Overrides the key the send offset is derived from, defaults to the local host name.
+	 * @param sendOffsetKey a non empty key
+	 */
+	public void setSendOffsetKey(String sendOffsetKey) {
+		Miscellaneous.requireNotEmptyParameter(sendOffsetKey, "sendOffsetKey");
+		this.sendOffsetKey = sendOffsetKey;
+	}
+
+	/**
+	 * Splits the registry into the given number of slices, reported one after the other across the period.
+	 * Must be called before {@link #start(long, TimeUnit)}.
+	 * @param partitions the number of slices, 1 (the default) to report the whole registry on each tick
+	 */
+	public void setPartitions(int partitions) {
+		if (partitions < 1) {
+			throw new IllegalArgumentException("given partitions must be greater than 0");
+		}
+		this.partitions = partitions;
+	}
+
+	/**
+	 * Sets the instrumentation of this reporter.
+	 * @param reportingMetrics a non null instrumentation
+	 */
+	public void setReportingMetrics(ReportingMetrics reportingMetrics) {
+		Objects.requireNonNull(reportingMetrics, "given ReportingMetrics cannot be null");
+		this.reportingMetrics = reportingMetrics;
+	}
+
+	protected ReportingMetrics getReportingMetrics() {
+		return reportingMetrics;
+	}
+
+	/**
+	 * Bounds each tick to the given share of the period, and skips the ticks fired late because of an overrun.
+	 * Must be called before {@link #start(long, TimeUnit)}.
+	 * @param periodRatio the share of the period a tick may take, in (0, 1]; 0 (the default) for no deadline
+	 */
+	public void setTickDeadline(double periodRatio) {
+		if (periodRatio < 0 || periodRatio > 1) {
+			throw new IllegalArgumentException("given periodRatio must be between 0 and 1: " + periodRatio);
+		}
+		this.tickDeadlineRatio = periodRatio;
+	}
+
+	/**
+	 * Ticks on the given executor instead of the one of this reporter.
+	 * Must be called before {@link #start(long, TimeUnit)}.
+	 */
+	void setScheduler(ScheduledExecutorService scheduler) {
+		this.scheduler = scheduler;
+	}
+
+	/**
+	 * Ticks on the thread of the given runtime, and detaches from it on shutdown.
+	 * Must be called before {@link #start(long, TimeUnit)}.
+	 */
+	void attachTo(SharedReportingRuntime runtime, ScheduledExecutorService scheduler) {
+		this.runtime = runtime;
+		setScheduler(scheduler);
+	}
+
+	@Override
+	public void start(long period, TimeUnit unit) {
+		periodInMillis = unit.toMillis(period);
+		ScheduledExecutorService executor = scheduler != null ? scheduler : this.executor;
+		if ((!alignedTimestamps && partitions == 1 && tickDeadlineRatio == 0) || periodInMillis <= 0) {
+			if (scheduler == null) {
+				super.start(period, unit);
+			} else {
+				scheduled.add(scheduler.scheduleWithFixedDelay(this, period, period, unit));
+			}
+			return;
+		}
+
+		long subPeriod = Math.max(1, periodInMillis / partitions);
+		subPeriodInNanos = TimeUnit.MILLISECONDS.toNanos(subPeriod);
+		long firstDelay = subPeriod;
+		if (alignedTimestamps) {
+			if (sendOffsetKey == null) {
+				sendOffsetKey = Miscellaneous.hostname();
+			}
+			sendOffsetInMillis = sendOffset(sendOffsetKey, subPeriod);
+			long now = clock.time();
+			long nextBoundary = now - (now % periodInMillis) + periodInMillis;
+			firstDelay = nextBoundary - now + sendOffsetInMillis;
+		}
+
+		// one task per slice at the rate of the period: a single task at the rate of the truncated sub-period
+		// would drift from the boundaries when the period is not a multiple of the number of slices
+		for (int i = 0; i < partitions; i++) {
+			Slice slice = new Slice(i);
+			long delay = firstDelay + sliceShift(i);
+			// fixed rate (and not fixed delay) so that ticks stay on the boundary + offset, and so that the cadence
+			// does not drift with the duration of the ticks when they have a deadline
+			slice.future = alignedTimestamps || tickDeadlineRatio > 0
+					? executor.scheduleAtFixedRate(slice, delay, periodInMillis, TimeUnit.MILLISECONDS)
+					: executor.scheduleWithFixedDelay(slice, delay, periodInMillis, TimeUnit.MILLISECONDS);
+			scheduled.add(slice.future);
+		}
+	}
+
+	/**
+	 * @return the delay of the ticks of the given slice from the ones of the first slice
+	 */
+	private long sliceShift(int slice) {
+		return slice * periodInMillis / partitions;
+	}
+
+	@Override
+	public void shutdown() {
+		stopTicking();
+		super.shutdown();
+		onShutdown();
+	}
+
+	@Override
+	public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+		stopTicking();
+		try {
+			super.shutdown(timeout, unit);
+		} finally {
+			onShutdown();
+		}
+	}
+
+	/**
+	 * Releases the resources of the reporter, once its ticks have been cancelled. Does nothing by default.
+	 */
+	protected void onShutdown() {
+	}
+
+	private void stopTicking() {
+		// the executor of a shared runtime outlives the reporter
+		for (ScheduledFuture<?> future : scheduled) {
+			future.cancel(false);
+		}
+		scheduled.clear();
+		if (runtime != null) {
+			runtime.detach(this);
+			runtime = null;
+		}
+	}
+
+	/**
+	 * Reports the given slice.
+	 * @param slice the slice of the registry to report
+	 * @param future the periodic task of the slice, telling whether the tick fired late, null if unknown
+	 */
+	@VisibilityIncreasedForTests void tick(int slice, ScheduledFuture<?> future) {
+		partition = slice;
+		try {
+			if (tickDeadlineRatio > 0) {
+				if (isLate(future)) {
+					reportingMetrics.inc("skipped-ticks", 1);
+					return;
+				}
+				TickDeadline.set(System.nanoTime() + getTickBudgetInNanos());
+			}
+			run();
+		} finally {
+			TickDeadline.clear();
+		}
+	}
+
+	/**
+	 * @return the time a tick may take, 0 without a tick deadline or before the start
+	 */
+	long getTickBudgetInNanos() {
+		return tickDeadlineRatio > 0 ? (long) (subPeriodInNanos * tickDeadlineRatio) : 0;
+	}
+
+	/**
+	 * @return true if the current tick fires a period or more after its time, the previous one having overrun
+	 */
+	private boolean isLate(ScheduledFuture<?> future) {
+		// while a periodic task runs, its delay is still the one of the current execution
+		return future != null && -future.getDelay(TimeUnit.NANOSECONDS) >= subPeriodInNanos;
+	}
+
+	/**
+	 * @return the reporting period in milliseconds, 0 if the reporter has not been started
+	 */
+	protected long getPeriodInMillis() {
+		return periodInMillis;
+	}
+
+	/**
+	 * @return the metrics to report on the current tick, ie the ones of the current slice of the registry
+	 * and of the reporting metrics registry
+	 */
+	protected List<Entry<MetricName, Metric>> tickMetrics() {
+		List<Entry<MetricName, Metric>> metrics = new ArrayList<>();
+		addCurrentPartition(getMetricsRegistry().allMetrics(), metrics);
+		MetricsRegistry own = reportingMetrics.getRegistry();
+		if (own != null && own != getMetricsRegistry()) {
+			addCurrentPartition(own.allMetrics(), metrics);
+		}
+		return metrics;
+	}
+
+	/**
+	 * @return true if the given metric is still registered in the reported registry or the reporting metrics one
+	 */
+	protected boolean isRegistered(MetricName name) {
+		if (getMetricsRegistry().allMetrics().containsKey(name)) {
+			return true;
+		}
+		MetricsRegistry own = reportingMetrics.getRegistry();
+		return own != null && own.allMetrics().containsKey(name);
+	}
+
+	private void addCurrentPartition(Map<MetricName, Metric> from, List<Entry<MetricName, Metric>> to) {
+		for (Entry<MetricName, Metric> entry : from.entrySet()) {
+			if (partitions == 1 || partitionOf(partitionKey(entry.getKey(), entry.getValue()), partitions) == partition) {
+				to.add(entry);
+			}
+		}
+	}
+
+	/**
+	 * @param name the name of a metric
+	 * @param metric the metric
+	 * @return the hash deciding the slice the metric is reported in, the metrics of a same hash being reported in
+	 * the same tick; the hash of the name by default
+	 */
+	protected int partitionKey(MetricName name, Metric metric) {
+		return name.hashCode();
+	}
+
+	/**
+	 * @return the timestamp to stamp the points of the current tick with
+	 */
+	protected long tickTimestamp() {
+		long now = clock.time();
+		if (!alignedTimestamps || periodInMillis <= 0) {
+			return now;
+		}
+		// the tick fires at boundary + offset (+ the shift of the slice); rounding instead of flooring
+		// protects from the small drift between the executor and the wall clock, that would otherwise
+		// stamp two consecutive ticks with the same boundary
+		long sinceBoundary = now - sendOffsetInMillis - sliceShift(partition);
+		return ((sinceBoundary + periodInMillis / 2) / periodInMillis) * periodInMillis;
+	}
+
+	/**
+	 * The periodic task of a slice of the registry.
+	 */
+	private final class Slice implements Runnable {
+		private final int index;
+		private volatile ScheduledFuture<?> future;
+
+		Slice(int index) {
+			this.index = index;
+		}
+
+		@Override
+		public void run() {
+			tick(index, future);
+		}
+	}
+
+	/**
+	 * Derives a deterministic offset in [0, period) from the given key.
+	 */
+	@VisibilityIncreasedForTests static long sendOffset(String key, long periodInMillis) {
+		return (spread(key.hashCode()) & Long.MAX_VALUE) % periodInMillis;
+	}
+
+	@VisibilityIncreasedForTests static int partitionOf(int key, int partitions) {
+		return (int) ((spread(key) & Long.MAX_VALUE) % partitions);
+	}
+
+	private static long spread(long h) {
+		// names are often alike (web-01, web-02, ...) so their hashcodes need to be spread
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+}
@@ -0,0 +1,167 @@
+package metrics2_influxdb.reporting;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import metrics2_influxdb.measurements.Measure;
+import metrics2_influxdb.measurements.Sender;
+
+/**
+ * One thread and one {@link Sender} shared by many reporters, for example one reporter per registry of each tenant.
+ * <br>
+ * The attached reporters tick on the single thread of the runtime, and send their measures into the sender of the
+ * runtime, through {@link #getSender()}. The flush a reporter requests at the end of its tick is delayed by a linger
+ * delay, so that the reporters ticking within that delay, for instance with aligned timestamps, are sent in the same
+ * requests and over the same connections.
+ * <br>
+ * The sender of the runtime is only used from the thread of the runtime. When attached reporters have a tick
+ * deadline, the delayed flush is bounded by the shortest of their budgets, see {@link TickDeadline}.
+ */
+public class SharedReportingRuntime implements Closeable {
+	private static final AtomicLong THREADS = new AtomicLong();
+
+	private final Sender sender;
+	private final long lingerInMillis;
+	private final ScheduledExecutorService scheduler;
+	private final List<ScheduledPollingReporter> reporters = new CopyOnWriteArrayList<>();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+	private final Sender shared = new SharedSender();
+	private final Runnable flush = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled.set(false);
+			long budget = flushBudgetInNanos();
+			try {
+				if (budget > 0) {
+					TickDeadline.set(System.nanoTime() + budget);
+				}
+				sender.flush();
+			} finally {
+				TickDeadline.clear();
+			}
+		}
+	};
+
+	/**
+	 * @param sender the sender of the measures of all the attached reporters
+	 * @param linger how long a flush is delayed to gather the measures of other reporters
+	 * @param unit the unit of the linger delay
+	 */
+	public SharedReportingRuntime(Sender sender, long linger, TimeUnit unit) {
+		this.sender = sender;
+		this.lingerInMillis = unit.toMillis(linger);
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "metrics-reporting-runtime-" + THREADS.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return the sender to give to the reporters attached to this runtime; its flushes are delayed and gathered,
+	 * and closing it is a NOOP, the runtime closes the sender on {@link #close()}
+	 */
+	public Sender getSender() {
+		return shared;
+	}
+
+	/**
+	 * Has the given reporter tick on the thread of this runtime. Must be called before its start.
+	 * @param reporter the reporter to attach
+	 */
+	public void attach(ScheduledPollingReporter reporter) {
+		reporter.attachTo(this, scheduler);
+		reporters.add(reporter);
+	}
+
+	/**
+	 * Forgets the given reporter, called on its shutdown.
+	 * @param reporter the reporter to detach
+	 */
+	void detach(ScheduledPollingReporter reporter) {
+		reporters.remove(reporter);
+	}
+
+	/**
+	 * @return the number of reporters attached
+	 */
+	public int size() {
+		return reporters.size();
+	}
+
+	/**
+	 * Shuts down the attached reporters, then flushes and closes the sender.
+	 * A reporter shut down before is already detached.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (ScheduledPollingReporter reporter : reporters) {
+			reporter.shutdown();
+		}
+		scheduler.shutdown();
+		try {
+			scheduler.awaitTermination(lingerInMillis + TimeUnit.SECONDS.toMillis(5), TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		sender.flush();
+		sender.close();
+	}
+
+	/**
+	 * @return the shortest tick budget of the attached reporters having a tick deadline, 0 if none has
+	 */
+	private long flushBudgetInNanos() {
+		long budget = 0;
+		for (ScheduledPollingReporter reporter : reporters) {
+			long reporterBudget = reporter.getTickBudgetInNanos();
+			if (reporterBudget > 0 && (budget == 0 || reporterBudget < budget)) {
+				budget = reporterBudget;
+			}
+		}
+		return budget;
+	}
+
+	private final class SharedSender implements Sender {
+		@Override
+		public void send(Measure m) {
+			sender.send(m);
+		}
+
+		@Override
+		public void send(Collection<Measure> measures) {
+			sender.send(measures);
+		}
+
+		@Override
+		public void flush() {
+			if (!flushScheduled.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				scheduler.schedule(flush, lingerInMillis, TimeUnit.MILLISECONDS);
+			} catch (RejectedExecutionException e) {
+				// the runtime is closing, it flushes the sender itself
+				flushScheduled.set(false);
+			}
+		}
+
+		@Override
+		public void close() {
+			// the runtime closes the sender
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package metrics2_influxdb.reporting;
+
+/**
+ * The deadline of the tick running on the current thread, set by a {@link ScheduledPollingReporter} around each tick
+ * when {@link ScheduledPollingReporter#setTickDeadline(double)} is used.
+ * <br>
+ * Synchronous senders check it so that a slow InfluxDB cannot make a tick overrun the reporting period: once the
+ * deadline passed they stop sending and keep the measures for the next tick.
+ */
+public final class TickDeadline {
+	private static final ThreadLocal<Long> DEADLINE = new ThreadLocal<>();
+
+	private TickDeadline() {
+	}
+
+	/**
+	 * @param deadline the {@link System#nanoTime()} the tick of the current thread must end by
+	 */
+	public static void set(long deadline) {
+		DEADLINE.set(deadline);
+	}
+
+	public static void clear() {
+		DEADLINE.remove();
+	}
+
+	/**
+	 * @return true if the tick of the current thread has a deadline and it passed
+	 */
+	public static boolean passed() {
+		Long deadline = DEADLINE.get();
+		return deadline != null && System.nanoTime() - deadline >= 0;
+	}
+
+	/**
+	 * @param max the time allowed without a deadline
+	 * @return the given time, capped to the time left before the deadline of the current thread, if any
+	 */
+	public static long remainingNanos(long max) {
+		Long deadline = DEADLINE.get();
+		return deadline == null ? max : Math.min(max, deadline - System.nanoTime());
+	}
+}
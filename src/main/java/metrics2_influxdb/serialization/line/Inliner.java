@@ -1,5 +1,9 @@
 package metrics2_influxdb.serialization.line;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
@@ -10,13 +14,27 @@ public class Inliner {
 		private static char[] ESCAPE_CHARS = {' ', ',', '='};
 
 		private TimeUnit precision;
+		private boolean sortedBySeries;
 
 		public Inliner(TimeUnit precision) {
 			this.precision = precision;
 		}
 
+		/**
+		 * Orders the lines of a batch by measurement and groups them by series key, which InfluxDB ingests faster
+		 * than interleaved series. The order of the measures of a same series is kept.
+		 * @param sortedBySeries true to sort the batches, default to false
+		 */
+		public void setSortedBySeries(boolean sortedBySeries) {
+			this.sortedBySeries = sortedBySeries;
+		}
+
 		public String inline(Measure m) {
 		String key = buildMeasureKey(m.getName(), m.getTags());
+		return inline(key, m);
+	}
+
+	private String inline(String key, Measure m) {
 		String values = buildMeasureFields(m.getValues());
 		String timestamp = "" + precision.convert(m.getTimestamp(), TimeUnit.MILLISECONDS);
 
@@ -24,6 +42,9 @@ public class Inliner {
 	}
 
 	public String inline(Iterable<Measure> measures) {
+		if (sortedBySeries) {
+			return inlineSorted(measures);
+		}
 		StringBuilder sb = new StringBuilder();
 		String join = "";
 		String cr = "\n";
@@ -34,6 +55,65 @@ public class Inliner {
 		return sb.toString();
 	}
 
+	private String inlineSorted(Iterable<Measure> measures) {
+		List<Keyed> keyed = new ArrayList<Keyed>();
+		Map<String, Integer> names = new HashMap<String, Integer>();
+		for (Measure m : measures) {
+			keyed.add(new Keyed(buildMeasureKey(m.getName(), m.getTags()), m));
+			names.put(m.getName(), null);
+		}
+		// the measurement names, far fewer than the measures, are compared as strings once
+		List<String> sortedNames = new ArrayList<String>(names.keySet());
+		Collections.sort(sortedNames);
+		for (int i = 0; i < sortedNames.size(); i++) {
+			names.put(sortedNames.get(i), i);
+		}
+		for (Keyed k : keyed) {
+			k.nameOrdinal = names.get(k.measure.getName());
+		}
+		// stable, the measures of a same series keep their order
+		Collections.sort(keyed);
+
+		StringBuilder sb = new StringBuilder();
+		String join = "";
+		String cr = "\n";
+		for (Keyed k : keyed) {
+			sb.append(join).append(inline(k.key, k.measure));
+			join = cr;
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * A measure along with its series key, built once for both sorting and serializing.
+	 * <br>
+	 * Sorted by the ordinal of the measurement name, then by the hash of the series key, the keys being only compared
+	 * as strings when their hashes are equal: the series of a measurement are grouped, not in the order of their keys.
+	 */
+	private static final class Keyed implements Comparable<Keyed> {
+		private final String key;
+		private final int hash;
+		private final Measure measure;
+		private int nameOrdinal;
+
+		Keyed(String key, Measure measure) {
+			this.key = key;
+			this.hash = key.hashCode();
+			this.measure = measure;
+		}
+
+		@Override
+		public int compareTo(Keyed other) {
+			if (nameOrdinal != other.nameOrdinal) {
+				return Integer.compare(nameOrdinal, other.nameOrdinal);
+			}
+			if (hash != other.hash) {
+				return Integer.compare(hash, other.hash);
+			}
+			return key.compareTo(other.key);
+		}
+	}
+
 	private String buildMeasureFields(Map<String, String> values) {
 		Map<String, String> sortedValues = new InfluxDBSortedMap();
 		sortedValues.putAll(values);
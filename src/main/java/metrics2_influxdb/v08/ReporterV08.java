@@ -13,25 +13,29 @@
 package metrics2_influxdb.v08;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.Set;
 import java.util.TreeMap;
 
 import com.yammer.metrics.core.*;
-import com.yammer.metrics.reporting.AbstractPollingReporter;
 import com.yammer.metrics.stats.Snapshot;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import metrics2_influxdb.metrics.ExtendedMetricProcessor;
+import metrics2_influxdb.metrics.IntervalRecorder;
+import metrics2_influxdb.metrics.StripedCounter;
+import metrics2_influxdb.reporting.ScheduledPollingReporter;
+
 /**
  * A reporter which publishes metric values to a InfluxDB server.
  *
  * @see <a href="http://influxdb.org/">InfluxDB - An open-source distributed
  *      time series database with no external dependencies.</a>
  */
-public class ReporterV08 extends AbstractPollingReporter
-                         implements MetricProcessor<Long> {
+public class ReporterV08 extends ScheduledPollingReporter
+                         implements ExtendedMetricProcessor<Long> {
 	private static String[] COLUMNS_TIMER = {
 			"time", "count"
 			, "min", "max", "mean", "std-dev"
@@ -55,11 +59,15 @@ public class ReporterV08 extends AbstractPollingReporter
 			"time", "count"
 			, "one-minute", "five-minute", "fifteen-minute", "mean-rate"
 	};
+	private static String[] COLUMNS_INTERVAL = {
+			"time", "count"
+			, "min", "max", "mean"
+			, "50-percentile", "75-percentile", "95-percentile", "99-percentile", "999-percentile"
+	};
 
 	static final Logger LOGGER = LoggerFactory.getLogger(ReporterV08.class);
 
 	private final Influxdb influxdb;
-	private final Clock clock;
 	private final String prefix;
 	// Optimization : use pointsXxx to reduce object creation, by reuse as arg of
 	// Influxdb.appendSeries(...)
@@ -111,6 +119,18 @@ public class ReporterV08 extends AbstractPollingReporter
 		0.0d,
 		0.0d
 	} };
+	private final Object[][] pointsInterval = { {
+		0l,
+		0l,
+		0.0d,
+		0.0d,
+		0.0d,
+		0.0d,
+		0.0d,
+		0.0d,
+		0.0d,
+		0.0d
+	} };
 
 	protected final boolean skipIdleMetrics;
 	protected final Map<String, Long> previousValues;
@@ -120,11 +140,10 @@ public class ReporterV08 extends AbstractPollingReporter
 			Clock clock,
 			String prefix,
 			boolean skipIdleMetrics) {
-		super(registry, "influxdb-reporter");
+		super(registry, "influxdb-reporter", clock);
 		this.skipIdleMetrics = skipIdleMetrics;
 		this.previousValues = new TreeMap<String, Long>();
 		this.influxdb = influxdb;
-		this.clock = clock;
 		this.prefix = (prefix == null) ? "" : (prefix.trim() + ".");
 	}
 
@@ -202,13 +221,21 @@ public class ReporterV08 extends AbstractPollingReporter
 
 	@Override
   public void run() {
-    final long timestamp = clock.time();
-    final Set<Entry<MetricName, Metric>> metrics = getMetricsRegistry().allMetrics().entrySet();
-    try {
-      for (Entry<MetricName, Metric> entry: metrics) {
+    final long timestamp = tickTimestamp();
+    final long start = System.nanoTime();
+    final List<Entry<MetricName, Metric>> metrics = tickMetrics();
+    for (Entry<MetricName, Metric> entry: metrics) {
+      // a failing metric must not prevent the others from being reported
+      try {
           Metric metric = entry.getValue();
           metric.processWith(this, entry.getKey(), timestamp);
+      } catch (Throwable e) {
+        getReportingMetrics().inc("collect-failures", 1);
+        LOGGER.warn("Unable to collect metric {}", entry.getKey(), e);
       }
+    }
+    getReportingMetrics().collected(System.nanoTime() - start);
+    try {
       if (influxdb.hasSeriesData()) {
         influxdb.sendRequest(true, false);
       }
@@ -277,13 +304,18 @@ public class ReporterV08 extends AbstractPollingReporter
 
   @Override
   public void processCounter(MetricName name, Counter counter, Long timestamp) throws IOException {
-    reportCounter(name.getName(), counter, timestamp);
+    reportCounter(name.getName(), counter.count(), timestamp);
   }
 
-	private void reportCounter(String name, Counter counter, long timestamp) {
+  @Override
+  public void processStripedCounter(MetricName name, StripedCounter counter, Long timestamp) throws IOException {
+    reportCounter(name.getName(), counter.count(), timestamp);
+  }
+
+	private void reportCounter(String name, long count, long timestamp) {
 		Object[] p = pointsCounter[0];
 		p[0] = influxdb.convertTimestamp(timestamp);
-		p[1] = counter.count();
+		p[1] = count;
 		assert (p.length == COLUMNS_COUNT.length);
 		influxdb.appendSeries(prefix, name, ".count", COLUMNS_COUNT, pointsCounter);
 	}
@@ -320,4 +352,29 @@ public class ReporterV08 extends AbstractPollingReporter
 		assert (p.length == COLUMNS_METER.length);
 		influxdb.appendSeries(prefix, name, ".meter", COLUMNS_METER, pointsMeter);
 	}
+
+  @Override
+  public void processIntervalRecorder(MetricName name, IntervalRecorder recorder, Long timestamp) throws Exception {
+    reportIntervalRecorder(name.getName(), recorder, timestamp);
+  }
+
+	private void reportIntervalRecorder(String name, IntervalRecorder recorder, long timestamp) {
+		final IntervalRecorder.IntervalSnapshot snapshot = recorder.intervalSnapshot();
+		if (skipIdleMetrics && snapshot.count() == 0) {
+			return;
+		}
+		Object[] p = pointsInterval[0];
+		p[0] = influxdb.convertTimestamp(timestamp);
+		p[1] = snapshot.count();
+		p[2] = snapshot.min();
+		p[3] = snapshot.max();
+		p[4] = snapshot.mean();
+		p[5] = snapshot.getValue(0.5);
+		p[6] = snapshot.getValue(0.75);
+		p[7] = snapshot.getValue(0.95);
+		p[8] = snapshot.getValue(0.99);
+		p[9] = snapshot.getValue(0.999);
+		assert (p.length == COLUMNS_INTERVAL.length);
+		influxdb.appendSeries(prefix, name, ".interval", COLUMNS_INTERVAL, pointsInterval);
+	}
 }
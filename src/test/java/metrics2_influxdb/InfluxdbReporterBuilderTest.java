@@ -6,16 +6,21 @@ import static org.hamcrest.Matchers.notNullValue;
 import static org.hamcrest.collection.IsMapContaining.hasEntry;
 
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 import org.testng.annotations.Test;
 import static org.testng.AssertJUnit.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 
+import com.yammer.metrics.core.MetricName;
 import com.yammer.metrics.core.MetricsRegistry;
 import com.yammer.metrics.reporting.AbstractPollingReporter;
 
 import metrics2_influxdb.InfluxdbReporter.Builder;
 import metrics2_influxdb.api.measurements.MetricMeasurementTransformer;
+import metrics2_influxdb.measurements.BackpressurePolicy;
+import metrics2_influxdb.measurements.Measure;
+import metrics2_influxdb.measurements.RoutingSender;
 
 public class InfluxdbReporterBuilderTest {
 	private MetricsRegistry registry = new MetricsRegistry();
@@ -110,6 +115,98 @@ public class InfluxdbReporterBuilderTest {
 		assertThat(reporter, notNullValue());
 	}
 
+	@Test
+	public void builder_api_with_routes_to_the_same_destination_builds_one_sender() {
+		MetricsRegistry own = new MetricsRegistry();
+		InfluxdbReporter
+				.forRegistry(registry)
+				.reportingMetrics(own)
+				.route(RoutingSender.type(Measure.TIMER), "long-term", "one-year")
+				.route(RoutingSender.measurement("jvm\\..*"), "long-term", "one-year")
+				.build();
+
+		int queueDepthGauges = 0;
+		for (MetricName name : own.allMetrics().keySet()) {
+			if (name.getName().contains("route-long-term-one-year.queue-depth")) {
+				queueDepthGauges++;
+			}
+		}
+		assertThat(queueDepthGauges, is(1));
+	}
+
+	@Test
+	public void builder_api_with_mirrors_registers_the_gauges_of_each_destination() {
+		MetricsRegistry own = new MetricsRegistry();
+		InfluxdbReporter
+				.forRegistry(registry)
+				.reportingMetrics(own)
+				.mirrorTo(new HttpInfluxdbProtocol("127.0.0.1", 8087, "mirrored"))
+				.build();
+
+		int queueDepthGauges = 0;
+		for (MetricName name : own.allMetrics().keySet()) {
+			if (name.getName().endsWith("queue-depth")) {
+				queueDepthGauges++;
+				assertThat(name.getName().contains("primary.") || name.getName().contains("mirror-1."), is(true));
+			}
+		}
+		assertThat(queueDepthGauges, is(2));
+	}
+
+	@Test(expectedExceptions=IllegalStateException.class)
+	public void builder_api_with_mirrors_rejects_a_backlog() {
+		InfluxdbReporter
+				.forRegistry(registry)
+				.mirrorTo(new HttpInfluxdbProtocol("127.0.0.1", 8087, "mirrored"))
+				.coalesceBacklog(100)
+				.build();
+	}
+
+	@Test(expectedExceptions=IllegalStateException.class)
+	public void builder_api_with_v08_rejects_aggregation() {
+		InfluxdbReporter
+				.forRegistry(registry)
+				.v08()
+				.aggregate(6)
+				.build();
+	}
+
+	@Test(expectedExceptions=IllegalStateException.class)
+	public void builder_api_with_v08_rejects_a_backlog() {
+		InfluxdbReporter
+				.forRegistry(registry)
+				.v08()
+				.compressBacklog(1 << 20)
+				.build();
+	}
+
+	@Test(expectedExceptions=IllegalStateException.class)
+	public void builder_api_with_udp_rejects_an_encoded_backlog() {
+		InfluxdbReporter
+				.forRegistry(registry)
+				.protocol(new UdpInfluxdbProtocol("127.0.0.1", 8089))
+				.encodedBacklog(1 << 20, false)
+				.build();
+	}
+
+	@Test(expectedExceptions=IllegalStateException.class)
+	public void builder_api_with_udp_rejects_adaptive_batching() {
+		InfluxdbReporter
+				.forRegistry(registry)
+				.protocol(new UdpInfluxdbProtocol("127.0.0.1", 8089))
+				.adaptiveBatching(100, 1000, 4, 1, TimeUnit.SECONDS)
+				.build();
+	}
+
+	@Test(expectedExceptions=IllegalStateException.class)
+	public void builder_api_with_backpressure_rejects_a_coalescing_backlog() {
+		InfluxdbReporter
+				.forRegistry(registry)
+				.coalesceBacklog(100)
+				.backpressure(BackpressurePolicy.dropOldest())
+				.build();
+	}
+
 	@Test(expectedExceptions=NullPointerException.class)
 	public void builder_api_with_tags_checksNullKey() {
 		String tagValue = "tag-value";
@@ -0,0 +1,40 @@
+package metrics2_influxdb.api.measurements;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.collection.IsMapContaining.hasEntry;
+
+import org.testng.annotations.Test;
+
+public class TestGroupingMetricMeasurementTransformer {
+	@Test
+	public void gaugesOfAGroupBecomeFields() {
+		GroupingMetricMeasurementTransformer pool = new GroupingMetricMeasurementTransformer("pool");
+
+		assertThat(pool.measurementName("pool.active"), is("pool"));
+		assertThat(pool.fieldName("pool.active"), is("active"));
+		assertThat(pool.measurementName("pool.idle"), is("pool"));
+		assertThat(pool.fieldName("pool.idle"), is("idle"));
+	}
+
+	@Test
+	public void otherMetricsAreUntouched() {
+		GroupingMetricMeasurementTransformer pool = new GroupingMetricMeasurementTransformer("pool");
+
+		for (String name : new String[] {"pool", "pool.", "jvm.heap", "pool.active.max"}) {
+			assertThat(pool.measurementName(name), is(name));
+			assertThat(pool.fieldName(name), nullValue());
+		}
+	}
+
+	@Test
+	public void groupsApplyToTheNamesOfTheDelegate() {
+		GroupingMetricMeasurementTransformer pool = new GroupingMetricMeasurementTransformer(
+				new CategoriesMetricMeasurementTransformer("server"), "pool");
+
+		assertThat(pool.measurementName("actarus.pool.waiting"), is("pool"));
+		assertThat(pool.fieldName("actarus.pool.waiting"), is("waiting"));
+		assertThat(pool.tags("actarus.pool.waiting"), hasEntry("server", "actarus"));
+	}
+}
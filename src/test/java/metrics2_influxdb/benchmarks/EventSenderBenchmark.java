@@ -0,0 +1,88 @@
+package metrics2_influxdb.benchmarks;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.Test;
+
+import metrics2_influxdb.measurements.EventSender;
+import metrics2_influxdb.measurements.Measure;
+import metrics2_influxdb.measurements.Sender;
+
+/**
+ * Measures the cost for producer threads of sending events through an {@link EventSender}, the measures being
+ * built beforehand.
+ */
+@Test(groups = "benchmark")
+public class EventSenderBenchmark {
+	private static final int THREADS = Runtime.getRuntime().availableProcessors();
+	private static final int EVENTS = 1000000;
+	private static final int ROUNDS = 5;
+
+	public void producersSpendTensOfNanosecondsPerEvent() throws Exception {
+		final Measure event = new Measure("job", Collections.singletonMap("queue", "default"), 1);
+		final AtomicLong received = new AtomicLong();
+		Sender counting = new Sender() {
+			@Override
+			public void send(Collection<Measure> measures) {
+				received.addAndGet(measures.size());
+			}
+
+			@Override
+			public void send(Measure m) {
+				received.incrementAndGet();
+			}
+
+			@Override
+			public void flush() {
+			}
+
+			@Override
+			public void close() throws IOException {
+			}
+		};
+		final EventSender sender = new EventSender(counting, 5000, 1 << 20, 10, TimeUnit.MILLISECONDS);
+
+		long best = Long.MAX_VALUE;
+		for (int round = 0; round < ROUNDS; round++) {
+			final CountDownLatch start = new CountDownLatch(1);
+			final AtomicLong nanos = new AtomicLong();
+			Thread[] producers = new Thread[THREADS];
+			for (int t = 0; t < THREADS; t++) {
+				producers[t] = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+						} catch (InterruptedException e) {
+							return;
+						}
+						long begin = System.nanoTime();
+						for (int i = 0; i < EVENTS; i++) {
+							sender.send(event);
+						}
+						nanos.addAndGet(System.nanoTime() - begin);
+					}
+				});
+				producers[t].start();
+			}
+			start.countDown();
+			for (Thread producer : producers) {
+				producer.join();
+			}
+			long perEvent = nanos.get() / ((long) THREADS * EVENTS);
+			System.out.printf("round %d: %d ns per event, %d threads%n", round, perEvent, THREADS);
+			best = Math.min(best, perEvent);
+		}
+		sender.close();
+
+		assertThat(best, lessThan(1000L));
+	}
+}
@@ -0,0 +1,139 @@
+package metrics2_influxdb.benchmarks;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.AfterClass;
+import org.testng.annotations.BeforeClass;
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import metrics2_influxdb.HttpInfluxdbProtocol;
+import metrics2_influxdb.measurements.HttpInlinerSender;
+import metrics2_influxdb.measurements.Measure;
+import metrics2_influxdb.misc.Miscellaneous;
+
+/**
+ * Compares the ingest work of a local stand-in of the InfluxDB write endpoint for batches sorted by series and
+ * batches in emission order.
+ * <br>
+ * Like the InfluxDB cache, the stand-in appends each point to the entry of its series, looking the entry up only
+ * when the series changes from the previous line; the number of lookups and the time spent parsing and indexing
+ * are reported.
+ */
+@Test(groups = "benchmark")
+public class SeriesSortedBatchBenchmark {
+	private static final int SERIES = 2000;
+	private static final int TICKS = 30;
+	private static final int ROUNDS = 5;
+
+	private HttpServer server;
+	private StandIn standIn;
+
+	@BeforeClass
+	public void startStandIn() throws IOException {
+		standIn = new StandIn();
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/write", standIn);
+		server.start();
+	}
+
+	@AfterClass(alwaysRun = true)
+	public void stopStandIn() {
+		server.stop(0);
+	}
+
+	public void sortedBatchesNeedFewerSeriesLookups() {
+		Result unsorted = run(false);
+		Result sorted = run(true);
+
+		System.out.printf("%-10s %12s %12s%n", "batches", "lookups", "ingest (ms)");
+		System.out.printf("%-10s %12d %12.1f%n", "unsorted", unsorted.lookups, unsorted.nanos / 1e6);
+		System.out.printf("%-10s %12d %12.1f%n", "sorted", sorted.lookups, sorted.nanos / 1e6);
+
+		assertThat(sorted.lookups, lessThan(unsorted.lookups));
+	}
+
+	private Result run(boolean sortedBySeries) {
+		HttpInfluxdbProtocol protocol = new HttpInfluxdbProtocol("127.0.0.1", server.getAddress().getPort(), "benchmark");
+		HttpInlinerSender sender = new HttpInlinerSender(protocol);
+		sender.setSortedBySeries(sortedBySeries);
+
+		Result result = new Result();
+		for (int round = 0; round < ROUNDS; round++) {
+			standIn.reset();
+			// a backlog of several ticks, as sent after an outage: series interleaved tick after tick
+			for (int tick = 0; tick < TICKS; tick++) {
+				for (int s = 0; s < SERIES; s++) {
+					sender.send(new Measure("measurement" + (s % 20), tags(s), s * tick, 10000L * tick));
+				}
+			}
+			sender.flush();
+			result.lookups = standIn.lookups;
+			result.nanos = standIn.nanos;
+		}
+		return result;
+	}
+
+	private static Map<String, String> tags(int series) {
+		Map<String, String> tags = new HashMap<String, String>();
+		tags.put("host", "host-" + (series / 20));
+		tags.put("region", "region-" + (series % 4));
+		return tags;
+	}
+
+	private static final class Result {
+		long lookups;
+		long nanos;
+	}
+
+	private static final class StandIn implements HttpHandler {
+		private final Map<String, StringBuilder> cache = new HashMap<String, StringBuilder>();
+		private volatile long lookups;
+		private volatile long nanos;
+
+		synchronized void reset() {
+			cache.clear();
+			lookups = 0;
+			nanos = 0;
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(), Miscellaneous.UTF8));
+			synchronized (this) {
+				long start = System.nanoTime();
+				String previousKey = null;
+				StringBuilder entry = null;
+				String line;
+				while ((line = in.readLine()) != null) {
+					int keyEnd = line.indexOf(' ');
+					String key = line.substring(0, keyEnd);
+					if (!key.equals(previousKey)) {
+						lookups++;
+						entry = cache.get(key);
+						if (entry == null) {
+							entry = new StringBuilder();
+							cache.put(key, entry);
+						}
+						previousKey = key;
+					}
+					entry.append(line, keyEnd + 1, line.length()).append('\n');
+				}
+				nanos += System.nanoTime() - start;
+			}
+			exchange.sendResponseHeaders(204, -1);
+			exchange.close();
+		}
+	}
+}
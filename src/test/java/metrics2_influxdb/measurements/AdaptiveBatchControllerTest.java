@@ -0,0 +1,107 @@
+package metrics2_influxdb.measurements;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import metrics2_influxdb.HttpInfluxdbProtocol;
+import metrics2_influxdb.misc.Miscellaneous;
+
+public class AdaptiveBatchControllerTest {
+	private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+	private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+	@Test
+	public void fastRequestsGrowTheBatchSizeThenTheConcurrency() {
+		AdaptiveBatchController controller = new AdaptiveBatchController(100, 300, 2, 100, TimeUnit.MILLISECONDS);
+		assertThat(controller.getBatchSize(), is(100));
+		assertThat(controller.getConcurrency(), is(1));
+
+		controller.completed(FAST, true);
+		assertThat(controller.getBatchSize(), is(200));
+		controller.completed(FAST, true);
+		assertThat(controller.getBatchSize(), is(300));
+		controller.completed(FAST, true);
+		assertThat(controller.getConcurrency(), is(2));
+		controller.completed(FAST, true);
+		assertThat(controller.getBatchSize(), is(300));
+		assertThat(controller.getConcurrency(), is(2));
+	}
+
+	@Test
+	public void slowOrFailedRequestsHalveTheLoad() {
+		AdaptiveBatchController controller = new AdaptiveBatchController(100, 1000, 4, 100, TimeUnit.MILLISECONDS);
+		for (int i = 0; i < 12; i++) {
+			controller.completed(FAST, true);
+		}
+		assertThat(controller.getBatchSize(), is(1000));
+		assertThat(controller.getConcurrency(), is(4));
+
+		controller.completed(SLOW, true);
+		assertThat(controller.getBatchSize(), is(500));
+		assertThat(controller.getConcurrency(), is(2));
+		controller.completed(FAST, false);
+		assertThat(controller.getBatchSize(), is(250));
+		assertThat(controller.getConcurrency(), is(1));
+		controller.completed(FAST, false);
+		controller.completed(FAST, false);
+		assertThat(controller.getBatchSize(), is(100));
+		assertThat(controller.getConcurrency(), is(1));
+	}
+
+	@Test
+	public void httpSenderSplitsTheMeasuresAsTuned() throws IOException {
+		final List<Integer> pointsPerRequest = new CopyOnWriteArrayList<Integer>();
+		HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/write", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				InputStream in = exchange.getRequestBody();
+				pointsPerRequest.add(Miscellaneous.readFrom(in).split("\n").length);
+				exchange.sendResponseHeaders(204, -1);
+				exchange.close();
+			}
+		});
+		server.start();
+		try {
+			HttpInlinerSender sender = new HttpInlinerSender(new HttpInfluxdbProtocol("127.0.0.1", server.getAddress().getPort(), "test"));
+			AdaptiveBatchController controller = new AdaptiveBatchController(10, 20, 2, 10, TimeUnit.SECONDS);
+			sender.setAdaptiveBatching(controller);
+			for (int i = 0; i < 100; i++) {
+				sender.send(new Measure("m" + i, i));
+			}
+			sender.flush();
+			sender.close();
+		} finally {
+			server.stop(0);
+		}
+
+		int points = 0;
+		for (int n : pointsPerRequest) {
+			points += n;
+		}
+		assertThat(points, is(100));
+		// 10 then 20 points per request, then two requests of 20 in flight
+		assertThat(pointsPerRequest.size(), is(6));
+		assertThat(pointsPerRequest.subList(0, 2), is(Arrays.asList(10, 20)));
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void aLoadOverWhatTheSenderSendsAtOnceIsRejected() {
+		HttpInlinerSender sender = new HttpInlinerSender(new HttpInfluxdbProtocol("127.0.0.1", 8086, "test"));
+		sender.setAdaptiveBatching(new AdaptiveBatchController(1000, 5000, 2, 100, TimeUnit.MILLISECONDS));
+	}
+}
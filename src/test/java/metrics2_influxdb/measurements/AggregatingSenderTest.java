@@ -0,0 +1,119 @@
+package metrics2_influxdb.measurements;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class AggregatingSenderTest {
+	private ListInlinerSender listSender;
+	private AggregatingSender sender;
+
+	@BeforeMethod
+	public void init() {
+		listSender = new ListInlinerSender(100);
+		sender = new AggregatingSender(listSender, 3);
+	}
+
+	private String sent() {
+		StringBuilder sb = new StringBuilder();
+		for (String frame : listSender.getFrames()) {
+			sb.append(frame);
+		}
+		return sb.toString();
+	}
+
+	@Test
+	public void seriesAreRolledUpOverTheGivenTicks() {
+		long[] counts = {10, 30, 20};
+		for (int i = 0; i < counts.length; i++) {
+			sender.send(new Measure("requests", Collections.singletonMap("host", "a"), counts[i], 1000 * (i + 1)));
+			sender.flush();
+			if (i < counts.length - 1) {
+				assertThat(sent(), not(containsString("requests")));
+			}
+		}
+
+		String sent = sent();
+		assertThat(sent, containsString("requests,host=a "));
+		assertThat(sent, containsString("value=20i"));
+		assertThat(sent, containsString("value-min=10i"));
+		assertThat(sent, containsString("value-max=30i"));
+		assertThat(sent, containsString("value-mean=20.0"));
+		assertThat(sent, containsString("value-sum=60i"));
+		assertThat(sent, containsString("value-count=3i"));
+		assertThat(sent, containsString("samples=3i"));
+		assertThat(sent, containsString(" 3000"));
+	}
+
+	@Test
+	public void seriesAreKeyedByTheirTags() {
+		sender.send(new Measure("requests", Collections.singletonMap("host", "a"), 1));
+		sender.send(new Measure("requests", Collections.singletonMap("host", "b"), 2));
+		sender.flush();
+		sender.flush();
+		sender.flush();
+
+		String sent = sent();
+		assertThat(sent, containsString("requests,host=a samples=1i,value=1i"));
+		assertThat(sent, containsString("requests,host=b samples=1i,value=2i"));
+	}
+
+	@Test
+	public void fullResolutionMeasurementsAreSentEveryTick() {
+		sender.setFullResolution(Arrays.asList("latency"));
+		sender.send(new Measure("latency", 5.0));
+		sender.send(new Measure("requests", 1));
+		sender.flush();
+
+		String sent = sent();
+		assertThat(sent, containsString("latency value=5.0"));
+		assertThat(sent, not(containsString("requests")));
+	}
+
+	@Test
+	public void nonNumericFieldsKeepTheirLastValue() throws Exception {
+		sender.send(new Measure("state", "starting"));
+		sender.send(new Measure("state", "running"));
+		sender.close();
+
+		String sent = sent();
+		assertThat(sent, containsString("value=\"running\""));
+		assertThat(sent, not(containsString("value-min")));
+		assertThat(sent.contains("samples=2i"), is(true));
+	}
+
+	@Test
+	public void integersAreRolledUpExactly() {
+		long big = (1L << 53) + 1;
+		sender.send(new Measure("bytes", big));
+		sender.flush();
+		sender.send(new Measure("bytes", big + 2));
+		sender.flush();
+		sender.flush();
+
+		String sent = sent();
+		assertThat(sent, containsString("value-min=" + big + "i"));
+		assertThat(sent, containsString("value-max=" + (big + 2) + "i"));
+		assertThat(sent, containsString("value-sum=" + (2 * big + 2) + "i"));
+	}
+
+	@Test
+	public void deltasCoverTheWholeWindow() {
+		long[] deltas = {10, 30, 20};
+		for (long delta : deltas) {
+			sender.send(new Measure("requests", delta).addValue(DeltaTracker.DELTA, delta).addValue(DeltaTracker.RATE, delta / 10.0));
+			sender.flush();
+		}
+
+		String sent = sent();
+		assertThat(sent, containsString(" delta=60i,"));
+		assertThat(sent, containsString(",per-second=2.0,"));
+	}
+}
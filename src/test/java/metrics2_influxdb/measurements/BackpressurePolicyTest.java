@@ -0,0 +1,209 @@
+package metrics2_influxdb.measurements;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import metrics2_influxdb.reporting.ReportingMetrics;
+
+public class BackpressurePolicyTest {
+	private MetricsRegistry registry;
+	private FailingSender sender;
+
+	@BeforeMethod
+	public void init() {
+		registry = new MetricsRegistry();
+		sender = new FailingSender(3);
+		sender.setReportingMetrics(new ReportingMetrics(registry));
+	}
+
+	private long count(String name) {
+		Counter counter = (Counter) registry.allMetrics().get(new MetricName("metrics2_influxdb", "reporting", ReportingMetrics.PREFIX + name));
+		return counter == null ? 0 : counter.count();
+	}
+
+	private static List<String> values(Collection<Measure> measures) {
+		List<String> values = new ArrayList<>();
+		for (Measure m : measures) {
+			values.add(m.getValues().get("value"));
+		}
+		return values;
+	}
+
+	private void sendFour(Measure.Priority... priorities) {
+		for (int i = 0; i < 4; i++) {
+			sender.send(new Measure("m", i).priority(priorities[i]));
+		}
+		sender.available = true;
+		sender.flush();
+	}
+
+	@Test
+	public void dropOldestIsTheDefault() {
+		sendFour(Measure.Priority.NORMAL, Measure.Priority.NORMAL, Measure.Priority.NORMAL, Measure.Priority.NORMAL);
+
+		assertThat(values(sender.sent), is(Arrays.asList("1i", "2i", "3i")));
+		assertThat(count("backpressure-dropped-oldest"), is(1L));
+		assertThat(count("dropped"), is(1L));
+	}
+
+	@Test
+	public void dropNewestKeepsTheHeldMeasures() {
+		sender.setBackpressurePolicy(BackpressurePolicy.dropNewest());
+		sendFour(Measure.Priority.NORMAL, Measure.Priority.NORMAL, Measure.Priority.NORMAL, Measure.Priority.NORMAL);
+
+		assertThat(values(sender.sent), is(Arrays.asList("0i", "1i", "2i")));
+		assertThat(count("backpressure-dropped-newest"), is(1L));
+		assertThat(count("dropped"), is(1L));
+	}
+
+	@Test
+	public void lowPriorityMeasuresAreShedFirst() {
+		sender.setBackpressurePolicy(BackpressurePolicy.dropNewest());
+		sendFour(Measure.Priority.NORMAL, Measure.Priority.LOW, Measure.Priority.NORMAL, Measure.Priority.CRITICAL);
+
+		assertThat(values(sender.sent), is(Arrays.asList("0i", "2i", "3i")));
+		assertThat(count("backpressure-shed"), is(1L));
+		assertThat(count("dropped"), is(1L));
+	}
+
+	@Test
+	public void lowPriorityMeasuresDoNotShedOthers() {
+		sendFour(Measure.Priority.CRITICAL, Measure.Priority.CRITICAL, Measure.Priority.CRITICAL, Measure.Priority.LOW);
+
+		assertThat(values(sender.sent), is(Arrays.asList("1i", "2i", "3i")));
+		assertThat(count("backpressure-shed"), is(0L));
+	}
+
+	@Test
+	public void sampleOfNothingDropsTheNewMeasures() {
+		sender.setBackpressurePolicy(Measure.Priority.LOW, BackpressurePolicy.sample(0));
+		sendFour(Measure.Priority.LOW, Measure.Priority.LOW, Measure.Priority.LOW, Measure.Priority.LOW);
+
+		assertThat(values(sender.sent), is(Arrays.asList("0i", "1i", "2i")));
+		assertThat(count("backpressure-sampled-out"), is(1L));
+	}
+
+	@Test
+	public void blockRetriesUntilTheBacklogIsSent() {
+		sender.setBackpressurePolicy(BackpressurePolicy.block(5, TimeUnit.SECONDS));
+		sender.availableAfter = 2;
+		sendFour(Measure.Priority.NORMAL, Measure.Priority.NORMAL, Measure.Priority.NORMAL, Measure.Priority.NORMAL);
+
+		assertThat(values(sender.sent), is(Arrays.asList("0i", "1i", "2i", "3i")));
+		assertThat(count("backpressure-blocked"), is(1L));
+		assertThat(count("dropped"), is(0L));
+	}
+
+	@Test
+	public void blockDropsTheOldestOnTimeout() {
+		sender.setBackpressurePolicy(BackpressurePolicy.block(30, TimeUnit.MILLISECONDS));
+		sendFour(Measure.Priority.NORMAL, Measure.Priority.NORMAL, Measure.Priority.NORMAL, Measure.Priority.NORMAL);
+
+		assertThat(values(sender.sent), is(Arrays.asList("1i", "2i", "3i")));
+		assertThat(count("backpressure-block-timeouts"), is(1L));
+		assertThat(count("dropped"), is(1L));
+	}
+
+	@Test
+	public void blockWaitsOnceUntilASendSucceeds() {
+		sender.setBackpressurePolicy(BackpressurePolicy.block(30, TimeUnit.MILLISECONDS));
+		for (int i = 0; i < 6; i++) {
+			sender.send(new Measure("m", i));
+		}
+		assertThat(count("backpressure-blocked"), is(1L));
+		assertThat(count("backpressure-block-timeouts"), is(1L));
+		assertThat(count("dropped"), is(3L));
+
+		sender.available = true;
+		sender.flush();
+		assertThat(values(sender.sent), is(Arrays.asList("3i", "4i", "5i")));
+
+		sender.available = false;
+		for (int i = 0; i < 4; i++) {
+			sender.send(new Measure("m", i));
+		}
+		assertThat(count("backpressure-blocked"), is(2L));
+	}
+
+	@Test
+	public void eventSenderShedsLowPriorityEventsFirst() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		ListInlinerSender listSender = new ListInlinerSender(1000) {
+			@Override
+			public void send(Collection<Measure> measures) {
+				super.send(measures);
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		EventSender events = new EventSender(listSender, 2, 2, 1, TimeUnit.HOURS);
+		events.setReportingMetrics(new ReportingMetrics(registry));
+		events.send(new Measure("job", 0));
+		events.send(new Measure("job", 0));
+		// the flusher is now stuck sending the first batch
+		assertThat(blocked.await(5, TimeUnit.SECONDS), is(true));
+
+		events.send(new Measure("job", 1).priority(Measure.Priority.LOW));
+		events.send(new Measure("job", 2));
+		events.send(new Measure("job", 3).priority(Measure.Priority.CRITICAL));
+		events.send(new Measure("job", 4));
+		assertThat(count("backpressure-shed"), is(1L));
+		assertThat(count("backpressure-dropped-newest"), is(1L));
+
+		release.countDown();
+		events.flush();
+		// the stripe may have been drained before the flush, leaving an empty last frame
+		StringBuilder frames = new StringBuilder();
+		for (String frame : listSender.getFrames().subList(1, listSender.getFrames().size())) {
+			frames.append(frame);
+		}
+		assertThat(frames.toString().startsWith("job value=3i"), is(true));
+		assertThat(frames.toString().contains("job value=2i"), is(true));
+		assertThat(frames.toString().contains("value=1i") || frames.toString().contains("value=4i"), is(false));
+		events.close();
+	}
+
+	@Test(expectedExceptions = IllegalArgumentException.class)
+	public void sampleRatioIsBetweenZeroAndOne() {
+		BackpressurePolicy.sample(1.5);
+	}
+
+	private static class FailingSender extends QueueableSender {
+		private final List<Measure> sent = new ArrayList<>();
+		private boolean available;
+		private int availableAfter = Integer.MAX_VALUE;
+		private int attempts;
+
+		FailingSender(int queueSize) {
+			super(queueSize);
+		}
+
+		@Override
+		protected boolean doSend(Collection<Measure> measuresToSend) {
+			if (!available && ++attempts <= availableAfter) {
+				return false;
+			}
+			sent.addAll(measuresToSend);
+			return true;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package metrics2_influxdb.measurements;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import metrics2_influxdb.measurements.CardinalityLimitingSender.OverflowPolicy;
+import metrics2_influxdb.reporting.ReportingMetrics;
+
+public class CardinalityLimitingSenderTest {
+	private ListInlinerSender listSender;
+	private MetricsRegistry registry;
+
+	@BeforeMethod
+	public void init() {
+		listSender = new ListInlinerSender(1000);
+		registry = new MetricsRegistry();
+	}
+
+	private static Measure request(String user) {
+		Map<String, String> tags = new HashMap<String, String>();
+		tags.put("host", "h1");
+		tags.put("user", user);
+		return new Measure("requests", tags, 1, 1000);
+	}
+
+	private long rejected() {
+		Counter c = (Counter) registry.allMetrics().get(new MetricName("metrics2_influxdb", "reporting", ReportingMetrics.PREFIX + CardinalityLimitingSender.REJECTED));
+		return c.count();
+	}
+
+	@Test
+	public void seriesOverTheCapAreDropped() {
+		CardinalityLimitingSender sender = new CardinalityLimitingSender(listSender, 2, OverflowPolicy.DROP);
+		sender.setReportingMetrics(new ReportingMetrics(registry));
+
+		sender.send(request("u1"));
+		sender.send(request("u2"));
+		sender.send(request("u3"));
+		sender.send(request("u1"));
+		sender.flush();
+
+		String frame = listSender.getFrames().get(0);
+		assertThat(frame, containsString("user=u1"));
+		assertThat(frame, containsString("user=u2"));
+		assertThat(frame, not(containsString("user=u3")));
+		assertThat(frame.split("\n").length, is(3));
+		assertThat(sender.size(), is(2));
+		assertThat(rejected(), is(1L));
+	}
+
+	@Test
+	public void seriesOverTheCapAreCollapsed() {
+		CardinalityLimitingSender sender = new CardinalityLimitingSender(listSender, 1, OverflowPolicy.COLLAPSE);
+		sender.setCollapsedTags("user");
+		sender.setReportingMetrics(new ReportingMetrics(registry));
+
+		sender.send(request("u1"));
+		sender.send(request("u2"));
+		sender.flush();
+
+		String frame = listSender.getFrames().get(0);
+		assertThat(frame, containsString("requests,host=h1,user=u1 "));
+		assertThat(frame, containsString("requests,host=h1,user=other "));
+		assertThat(rejected(), is(1L));
+	}
+
+	@Test
+	public void collapsedSeriesOverTheirCapAreDropped() {
+		CardinalityLimitingSender sender = new CardinalityLimitingSender(listSender, 1, OverflowPolicy.COLLAPSE);
+		sender.setCollapsedTags("user");
+		sender.setMaxCollapsedSeries(1);
+		sender.setReportingMetrics(new ReportingMetrics(registry));
+
+		sender.send(request("u1"));
+		// the measurement name is unbounded too, collapsing the user tag does not bound the series
+		for (int i = 0; i < 3; i++) {
+			Map<String, String> tags = new HashMap<String, String>();
+			tags.put("user", "u" + i);
+			sender.send(new Measure("requests-" + i, tags, 1, 1000));
+		}
+		sender.flush();
+
+		String frame = listSender.getFrames().get(0);
+		assertThat(frame, containsString("requests-0,user=other "));
+		assertThat(frame, not(containsString("requests-1")));
+		assertThat(frame, not(containsString("requests-2")));
+		assertThat(rejected(), is(3L));
+	}
+
+	@Test
+	public void seriesOverTheCapAreSentWhenOnlyLogged() {
+		CardinalityLimitingSender sender = new CardinalityLimitingSender(listSender, 1, OverflowPolicy.LOG_ONCE);
+
+		sender.send(request("u1"));
+		sender.send(request("u2"));
+		sender.send(request("u3"));
+		sender.flush();
+
+		assertThat(listSender.getFrames().get(0).split("\n").length, is(3));
+		assertThat(sender.size(), is(1));
+	}
+
+	@Test
+	public void tagsOrderDoesNotMatter() {
+		CardinalityLimitingSender sender = new CardinalityLimitingSender(listSender, 1000, OverflowPolicy.DROP);
+		for (int i = 0; i < 500; i++) {
+			sender.send(request("u" + i));
+			sender.send(request("u" + i));
+		}
+		assertThat(sender.size(), is(500));
+	}
+
+	@Test
+	public void namesOfTheSameStringHashAreDistinctSeries() {
+		CardinalityLimitingSender sender = new CardinalityLimitingSender(listSender, 1, OverflowPolicy.DROP);
+		sender.setReportingMetrics(new ReportingMetrics(registry));
+		assertThat("Aa".hashCode(), is("BB".hashCode()));
+
+		sender.send(new Measure("Aa", 1));
+		sender.send(new Measure("BB", 1));
+		sender.send(new Measure("BB", 2));
+		sender.flush();
+
+		assertThat(listSender.getFrames().get(0), not(containsString("BB")));
+		assertThat(sender.size(), is(1));
+		// counted per measure, not per series
+		assertThat(rejected(), is(2L));
+	}
+}
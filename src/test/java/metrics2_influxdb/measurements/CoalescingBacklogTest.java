@@ -0,0 +1,129 @@
+package metrics2_influxdb.measurements;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import metrics2_influxdb.reporting.ReportingMetrics;
+
+public class CoalescingBacklogTest {
+	private static List<String> lines(CoalescingBacklog backlog) {
+		List<String> lines = new ArrayList<String>();
+		for (Measure m : backlog) {
+			lines.add(m.getName() + "=" + m.getValues().get("value") + "@" + m.getTimestamp());
+		}
+		return lines;
+	}
+
+	@Test
+	public void gaugesKeepTheirLatestValue() {
+		CoalescingBacklog backlog = new CoalescingBacklog(10);
+		for (int tick = 1; tick <= 5; tick++) {
+			backlog.add(new Measure("heap", tick, tick).type(Measure.GAUGE));
+		}
+
+		assertThat(backlog.size(), is(1));
+		assertThat(lines(backlog), contains("heap=5i@5"));
+	}
+
+	@Test
+	public void countsKeepTheirFirstAndLatestValues() {
+		CoalescingBacklog backlog = new CoalescingBacklog(10);
+		for (int tick = 1; tick <= 5; tick++) {
+			backlog.add(new Measure("requests", tick * 10, tick).type(Measure.COUNTER));
+			backlog.add(new Measure("heap", tick, tick).type(Measure.GAUGE));
+		}
+
+		assertThat(backlog.size(), is(3));
+		assertThat(backlog.seriesCount(), is(2));
+		assertThat(lines(backlog), contains("requests=10i@1", "requests=50i@5", "heap=5i@5"));
+	}
+
+	@Test
+	public void oldestSeriesAreEvictedOverTheMaximum() {
+		CoalescingBacklog backlog = new CoalescingBacklog(2);
+		backlog.add(new Measure("a", 1, 1).type(Measure.COUNTER));
+		backlog.add(new Measure("a", 2, 2).type(Measure.COUNTER));
+		backlog.add(new Measure("b", 1, 1));
+		backlog.add(new Measure("c", 1, 1));
+
+		assertThat(backlog.size(), is(2));
+		assertThat(lines(backlog), contains("b=1i@1", "c=1i@1"));
+
+		backlog.clear();
+		assertThat(backlog.isEmpty(), is(true));
+	}
+
+	@Test
+	public void senderRetriesCoalescedMeasures() {
+		final List<String> sent = new ArrayList<String>();
+		final boolean[] reachable = { false };
+		QueueableSender sender = new QueueableSender(100, new CoalescingBacklog(100)) {
+			@Override
+			protected boolean doSend(Collection<Measure> measures) {
+				if (!reachable[0]) {
+					return false;
+				}
+				for (Measure m : measures) {
+					sent.add(m.getName() + "@" + m.getTimestamp());
+				}
+				return true;
+			}
+		};
+
+		for (int tick = 1; tick <= 10; tick++) {
+			sender.send(new Measure("heap", tick, tick).type(Measure.GAUGE));
+			sender.flush();
+		}
+		reachable[0] = true;
+		sender.flush();
+
+		assertThat(sent, contains("heap@10"));
+	}
+
+	@Test
+	public void measuresAreOnlyCoalescedOnceASendFailed() {
+		MetricsRegistry registry = new MetricsRegistry();
+		final List<String> sent = new ArrayList<String>();
+		final boolean[] reachable = { true };
+		QueueableSender sender = new QueueableSender(100, new CoalescingBacklog(100)) {
+			@Override
+			protected boolean doSend(Collection<Measure> measures) {
+				if (!reachable[0]) {
+					return false;
+				}
+				for (Measure m : measures) {
+					sent.add(m.getName() + "@" + m.getTimestamp());
+				}
+				return true;
+			}
+		};
+		sender.setReportingMetrics(new ReportingMetrics(registry));
+
+		sender.send(new Measure("heap", 1, 1).type(Measure.GAUGE));
+		sender.send(new Measure("heap", 2, 2).type(Measure.GAUGE));
+		sender.flush();
+		assertThat(sent, contains("heap@1", "heap@2"));
+
+		reachable[0] = false;
+		sender.send(new Measure("heap", 3, 3).type(Measure.GAUGE));
+		sender.send(new Measure("heap", 4, 4).type(Measure.GAUGE));
+		sender.flush();
+		reachable[0] = true;
+		sender.flush();
+
+		assertThat(sent, contains("heap@1", "heap@2", "heap@4"));
+		Counter dropped = (Counter) registry.allMetrics().get(new MetricName("metrics2_influxdb", "reporting", ReportingMetrics.PREFIX + "dropped"));
+		assertThat(dropped.count(), is(1L));
+	}
+}
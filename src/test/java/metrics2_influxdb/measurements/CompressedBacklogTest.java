@@ -0,0 +1,172 @@
+package metrics2_influxdb.measurements;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.testng.annotations.Test;
+
+public class CompressedBacklogTest {
+	@Test
+	public void measuresAreDecodedAsTheyWereAdded() {
+		CompressedBacklog backlog = new CompressedBacklog(1 << 20);
+		Random random = new Random(42);
+		List<Measure> added = new ArrayList<Measure>();
+		long timestamp = 1450000000000L;
+		for (int i = 0; i < 500; i++) {
+			// a jittered period
+			timestamp += 10000 + random.nextInt(100) - 50;
+			Map<String, String> tags = Collections.singletonMap("host", "h1");
+			Measure m = new Measure("requests", tags, (Map<String, String>) null, timestamp).type(Measure.TIMER)
+					.addValue("count", (long) i * 3)
+					.addValue("mean", 12.5 + random.nextGaussian())
+					.addValue("max", i % 7 == 0 ? Double.NaN : 100.0);
+			if (i % 50 == 0) {
+				m.addValue("state", "restarted");
+			}
+			added.add(m);
+			backlog.add(m);
+		}
+
+		assertThat(backlog.size(), is(500));
+		int i = 0;
+		for (Measure m : backlog) {
+			Measure expected = added.get(i++);
+			assertThat(m.getName(), is("requests"));
+			assertThat(m.getTags(), is(expected.getTags()));
+			assertThat(m.getType(), is(Measure.TIMER));
+			assertThat(m.getTimestamp(), is(expected.getTimestamp()));
+			assertThat(m.getValues(), is(expected.getValues()));
+		}
+		assertThat(i, is(500));
+	}
+
+	@Test
+	public void seriesAreMergedInTimeOrder() {
+		CompressedBacklog backlog = new CompressedBacklog(1 << 20);
+		for (int tick = 0; tick < 3; tick++) {
+			backlog.add(new Measure("a", tick, 1000 * tick));
+			backlog.add(new Measure("b", tick, 1000 * tick + 500));
+		}
+
+		List<String> decoded = new ArrayList<String>();
+		for (Measure m : backlog) {
+			decoded.add(m.getName() + "@" + m.getTimestamp());
+		}
+		assertThat(decoded, contains("a@0", "b@500", "a@1000", "b@1500", "a@2000", "b@2500"));
+	}
+
+	@Test
+	public void regularSeriesTakeAFewBytesPerValue() {
+		CompressedBacklog backlog = new CompressedBacklog(1 << 30);
+		int points = 180;
+		int series = 100;
+		for (int tick = 0; tick < points; tick++) {
+			for (int s = 0; s < series; s++) {
+				Map<String, String> values = new HashMap<String, String>();
+				values.put("count", (1000 + tick * s) + "i");
+				values.put("value", "" + (s * 0.25));
+				backlog.add(new Measure("gauge" + s, Collections.<String, String>emptyMap(), values, 10000L * tick));
+			}
+		}
+
+		long values = 2L * points * series;
+		long payload = backlog.bytes() - 256L * series;
+		assertThat(payload / values, lessThan(3L));
+	}
+
+	@Test
+	public void measuresOverTheMaximumAreRejected() {
+		CompressedBacklog backlog = new CompressedBacklog(1000);
+		for (int i = 0; i < 100; i++) {
+			backlog.add(new Measure("series" + i, i, 1000));
+		}
+		assertThat(backlog.size() < 100, is(true));
+		assertThat(backlog.rejected(), is(100L - backlog.size()));
+	}
+
+	@Test
+	public void integersAreExactBeyondTheDoublePrecision() {
+		CompressedBacklog backlog = new CompressedBacklog(1 << 20);
+		long big = (1L << 53) + 1;
+		backlog.add(new Measure("counter", big, 1000));
+		backlog.add(new Measure("counter", Long.MAX_VALUE, 2000));
+		backlog.add(new Measure("counter", -3, 3000));
+
+		List<String> decoded = new ArrayList<String>();
+		for (Measure m : backlog) {
+			decoded.add(m.getValues().get("value"));
+		}
+		assertThat(decoded, contains(big + "i", Long.MAX_VALUE + "i", "-3i"));
+	}
+
+	@Test
+	public void backlogIsDrainedInSlices() {
+		CompressedBacklog backlog = new CompressedBacklog(1 << 20);
+		for (int tick = 0; tick < 3; tick++) {
+			backlog.add(new Measure("a", tick, 1000 * tick));
+			backlog.add(new Measure("b", tick, 1000 * tick + 500));
+		}
+
+		assertThat(names(backlog.peek(4)), contains("a@0", "b@500", "a@1000", "b@1500"));
+		// not removed until sent
+		assertThat(names(backlog.peek(4)), contains("a@0", "b@500", "a@1000", "b@1500"));
+		backlog.removePeeked();
+		assertThat(backlog.size(), is(2));
+
+		// points and fields added after a partial drain
+		backlog.add(new Measure("a", 3, 3000).addValue("extra", 1L));
+		assertThat(names(backlog.peek(10)), contains("a@2000", "b@2500", "a@3000"));
+		List<Measure> last = backlog.peek(10);
+		assertThat(last.get(2).getValues().get("extra"), is("1i"));
+		assertThat(last.get(0).getValues().get("extra"), is((String) null));
+		backlog.removePeeked();
+
+		assertThat(backlog.isEmpty(), is(true));
+		assertThat(backlog.bytes(), is(0L));
+	}
+
+	private static List<String> names(List<Measure> measures) {
+		List<String> names = new ArrayList<String>();
+		for (Measure m : measures) {
+			names.add(m.getName() + "@" + m.getTimestamp());
+		}
+		return names;
+	}
+
+	@Test
+	public void senderSendsTheBacklogInSlicesOfTheQueueSize() {
+		final List<Integer> requests = new ArrayList<Integer>();
+		final boolean[] reachable = { false };
+		QueueableSender sender = new QueueableSender(10, new CompressedBacklog(1 << 20)) {
+			@Override
+			protected boolean doSend(Collection<Measure> measures) {
+				if (reachable[0]) {
+					requests.add(measures.size());
+				}
+				return reachable[0];
+			}
+		};
+
+		for (int tick = 0; tick < 3; tick++) {
+			for (int i = 0; i < 10; i++) {
+				sender.send(new Measure("series" + i, tick, 1000 * tick));
+			}
+			sender.flush();
+		}
+		reachable[0] = true;
+		sender.send(new Measure("series0", 3, 3000));
+		sender.flush();
+
+		assertThat(requests, contains(10, 10, 10, 1));
+	}
+}
@@ -0,0 +1,76 @@
+package metrics2_influxdb.measurements;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.MetricName;
+
+public class DeltaTrackerTest {
+	private static final long PERIOD = 10000;
+	private DeltaTracker tracker;
+	private MetricName name = new MetricName(DeltaTrackerTest.class, "requests");
+
+	@BeforeMethod
+	public void newTracker() {
+		tracker = new DeltaTracker();
+	}
+
+	@Test
+	public void first_tick_gives_no_delta_then_deltas_and_rates_follow() {
+		tracker.tick(0, PERIOD);
+		Measure first = tracker.addDeltas(new Measure("requests"), name, 100, true);
+		assertThat(first.getValues().get(DeltaTracker.DELTA), nullValue());
+
+		tracker.tick(PERIOD, PERIOD);
+		Measure second = tracker.addDeltas(new Measure("requests"), name, 150, true);
+		assertThat(second.getValues().get(DeltaTracker.DELTA), is("50i"));
+		assertThat(second.getValues().get(DeltaTracker.RATE), is("5.0"));
+	}
+
+	@Test
+	public void monotonic_count_decreasing_is_a_reset() {
+		tracker.tick(0, PERIOD);
+		tracker.addDeltas(new Measure("requests"), name, 100, true);
+
+		tracker.tick(PERIOD, PERIOD);
+		Measure afterReset = tracker.addDeltas(new Measure("requests"), name, 20, true);
+		assertThat(afterReset.getValues().get(DeltaTracker.DELTA), is("20i"));
+	}
+
+	@Test
+	public void counter_delta_is_signed() {
+		tracker.tick(0, PERIOD);
+		tracker.addDeltas(new Measure("in-flight"), name, 100, false);
+
+		tracker.tick(PERIOD, PERIOD);
+		Measure m = tracker.addDeltas(new Measure("in-flight"), name, 80, false);
+		assertThat(m.getValues().get(DeltaTracker.DELTA), is("-20i"));
+	}
+
+	@Test
+	public void metric_registered_after_the_first_period_reports_its_whole_count() {
+		tracker.tick(0, PERIOD);
+		tracker.tick(PERIOD, PERIOD);
+		Measure m = tracker.addDeltas(new Measure("requests"), name, 30, true);
+		assertThat(m.getValues().get(DeltaTracker.DELTA), is("30i"));
+		assertThat(m.getValues().get(DeltaTracker.RATE), is("3.0"));
+	}
+
+	@Test
+	public void metrics_not_seen_anymore_are_evicted() {
+		tracker.tick(0, PERIOD);
+		for (int i = 0; i < 1000; i++) {
+			tracker.addDeltas(new Measure("m"), new MetricName(DeltaTrackerTest.class, "m" + i), i, true);
+		}
+		assertThat(tracker.size(), is(1000));
+
+		tracker.tick(100 * PERIOD, PERIOD);
+		tracker.addDeltas(new Measure("requests"), name, 1, true);
+		tracker.tick(101 * PERIOD, PERIOD);
+		assertThat(tracker.size(), is(1));
+	}
+}
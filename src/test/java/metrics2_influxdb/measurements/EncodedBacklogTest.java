@@ -0,0 +1,206 @@
+package metrics2_influxdb.measurements;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.lessThan;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.testng.annotations.Test;
+
+import metrics2_influxdb.misc.BufferPool;
+import metrics2_influxdb.misc.Miscellaneous;
+import metrics2_influxdb.reporting.TickDeadline;
+
+public class EncodedBacklogTest {
+	private static String content(EncodedBacklog.Chunk chunk) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		chunk.writeTo(out);
+		InputStream in = new ByteArrayInputStream(out.toByteArray());
+		if (chunk.isCompressed()) {
+			in = new GZIPInputStream(in);
+		}
+		return Miscellaneous.readFrom(in);
+	}
+
+	private static byte[] payload(String s) {
+		return s.getBytes(Miscellaneous.UTF8);
+	}
+
+	@Test
+	public void chunksSpanSeveralBuffers() throws IOException {
+		BufferPool pool = new BufferPool(4, 10);
+		EncodedBacklog backlog = new EncodedBacklog(pool, false);
+
+		assertThat(backlog.add(payload("a value=1i 1"), 1), is(0));
+		assertThat(backlog.bytes(), is(12L));
+		assertThat(pool.usedBytes(), is(12L));
+		assertThat(content(backlog.peek()), is("a value=1i 1"));
+
+		backlog.remove();
+		assertThat(backlog.isEmpty(), is(true));
+		assertThat(pool.usedBytes(), is(0L));
+		assertThat(pool.allocatedBytes(), is(12L));
+	}
+
+	@Test
+	public void oldestChunksAreEvictedWhenThePoolIsExhausted() throws IOException {
+		EncodedBacklog backlog = new EncodedBacklog(new BufferPool(8, 2), false);
+
+		assertThat(backlog.add(payload("first"), 1), is(0));
+		assertThat(backlog.add(payload("second"), 2), is(0));
+		assertThat(backlog.add(payload("third 16 bytes.."), 3), is(3));
+		assertThat(backlog.points(), is(3));
+		assertThat(content(backlog.peek()), is("third 16 bytes.."));
+
+		assertThat(backlog.add(payload("too large for the pool"), 4), is(7));
+		assertThat(backlog.isEmpty(), is(true));
+	}
+
+	@Test
+	public void compressedChunksAreSmaller() throws IOException {
+		StringBuilder lines = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			lines.append("requests,host=h1 count=").append(i).append("i 1000\n");
+		}
+		EncodedBacklog backlog = new EncodedBacklog(new BufferPool(1024, 100), true);
+		backlog.add(payload(lines.toString()), 200);
+
+		assertThat(backlog.bytes(), lessThan((long) lines.length() / 4));
+		assertThat(content(backlog.peek()), is(lines.toString()));
+	}
+
+	@Test
+	public void senderRetriesEncodedChunksInOrder() throws IOException {
+		final List<String> sent = new ArrayList<String>();
+		final boolean[] reachable = { false };
+		final int[] encodings = { 0 };
+		QueueableSender sender = new QueueableSender(100) {
+			@Override
+			protected boolean isEncodingSupported() {
+				return true;
+			}
+
+			@Override
+			protected boolean doSend(Collection<Measure> measures) {
+				if (reachable[0]) {
+					sent.add(measures.iterator().next().getName());
+				}
+				return reachable[0];
+			}
+
+			@Override
+			protected byte[] encode(Collection<Measure> measures) {
+				encodings[0]++;
+				return payload(measures.iterator().next().getName());
+			}
+
+			@Override
+			protected boolean doSend(EncodedBacklog.Chunk chunk) {
+				if (!reachable[0]) {
+					return false;
+				}
+				try {
+					sent.add(content(chunk));
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				return true;
+			}
+		};
+		sender.setEncodedBacklog(new EncodedBacklog(new BufferPool(64, 10), true));
+
+		sender.send(new Measure("tick1", 1));
+		sender.flush();
+		sender.flush();
+		sender.send(new Measure("tick2", 1));
+		sender.flush();
+		reachable[0] = true;
+		sender.flush();
+
+		assertThat(sent, contains("tick1", "tick2"));
+		// the payload of a failed send is the one held
+		assertThat(encodings[0], is(2));
+
+		sender.send(new Measure("tick3", 1));
+		sender.flush();
+		assertThat(sent, contains("tick1", "tick2", "tick3"));
+		assertThat(encodings[0], is(3));
+	}
+
+	@Test
+	public void theDeadlineIsCheckedBeforeEachChunk() throws IOException {
+		final List<String> sent = new ArrayList<String>();
+		final boolean[] reachable = { false };
+		final int[] encodings = { 0 };
+		QueueableSender sender = new QueueableSender(100) {
+			@Override
+			protected boolean isEncodingSupported() {
+				return true;
+			}
+
+			@Override
+			protected boolean doSend(Collection<Measure> measures) {
+				if (reachable[0]) {
+					sent.add(measures.iterator().next().getName());
+				}
+				return reachable[0];
+			}
+
+			@Override
+			protected byte[] encode(Collection<Measure> measures) {
+				encodings[0]++;
+				return payload(measures.iterator().next().getName());
+			}
+
+			@Override
+			protected boolean doSend(EncodedBacklog.Chunk chunk) {
+				if (!reachable[0]) {
+					return false;
+				}
+				try {
+					sent.add(content(chunk));
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				if (sent.size() == 1) {
+					// the first chunk takes the whole tick
+					TickDeadline.set(System.nanoTime());
+				}
+				return true;
+			}
+		};
+		sender.setEncodedBacklog(new EncodedBacklog(new BufferPool(64, 10), false));
+		sender.send(new Measure("tick1", 1));
+		sender.flush();
+		sender.send(new Measure("tick2", 1));
+		sender.flush();
+		reachable[0] = true;
+
+		try {
+			sender.send(new Measure("tick3", 1));
+			sender.flush();
+			assertThat(sent, contains("tick1"));
+			// kept for the next tick, not encoded
+			assertThat(encodings[0], is(2));
+		} finally {
+			TickDeadline.clear();
+		}
+		sender.flush();
+		assertThat(sent, contains("tick1", "tick2", "tick3"));
+		assertThat(encodings[0], is(3));
+	}
+
+	@Test(expectedExceptions = UnsupportedOperationException.class)
+	public void sendersNotSupportingEncodingAreRejected() {
+		new ListInlinerSender(100).setEncodedBacklog(new EncodedBacklog(new BufferPool(64, 10), false));
+	}
+}
@@ -0,0 +1,163 @@
+package metrics2_influxdb.measurements;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import metrics2_influxdb.reporting.ReportingMetrics;
+
+public class EventSenderTest {
+	private static int lines(ListInlinerSender sender) {
+		int lines = 0;
+		for (String frame : sender.getFrames()) {
+			if (!frame.isEmpty()) {
+				lines += frame.split("\n").length;
+			}
+		}
+		return lines;
+	}
+
+	@Test
+	public void eventsOfConcurrentProducersAreAllSent() throws Exception {
+		ListInlinerSender listSender = new ListInlinerSender(100000);
+		final EventSender sender = new EventSender(listSender, 1000, 100000, 1, TimeUnit.HOURS);
+		final int threads = 4;
+		final int events = 10000;
+		Thread[] producers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			producers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < events; i++) {
+						sender.send(new Measure("job", thread * events + i, i));
+					}
+				}
+			});
+			producers[t].start();
+		}
+		for (Thread producer : producers) {
+			producer.join();
+		}
+		sender.flush();
+
+		assertThat(lines(listSender), is(threads * events));
+		assertThat(sender.pending(), is(0));
+		sender.close();
+	}
+
+	@Test
+	public void aBatchIsSentWithoutWaitingForTheLinger() throws Exception {
+		final CountDownLatch sent = new CountDownLatch(1);
+		ListInlinerSender listSender = new ListInlinerSender(1000) {
+			@Override
+			public void flush() {
+				super.flush();
+				sent.countDown();
+			}
+		};
+		EventSender sender = new EventSender(listSender, 10, 100, 1, TimeUnit.HOURS);
+		for (int i = 0; i < 10; i++) {
+			sender.send(new Measure("job", i));
+		}
+
+		assertThat(sent.await(5, TimeUnit.SECONDS), is(true));
+		sender.close();
+	}
+
+	@Test
+	public void lingeringEventsAreSent() throws Exception {
+		final CountDownLatch sent = new CountDownLatch(1);
+		ListInlinerSender listSender = new ListInlinerSender(1000) {
+			@Override
+			protected boolean doSend(Collection<Measure> measuresToSend) {
+				if (!measuresToSend.isEmpty()) {
+					sent.countDown();
+				}
+				return super.doSend(measuresToSend);
+			}
+		};
+		EventSender sender = new EventSender(listSender, 10, 100, 20, TimeUnit.MILLISECONDS);
+		sender.send(new Measure("job", 1));
+
+		assertThat(sent.await(5, TimeUnit.SECONDS), is(true));
+		sender.close();
+	}
+
+	@Test
+	public void theWrappedSenderIsNotFlushedWithoutEvents() throws Exception {
+		final AtomicInteger flushes = new AtomicInteger();
+		ListInlinerSender listSender = new ListInlinerSender(1000) {
+			@Override
+			public void flush() {
+				super.flush();
+				flushes.incrementAndGet();
+			}
+		};
+		EventSender sender = new EventSender(listSender, 10, 100, 5, TimeUnit.MILLISECONDS);
+		Thread.sleep(100);
+		assertThat(flushes.get(), is(0));
+
+		sender.flush();
+		assertThat(flushes.get(), is(1));
+		sender.close();
+	}
+
+	@Test
+	public void eventsOverTheCapacityAreDropped() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		ListInlinerSender listSender = new ListInlinerSender(1000) {
+			@Override
+			public void send(Collection<Measure> measures) {
+				super.send(measures);
+				blocked.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		MetricsRegistry registry = new MetricsRegistry();
+		EventSender sender = new EventSender(listSender, 10, 10, 1, TimeUnit.HOURS);
+		sender.setReportingMetrics(new ReportingMetrics(registry));
+
+		for (int i = 0; i < 10; i++) {
+			sender.send(new Measure("job", i));
+		}
+		// the flusher is now stuck sending the first batch
+		assertThat(blocked.await(5, TimeUnit.SECONDS), is(true));
+		for (int i = 0; i < 11; i++) {
+			sender.send(new Measure("job", i));
+		}
+		Counter dropped = (Counter) registry.allMetrics().get(new MetricName("metrics2_influxdb", "reporting", ReportingMetrics.PREFIX + "dropped"));
+		assertThat(dropped.count(), is(1L));
+
+		release.countDown();
+		sender.flush();
+		assertThat(lines(listSender), is(20));
+		sender.close();
+	}
+
+	@Test
+	public void closeSendsTheHeldEvents() throws IOException {
+		ListInlinerSender listSender = new ListInlinerSender(1000);
+		EventSender sender = new EventSender(listSender, 100, 100, 1, TimeUnit.HOURS);
+		sender.send(new Measure("job", 1));
+		sender.close();
+
+		assertThat(lines(listSender), is(1));
+	}
+}
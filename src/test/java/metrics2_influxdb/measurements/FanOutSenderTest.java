@@ -0,0 +1,203 @@
+package metrics2_influxdb.measurements;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import metrics2_influxdb.misc.Miscellaneous;
+import metrics2_influxdb.reporting.ReportingMetrics;
+
+public class FanOutSenderTest {
+	private MetricsRegistry registry;
+
+	@BeforeMethod
+	public void init() {
+		registry = new MetricsRegistry();
+	}
+
+	private long count(String name) {
+		Counter counter = (Counter) registry.allMetrics().get(new MetricName("metrics2_influxdb", "reporting", ReportingMetrics.PREFIX + name));
+		return counter == null ? 0 : counter.count();
+	}
+
+	private Object gauge(String name) {
+		return ((Gauge<?>) registry.allMetrics().get(new MetricName("metrics2_influxdb", "reporting", ReportingMetrics.PREFIX + name))).value();
+	}
+
+	private static void await(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private static void eventually(List<String> received, int size) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (received.size() < size && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+	}
+
+	@Test
+	public void measuresAreEncodedOnceForAllTheDestinations() throws Exception {
+		RecordingTransport primary = new RecordingTransport();
+		RecordingTransport secondary = new RecordingTransport();
+		FanOutSender sender = new FanOutSender(100, 1024);
+		sender.addDestination("primary", primary);
+		sender.addDestination("secondary", secondary);
+
+		sender.send(new Measure("a", 1));
+		sender.send(new Measure("b", 2));
+		sender.flush();
+		eventually(primary.received, 1);
+		eventually(secondary.received, 1);
+
+		assertThat(primary.received, contains("a", "b"));
+		assertThat(secondary.received, contains("a", "b"));
+		assertThat(primary.encodings.get() + secondary.encodings.get(), is(1));
+		sender.close();
+	}
+
+	@Test
+	public void aSlowDestinationDoesNotDelayTheOthers() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		RecordingTransport primary = new RecordingTransport();
+		RecordingTransport slow = new RecordingTransport() {
+			@Override
+			protected boolean doSend(EncodedBacklog.Chunk chunk) {
+				await(release);
+				return super.doSend(chunk);
+			}
+		};
+		FanOutSender sender = new FanOutSender(1, 1024);
+		sender.addDestination("primary", primary);
+		sender.addDestination("slow", slow);
+
+		for (int i = 0; i < 3; i++) {
+			sender.send(new Measure("m" + i, i));
+		}
+		eventually(primary.received, 3);
+		assertThat(primary.received, contains("m0", "m1", "m2"));
+		assertThat(slow.received.isEmpty(), is(true));
+
+		release.countDown();
+		eventually(slow.received, 3);
+		assertThat(slow.received, contains("m0", "m1", "m2"));
+		sender.close();
+	}
+
+	@Test
+	public void theOldestBatchesAreEvictedWhenAQueueIsFull() throws Exception {
+		final CountDownLatch blocked = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		RecordingTransport slow = new RecordingTransport() {
+			@Override
+			protected boolean doSend(EncodedBacklog.Chunk chunk) {
+				blocked.countDown();
+				await(release);
+				return super.doSend(chunk);
+			}
+		};
+		FanOutSender sender = new FanOutSender(1, 4);
+		sender.setReportingMetrics(new ReportingMetrics(registry));
+		sender.addDestination("slow", slow);
+
+		sender.send(new Measure("m0", 0));
+		// the destination is now stuck sending m0, still in its queue
+		assertThat(blocked.await(5, TimeUnit.SECONDS), is(true));
+		sender.send(new Measure("m1", 1));
+		sender.send(new Measure("m2", 2));
+		assertThat(count("slow-dropped"), is(1L));
+		assertThat(count("dropped"), is(1L));
+
+		release.countDown();
+		eventually(slow.received, 2);
+		assertThat(slow.received, contains("m0", "m2"));
+		sender.close();
+	}
+
+	@Test
+	public void theCircuitOpensAfterConsecutiveFailures() throws Exception {
+		final AtomicInteger attempts = new AtomicInteger();
+		RecordingTransport down = new RecordingTransport() {
+			@Override
+			protected boolean doSend(EncodedBacklog.Chunk chunk) {
+				attempts.incrementAndGet();
+				return false;
+			}
+		};
+		FanOutSender sender = new FanOutSender(1, 1024);
+		sender.setReportingMetrics(new ReportingMetrics(registry));
+		sender.setCircuitBreaker(2, 1, TimeUnit.HOURS);
+		sender.addDestination("down", down);
+
+		sender.send(new Measure("m0", 0));
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (attempts.get() < 2 && System.nanoTime() < deadline) {
+			Thread.sleep(5);
+		}
+		Thread.sleep(50);
+
+		assertThat(attempts.get(), is(2));
+		assertThat(gauge("down-circuit-open"), is((Object) 1));
+		assertThat(count("down-failed"), is(2L));
+		assertThat(gauge("down-queued-bytes"), is((Object) 2L));
+		sender.close();
+	}
+
+	private static class RecordingTransport extends QueueableSender {
+		private final List<String> received = new CopyOnWriteArrayList<String>();
+		private final AtomicInteger encodings = new AtomicInteger();
+
+		RecordingTransport() {
+			super(100);
+		}
+
+		@Override
+		protected boolean isEncodingSupported() {
+			return true;
+		}
+
+		@Override
+		protected byte[] encode(Collection<Measure> measures) {
+			encodings.incrementAndGet();
+			StringBuilder names = new StringBuilder();
+			for (Measure m : measures) {
+				names.append(names.length() == 0 ? "" : " ").append(m.getName());
+			}
+			return names.toString().getBytes(Miscellaneous.UTF8);
+		}
+
+		@Override
+		protected boolean doSend(EncodedBacklog.Chunk chunk) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			try {
+				chunk.writeTo(out);
+			} catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+			for (String name : new String(out.toByteArray(), Miscellaneous.UTF8).split(" ")) {
+				received.add(name);
+			}
+			return true;
+		}
+	}
+}
@@ -2,16 +2,27 @@ package metrics2_influxdb.measurements;
 
 import com.yammer.metrics.core.*;
 import com.yammer.metrics.core.TimerContext;
+import metrics2_influxdb.api.measurements.GroupingMetricMeasurementTransformer;
 import metrics2_influxdb.api.measurements.MetricMeasurementTransformer;
+import metrics2_influxdb.metrics.IntervalRecorder;
+import metrics2_influxdb.metrics.StripedCounter;
+import metrics2_influxdb.metrics.StripedMeter;
+import metrics2_influxdb.reporting.ReportingMetrics;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThan;
 import static org.hamcrest.Matchers.startsWith;
 
 public class MeasurementReporterTest {
@@ -150,4 +161,201 @@ public class MeasurementReporterTest {
 		assertThat(sender.getFrames().get(0), containsString("999-percentile="));
 		assertThat(sender.getFrames().get(0), containsString("run-count="));
 	}
+
+	@Test
+	public void reportingMetricsAreReportedAlongTheRegistry() {
+		MetricsRegistry own = new MetricsRegistry();
+		ReportingMetrics reportingMetrics = new ReportingMetrics(own);
+		sender.setReportingMetrics(reportingMetrics);
+		reporter.setReportingMetrics(reportingMetrics);
+
+		registry.newCounter(new MetricName(MeasurementReporterTest.class, "my-counter")).inc();
+		reporter.run();
+		reporter.run();
+
+		assertThat(sender.getFrames().size(), is(2));
+		assertThat(sender.getFrames().get(1), containsString(ReportingMetrics.PREFIX + "collect"));
+		assertThat(sender.getFrames().get(1), containsString(ReportingMetrics.PREFIX + "queue-depth"));
+		assertThat(((Counter) own.allMetrics().get(new MetricName("metrics2_influxdb", "reporting", ReportingMetrics.PREFIX + "points-sent"))).count(), greaterThan(1L));
+		own.shutdown();
+	}
+
+	@Test
+	public void profilerReportsTheMostExpensiveMetrics() {
+		reporter.setCollectionProfiler(new CollectionProfiler(1, 2));
+		registry.newCounter(new MetricName(MeasurementReporterTest.class, "my-counter")).inc();
+		registry.newGauge(new MetricName(MeasurementReporterTest.class, "my-slow-gauge"), new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				try {
+					Thread.sleep(5);
+				} catch (InterruptedException ignored) {
+				}
+				return 1;
+			}
+		});
+
+		reporter.run();
+		reporter.run();
+
+		assertThat(sender.getFrames().size(), is(2));
+		assertThat(sender.getFrames().get(0), containsString(CollectionProfiler.MEASUREMENT + ",metric=metrics2_influxdb.measurements.MeasurementReporterTest.my-slow-gauge nanos="));
+		assertThat(sender.getFrames().get(0), not(containsString("MeasurementReporterTest.my-counter")));
+		// only one tick out of two is profiled
+		assertThat(sender.getFrames().get(1), not(containsString(CollectionProfiler.MEASUREMENT)));
+	}
+
+	@Test
+	public void failingGaugeDoesNotPreventOtherMetricsFromBeingReported() {
+		registry.newGauge(new MetricName(MeasurementReporterTest.class, "a-failing-gauge"), new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				throw new IllegalStateException("broken gauge");
+			}
+		});
+		registry.newCounter(new MetricName(MeasurementReporterTest.class, "my-counter")).inc();
+
+		reporter.run();
+
+		assertThat(sender.getFrames().size(), is(1));
+		assertThat(sender.getFrames().get(0), startsWith("my-counter"));
+	}
+
+	@Test
+	public void slowGaugeIsReportedWithItsLastValueOnTimeout() {
+		GaugeEvaluator evaluator = new GaugeEvaluator(2, 50, TimeUnit.MILLISECONDS, GaugeEvaluator.TimeoutPolicy.LAST_VALUE);
+		reporter.setGaugeEvaluator(evaluator);
+		final int[] calls = {0};
+		registry.newGauge(new MetricName(MeasurementReporterTest.class, "my-slow-gauge"), new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				if (calls[0]++ > 0) {
+					try {
+						Thread.sleep(2000);
+					} catch (InterruptedException ignored) {
+					}
+				}
+				return calls[0];
+			}
+		});
+
+		reporter.run();
+		long start = System.nanoTime();
+		reporter.run();
+		long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		reporter.shutdown();
+
+		assertThat(sender.getFrames().size(), is(2));
+		assertThat(sender.getFrames().get(0), containsString("value=1i"));
+		assertThat(sender.getFrames().get(1), containsString("value=1i"));
+		assertThat(elapsed, lessThan(1000L));
+	}
+
+	@Test
+	public void onlyPlainGaugesOfRegisteredMetricsAreEvaluated() {
+		GaugeEvaluator evaluator = new GaugeEvaluator(2, 1, TimeUnit.SECONDS, GaugeEvaluator.TimeoutPolicy.LAST_VALUE);
+		reporter.setGaugeEvaluator(evaluator);
+		MetricName gauge = new MetricName(MeasurementReporterTest.class, "my-gauge");
+		MetricName removed = new MetricName(MeasurementReporterTest.class, "my-removed-gauge");
+		registry.newGauge(gauge, constant(1));
+		registry.newGauge(removed, constant(2));
+		StripedCounter.register(registry, new MetricName(MeasurementReporterTest.class, "my-striped-counter"));
+
+		reporter.run();
+		assertThat(evaluator.names(), is((Set<MetricName>) new HashSet<>(Arrays.asList(gauge, removed))));
+
+		registry.removeMetric(removed);
+		reporter.run();
+		reporter.shutdown();
+
+		assertThat(evaluator.names(), is(Collections.singleton(gauge)));
+	}
+
+	@Test
+	public void histogramBucketsAreReportedAsCumulativeCounts() {
+		reporter.setHistogramBuckets(new HistogramBuckets(10, 2.5));
+		reporter.setPercentilesReported(false);
+		Histogram histogram = registry.newHistogram(new MetricName(MeasurementReporterTest.class, "my-histogram"), false);
+		for (int i = 1; i <= 20; i++) {
+			histogram.update(i);
+		}
+
+		reporter.run();
+
+		String frame = sender.getFrames().get(0);
+		assertThat(frame, not(containsString("50-percentile=")));
+		assertThat(frame, containsString("my-histogram-bucket,le=2.5 count=2i"));
+		assertThat(frame, containsString("my-histogram-bucket,le=10 count=10i"));
+		assertThat(frame, containsString("my-histogram-bucket,le=+Inf count=20i"));
+	}
+
+	@Test
+	public void reportingOneIntervalRecorderGeneratesOneLine() {
+		IntervalRecorder recorder = IntervalRecorder.register(registry, new MetricName(MeasurementReporterTest.class, "my-recorder"));
+		recorder.update(20, TimeUnit.MILLISECONDS);
+
+		reporter.run();
+		reporter.run();
+
+		assertThat(sender.getFrames().size(), is(2));
+		assertThat(sender.getFrames().get(0), startsWith("my-recorder"));
+		assertThat(sender.getFrames().get(0), containsString("count=1i"));
+		assertThat(sender.getFrames().get(0), containsString("99-percentile="));
+		assertThat(sender.getFrames().get(1), containsString("count=0i"));
+	}
+
+	@Test
+	public void reportingStripedCounterAndMeterGeneratesOneLineEach() {
+		StripedCounter counter = StripedCounter.register(registry, new MetricName(MeasurementReporterTest.class, "my-striped-counter"));
+		StripedMeter meter = StripedMeter.register(registry, new MetricName(MeasurementReporterTest.class, "my-striped-meter"), "events", TimeUnit.SECONDS);
+		counter.inc(3);
+		meter.mark();
+
+		reporter.run();
+
+		String frame = sender.getFrames().get(0);
+		assertThat(frame, containsString("my-striped-counter count=3i"));
+		assertThat(frame, containsString("my-striped-meter count=1i"));
+		assertThat(frame, containsString("one-minute="));
+	}
+
+	@Test
+	public void deltasOfCountsAreReportedFromTheSecondRun() {
+		reporter.setDeltaTracker(new DeltaTracker());
+		Counter counter = registry.newCounter(MeasurementReporterTest.class, "my-counter");
+		counter.inc(10);
+
+		reporter.run();
+		assertThat(sender.getFrames().get(0), not(containsString("delta=")));
+
+		counter.inc(5);
+		reporter.run();
+		String frame = sender.getFrames().get(sender.getFrames().size() - 1);
+		assertThat(frame, containsString("count=15i"));
+		assertThat(frame, containsString("delta=5i"));
+	}
+
+	@Test
+	public void groupedGaugesAreReportedAsTheFieldsOfOneMeasurement() {
+		reporter = new MeasurementReporter(sender, registry, Clock.defaultClock(), Collections.<String, String>emptyMap(), new GroupingMetricMeasurementTransformer("pool"));
+		registry.newGauge(new MetricName("g", "t", "pool.active"), constant(3));
+		registry.newGauge(new MetricName("g", "t", "pool.idle"), constant(5));
+		registry.newGauge(new MetricName("g", "t", "heap"), constant(7));
+
+		reporter.run();
+
+		String frame = sender.getFrames().get(0);
+		assertThat(frame, containsString("pool active=3i,idle=5i "));
+		assertThat(frame, containsString("heap value=7i "));
+		assertThat(frame.split("\n").length, is(2));
+	}
+
+	private static Gauge<Integer> constant(final int value) {
+		return new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return value;
+			}
+		};
+	}
 }
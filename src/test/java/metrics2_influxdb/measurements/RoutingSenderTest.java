@@ -0,0 +1,85 @@
+package metrics2_influxdb.measurements;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+
+import java.util.Collections;
+
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+public class RoutingSenderTest {
+	private ListInlinerSender defaultSender;
+	private ListInlinerSender shortTerm;
+	private ListInlinerSender longTerm;
+
+	@BeforeMethod
+	public void init() {
+		defaultSender = new ListInlinerSender(100);
+		shortTerm = new ListInlinerSender(100);
+		longTerm = new ListInlinerSender(100);
+	}
+
+	@Test
+	public void measuresAreSentToEveryMatchingDestination() {
+		RoutingSender router = new RoutingSender(defaultSender)
+				.route(RoutingSender.type(Measure.TIMER), shortTerm)
+				.route(RoutingSender.measurement("jvm\\..*"), longTerm)
+				.route(RoutingSender.tag("env", "prod|staging"), longTerm);
+
+		router.send(new Measure("requests", 1).type(Measure.TIMER));
+		router.send(new Measure("jvm.heap", 2).type(Measure.GAUGE));
+		router.send(new Measure("errors", Collections.singletonMap("env", "prod"), 3).type(Measure.TIMER));
+		router.send(new Measure("other", 4));
+		router.flush();
+
+		assertThat(shortTerm.getFrames().size(), is(1));
+		assertThat(shortTerm.getFrames().get(0), containsString("requests value=1i"));
+		assertThat(shortTerm.getFrames().get(0), containsString("errors,env=prod value=3i"));
+
+		assertThat(longTerm.getFrames().size(), is(1));
+		assertThat(longTerm.getFrames().get(0), containsString("jvm.heap value=2i"));
+		assertThat(longTerm.getFrames().get(0), containsString("errors,env=prod value=3i"));
+		assertThat(longTerm.getFrames().get(0), not(containsString("requests")));
+
+		assertThat(defaultSender.getFrames().size(), is(1));
+		assertThat(defaultSender.getFrames().get(0), is(containsString("other value=4i")));
+		assertThat(defaultSender.getFrames().get(0), not(containsString("requests")));
+	}
+
+	@Test
+	public void aDestinationOfSeveralMatchingRulesGetsTheMeasureOnce() {
+		RoutingSender router = new RoutingSender(defaultSender)
+				.route(RoutingSender.measurement("jvm\\..*"), longTerm)
+				.route(RoutingSender.type(Measure.GAUGE), longTerm);
+
+		router.send(new Measure("jvm.heap", 2).type(Measure.GAUGE));
+		router.flush();
+
+		assertThat(longTerm.getFrames().size(), is(1));
+		assertThat(longTerm.getFrames().get(0).split("\n").length, is(1));
+		assertThat(defaultSender.getFrames().toString(), not(containsString("jvm")));
+	}
+
+	@Test
+	public void rolledUpDestinationOnlyGetsRollups() {
+		AggregatingSender rollups = new AggregatingSender(longTerm, 2);
+		RoutingSender router = new RoutingSender(null)
+				.route(RoutingSender.all(), shortTerm)
+				.route(RoutingSender.all(), rollups);
+
+		router.send(new Measure("requests", 1));
+		router.flush();
+		router.send(new Measure("requests", 3));
+		router.flush();
+
+		assertThat(shortTerm.getFrames().size(), is(2));
+		StringBuilder sent = new StringBuilder();
+		for (String frame : longTerm.getFrames()) {
+			sent.append(frame);
+		}
+		assertThat(sent.toString(), containsString("requests samples=2i,value=3i,value-count=2i,value-max=3i,value-mean=2.0,value-min=1i,value-sum=4i"));
+	}
+}
@@ -0,0 +1,232 @@
+package metrics2_influxdb.measurements;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.annotations.Test;
+
+import metrics2_influxdb.TcpInfluxdbProtocol;
+import metrics2_influxdb.misc.Miscellaneous;
+
+public class TcpInlinerSenderTest {
+	/**
+	 * A local stand-in of a line protocol listener, closing each connection after the given number of lines,
+	 * or resetting the first one.
+	 */
+	private static final class StandIn implements Runnable {
+		private final ServerSocket server;
+		private final int linesPerConnection;
+		private final List<String> lines = new CopyOnWriteArrayList<String>();
+		private final AtomicInteger connections = new AtomicInteger();
+		private final boolean resetFirst;
+
+		StandIn(int port, int linesPerConnection) throws IOException {
+			this(port, linesPerConnection, false);
+		}
+
+		StandIn(int port, int linesPerConnection, boolean resetFirst) throws IOException {
+			this.resetFirst = resetFirst;
+			server = new ServerSocket();
+			server.setReuseAddress(true);
+			server.bind(new InetSocketAddress("127.0.0.1", port));
+			this.linesPerConnection = linesPerConnection;
+			Thread thread = new Thread(this, "tcp-stand-in");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		int port() {
+			return server.getLocalPort();
+		}
+
+		@Override
+		public void run() {
+			while (!server.isClosed()) {
+				try (Socket socket = server.accept()) {
+					if (connections.incrementAndGet() == 1 && resetFirst) {
+						// closed with unread bytes, without lingering: the lines not read yet are lost
+						socket.setSoLinger(true, 0);
+						lines.add(new BufferedReader(new InputStreamReader(socket.getInputStream(), Miscellaneous.UTF8)).readLine());
+						continue;
+					}
+					BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), Miscellaneous.UTF8));
+					String line;
+					int read = 0;
+					while (read < linesPerConnection && (line = in.readLine()) != null) {
+						lines.add(line);
+						read++;
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		}
+
+		void awaitLines(int count) throws InterruptedException {
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (lines.size() < count && System.nanoTime() < deadline) {
+				Thread.sleep(5);
+			}
+		}
+
+		List<Long> values() {
+			List<Long> values = new ArrayList<Long>();
+			for (String line : lines) {
+				values.add(Long.valueOf(line.split(" ")[1].replace("value=", "").replace("i", "")));
+			}
+			return values;
+		}
+
+		void close() throws IOException {
+			server.close();
+		}
+	}
+
+	private static List<Long> range(long from, long to) {
+		List<Long> values = new ArrayList<Long>();
+		for (long i = from; i < to; i++) {
+			values.add(i);
+		}
+		return values;
+	}
+
+	@Test
+	public void measuresAreWrittenInOrderOverOneConnection() throws Exception {
+		StandIn standIn = new StandIn(0, Integer.MAX_VALUE);
+		TcpInlinerSender sender = new TcpInlinerSender(new TcpInfluxdbProtocol("127.0.0.1", standIn.port()));
+		try {
+			for (int tick = 0; tick < 3; tick++) {
+				for (int i = 0; i < 1200; i++) {
+					sender.send(new Measure("m", tick * 1200 + i, 1000L));
+				}
+				sender.flush();
+			}
+			standIn.awaitLines(3600);
+
+			assertThat(standIn.values(), is(range(0, 3600)));
+			assertThat(standIn.connections.get(), is(1));
+		} finally {
+			sender.close();
+			standIn.close();
+		}
+	}
+
+	@Test
+	public void pointsAreWrittenOrderedBySeries() throws Exception {
+		StandIn standIn = new StandIn(0, Integer.MAX_VALUE);
+		TcpInlinerSender sender = new TcpInlinerSender(new TcpInfluxdbProtocol("127.0.0.1", standIn.port()));
+		try {
+			sender.send(new Measure("b", 0, 1000L));
+			sender.send(new Measure("a", 1, 1000L));
+			sender.send(new Measure("b", 2, 1000L));
+			sender.send(new Measure("a", 3, 1000L));
+			sender.flush();
+			standIn.awaitLines(4);
+
+			List<String> measurements = new ArrayList<String>();
+			for (String line : standIn.lines) {
+				measurements.add(line.split(" ")[0]);
+			}
+			assertThat(measurements, is(Arrays.asList("a", "a", "b", "b")));
+		} finally {
+			sender.close();
+			standIn.close();
+		}
+	}
+
+	@Test
+	public void aConnectionClosedByThePeerIsOpenedAgain() throws Exception {
+		StandIn standIn = new StandIn(0, 10);
+		TcpInlinerSender sender = new TcpInlinerSender(new TcpInfluxdbProtocol("127.0.0.1", standIn.port()));
+		try {
+			for (int i = 0; i < 10; i++) {
+				sender.send(new Measure("m", i, 1000L));
+			}
+			sender.flush();
+			standIn.awaitLines(10);
+			// let the stand-in close the connection
+			Thread.sleep(50);
+
+			for (int i = 10; i < 15; i++) {
+				sender.send(new Measure("m", i, 1000L));
+			}
+			sender.flush();
+			standIn.awaitLines(15);
+
+			assertThat(standIn.values(), is(range(0, 15)));
+			assertThat(standIn.connections.get(), is(2));
+		} finally {
+			sender.close();
+			standIn.close();
+		}
+	}
+
+	@Test
+	public void linesLostWithAResetConnectionAreWrittenAgain() throws Exception {
+		StandIn standIn = new StandIn(0, Integer.MAX_VALUE, true);
+		TcpInlinerSender sender = new TcpInlinerSender(new TcpInfluxdbProtocol("127.0.0.1", standIn.port()));
+		try {
+			for (int i = 0; i < 10; i++) {
+				sender.send(new Measure("m", i, 1000L));
+			}
+			sender.flush();
+			standIn.awaitLines(1);
+			// let the stand-in reset the connection
+			Thread.sleep(50);
+
+			for (int i = 10; i < 15; i++) {
+				sender.send(new Measure("m", i, 1000L));
+			}
+			sender.flush();
+			standIn.awaitLines(16);
+
+			List<Long> values = standIn.values();
+			assertThat(values.subList(1, values.size()), is(range(0, 15)));
+			assertThat(standIn.connections.get(), is(2));
+		} finally {
+			sender.close();
+			standIn.close();
+		}
+	}
+
+	@Test
+	public void measuresAreKeptUntilThePeerCanBeReached() throws Exception {
+		ServerSocket reserved = new ServerSocket(0);
+		int port = reserved.getLocalPort();
+		reserved.close();
+		TcpInlinerSender sender = new TcpInlinerSender(new TcpInfluxdbProtocol("127.0.0.1", port));
+		StandIn standIn = null;
+		try {
+			for (int i = 0; i < 5; i++) {
+				sender.send(new Measure("m", i, 1000L));
+			}
+			sender.flush();
+
+			standIn = new StandIn(port, Integer.MAX_VALUE);
+			// once the first backoff elapsed
+			Thread.sleep(150);
+			sender.flush();
+			standIn.awaitLines(5);
+
+			assertThat(standIn.values(), is(range(0, 5)));
+		} finally {
+			sender.close();
+			if (standIn != null) {
+				standIn.close();
+			}
+		}
+	}
+}
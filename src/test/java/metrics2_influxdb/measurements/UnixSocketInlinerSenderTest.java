@@ -0,0 +1,197 @@
+package metrics2_influxdb.measurements;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import metrics2_influxdb.UnixSocketInfluxdbProtocol;
+import metrics2_influxdb.misc.Miscellaneous;
+
+public class UnixSocketInlinerSenderTest {
+	/**
+	 * An in-process stand-in of a local agent, closing each connection after the given number of lines.
+	 */
+	private static final class StandIn implements Runnable {
+		private final ServerSocketChannel server;
+		private final int linesPerConnection;
+		private final List<String> lines = new CopyOnWriteArrayList<String>();
+		private final AtomicInteger connections = new AtomicInteger();
+
+		StandIn(String path, int linesPerConnection) throws Exception {
+			ProtocolFamily unix;
+			try {
+				unix = StandardProtocolFamily.valueOf("UNIX");
+			} catch (IllegalArgumentException e) {
+				throw new SkipException("Unix domain sockets require a Java 16 or later runtime");
+			}
+			SocketAddress address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+			server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+			server.bind(address);
+			this.linesPerConnection = linesPerConnection;
+			Thread thread = new Thread(this, "unix-socket-stand-in");
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		@Override
+		public void run() {
+			while (server.isOpen()) {
+				try (SocketChannel channel = server.accept()) {
+					connections.incrementAndGet();
+					BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), Miscellaneous.UTF8));
+					String line;
+					int read = 0;
+					while (read < linesPerConnection && (line = in.readLine()) != null) {
+						lines.add(line);
+						read++;
+					}
+				} catch (IOException e) {
+					// closed
+				}
+			}
+		}
+
+		void awaitLines(int count) throws InterruptedException {
+			long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+			while (lines.size() < count && System.nanoTime() < deadline) {
+				Thread.sleep(5);
+			}
+		}
+
+		List<Long> values() {
+			List<Long> values = new ArrayList<Long>();
+			for (String line : lines) {
+				values.add(Long.valueOf(line.split(" ")[1].replace("value=", "").replace("i", "")));
+			}
+			return values;
+		}
+
+		void close() throws IOException {
+			server.close();
+		}
+	}
+
+	private static String socketPath() throws IOException {
+		File file = File.createTempFile("metrics-influxdb", ".sock");
+		file.delete();
+		file.deleteOnExit();
+		return file.getAbsolutePath();
+	}
+
+	private static List<Long> range(long from, long to) {
+		List<Long> values = new ArrayList<Long>();
+		for (long i = from; i < to; i++) {
+			values.add(i);
+		}
+		return values;
+	}
+
+	@Test
+	public void measuresAreWrittenInOrderOverOneConnection() throws Exception {
+		String path = socketPath();
+		StandIn standIn = new StandIn(path, Integer.MAX_VALUE);
+		UnixSocketInlinerSender sender = new UnixSocketInlinerSender(new UnixSocketInfluxdbProtocol(path));
+		try {
+			for (int tick = 0; tick < 3; tick++) {
+				for (int i = 0; i < 1200; i++) {
+					sender.send(new Measure("m", tick * 1200 + i, 1000L));
+				}
+				sender.flush();
+			}
+			standIn.awaitLines(3600);
+
+			assertThat(standIn.values(), is(range(0, 3600)));
+			assertThat(standIn.connections.get(), is(1));
+		} finally {
+			sender.close();
+			standIn.close();
+		}
+	}
+
+	@Test
+	public void aConnectionClosedByTheAgentIsOpenedAgain() throws Exception {
+		String path = socketPath();
+		StandIn standIn = new StandIn(path, 10);
+		UnixSocketInlinerSender sender = new UnixSocketInlinerSender(new UnixSocketInfluxdbProtocol(path));
+		try {
+			for (int i = 0; i < 10; i++) {
+				sender.send(new Measure("m", i, 1000L));
+			}
+			sender.flush();
+			standIn.awaitLines(10);
+			// let the stand-in close the connection
+			Thread.sleep(50);
+
+			for (int i = 10; i < 15; i++) {
+				sender.send(new Measure("m", i, 1000L));
+			}
+			sender.flush();
+			standIn.awaitLines(15);
+
+			assertThat(standIn.values(), is(range(0, 15)));
+			assertThat(standIn.connections.get(), is(2));
+		} finally {
+			sender.close();
+			standIn.close();
+		}
+	}
+
+	@Test
+	public void anAgentNotAcceptingDoesNotBlockTheSend() throws Exception {
+		String path = socketPath();
+		ProtocolFamily unix;
+		try {
+			unix = StandardProtocolFamily.valueOf("UNIX");
+		} catch (IllegalArgumentException e) {
+			throw new SkipException("Unix domain sockets require a Java 16 or later runtime");
+		}
+		SocketAddress address = (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+		ServerSocketChannel server = (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+		server.bind(address, 1);
+		List<SocketChannel> pending = new ArrayList<SocketChannel>();
+		UnixSocketInlinerSender sender = new UnixSocketInlinerSender(new UnixSocketInfluxdbProtocol(path));
+		try {
+			// fills the accept backlog of the agent, which never accepts
+			for (int i = 0; i < 16; i++) {
+				SocketChannel channel = (SocketChannel) SocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+				pending.add(channel);
+				channel.configureBlocking(false);
+				try {
+					channel.connect(address);
+				} catch (IOException e) {
+					break;
+				}
+			}
+
+			long start = System.nanoTime();
+			sender.send(new Measure("m", 0, 1000L));
+			sender.flush();
+
+			assertThat(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start) < 3, is(true));
+		} finally {
+			sender.close();
+			for (SocketChannel channel : pending) {
+				channel.close();
+			}
+			server.close();
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package metrics2_influxdb.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class IntervalRecorderTest {
+	private IntervalRecorder recorder = new IntervalRecorder(TimeUnit.MILLISECONDS, 1, TimeUnit.HOURS, 6);
+
+	@Test
+	public void percentiles_are_within_the_relative_error() {
+		for (int i = 1; i <= 1000; i++) {
+			recorder.update(i, TimeUnit.MILLISECONDS);
+		}
+
+		IntervalRecorder.IntervalSnapshot snapshot = recorder.intervalSnapshot();
+
+		assertThat(snapshot.count(), is(1000L));
+		assertThat(snapshot.min(), closeTo(1, 0.001));
+		assertThat(snapshot.max(), closeTo(1000, 0.001));
+		assertThat(snapshot.mean(), closeTo(500.5, 0.001));
+		assertThat(snapshot.getValue(0.5), closeTo(500, 500 / 64.0));
+		assertThat(snapshot.getValue(0.99), closeTo(990, 990 / 64.0));
+	}
+
+	@Test
+	public void each_snapshot_covers_only_its_interval() {
+		recorder.update(10, TimeUnit.MILLISECONDS);
+		assertThat(recorder.intervalSnapshot().count(), is(1L));
+
+		assertThat(recorder.intervalSnapshot().count(), is(0L));
+
+		recorder.update(20, TimeUnit.MILLISECONDS);
+		recorder.update(30, TimeUnit.MILLISECONDS);
+		IntervalRecorder.IntervalSnapshot snapshot = recorder.intervalSnapshot();
+		assertThat(snapshot.count(), is(2L));
+		assertThat(snapshot.min(), closeTo(20, 0.001));
+	}
+
+	@Test
+	public void cumulative_counts_follow_the_boundaries() {
+		for (int i = 1; i <= 100; i++) {
+			recorder.update(i, TimeUnit.MILLISECONDS);
+		}
+
+		long[] counts = recorder.intervalSnapshot().cumulativeCounts(new double[] {0.5, 10.5, 50.5});
+
+		assertThat(counts[0], is(0L));
+		assertThat(counts[1], is(10L));
+		assertThat(counts[2], is(50L));
+	}
+
+	@Test
+	public void no_value_is_lost_while_writers_race_with_snapshots() throws Exception {
+		final int writers = 4;
+		final int updates = 100000;
+		final CountDownLatch done = new CountDownLatch(writers);
+		for (int w = 0; w < writers; w++) {
+			new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < updates; i++) {
+						recorder.update(i % 1000, TimeUnit.MICROSECONDS);
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+
+		long total = 0;
+		while (!done.await(1, TimeUnit.MILLISECONDS)) {
+			total += recorder.intervalSnapshot().count();
+		}
+		total += recorder.intervalSnapshot().count();
+
+		assertThat(total, is((long) writers * updates));
+	}
+
+	@Test
+	public void register_returns_the_already_registered_recorder() {
+		MetricsRegistry registry = new MetricsRegistry();
+		MetricName name = new MetricName(IntervalRecorderTest.class, "latency");
+
+		IntervalRecorder first = IntervalRecorder.register(registry, name);
+
+		assertThat(IntervalRecorder.register(registry, name), is(first));
+	}
+}
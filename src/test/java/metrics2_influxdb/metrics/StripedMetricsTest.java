@@ -0,0 +1,62 @@
+package metrics2_influxdb.metrics;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.closeTo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.Clock;
+
+public class StripedMetricsTest {
+
+	@Test
+	public void striped_counter_sums_all_threads_increments() throws Exception {
+		final StripedCounter counter = new StripedCounter(4);
+		final int threads = 8;
+		final int increments = 100000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int t = 0; t < threads; t++) {
+			new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < increments; i++) {
+						counter.inc();
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+		counter.dec(10);
+
+		assertThat(counter.count(), is((long) threads * increments - 10));
+		assertThat(counter.value(), is(counter.count()));
+	}
+
+	@Test
+	public void striped_meter_catches_up_its_rates_on_read() {
+		final long[] now = {0};
+		Clock clock = new Clock() {
+			@Override
+			public long tick() {
+				return now[0];
+			}
+		};
+		StripedMeter meter = new StripedMeter("requests", TimeUnit.SECONDS, clock, 2);
+
+		// a steady 10 marks per second during 10 minutes, read every minute
+		for (int minute = 0; minute < 10; minute++) {
+			meter.mark(600);
+			now[0] += TimeUnit.MINUTES.toNanos(1);
+			meter.oneMinuteRate();
+		}
+
+		assertThat(meter.count(), is(6000L));
+		assertThat(meter.meanRate(), closeTo(10, 0.001));
+		assertThat(meter.oneMinuteRate(), closeTo(10, 0.5));
+	}
+}
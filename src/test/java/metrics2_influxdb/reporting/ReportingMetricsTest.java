@@ -0,0 +1,54 @@
+package metrics2_influxdb.reporting;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+public class ReportingMetricsTest {
+	private static Gauge<Integer> constant(final int value) {
+		return new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				return value;
+			}
+		};
+	}
+
+	private static Object gaugeValue(MetricsRegistry registry, String name) {
+		return ((Gauge<?>) registry.allMetrics().get(new MetricName("metrics2_influxdb", "reporting", ReportingMetrics.PREFIX + name))).value();
+	}
+
+	@Test
+	public void gaugesOfTheSameNameAreAllRegistered() {
+		MetricsRegistry registry = new MetricsRegistry();
+		ReportingMetrics first = new ReportingMetrics(registry);
+		ReportingMetrics second = new ReportingMetrics(registry);
+
+		first.gauge("queue-depth", constant(1));
+		second.gauge("queue-depth", constant(2));
+
+		assertThat(gaugeValue(registry, "queue-depth"), is((Object) 1));
+		assertThat(gaugeValue(registry, "queue-depth-2"), is((Object) 2));
+	}
+
+	@Test
+	public void scopedGaugesArePrefixedAndCountersShared() {
+		MetricsRegistry registry = new MetricsRegistry();
+		ReportingMetrics metrics = new ReportingMetrics(registry);
+		ReportingMetrics scoped = metrics.scoped("mirror");
+
+		scoped.gauge("queue-depth", constant(3));
+		metrics.inc("shed", 1);
+		scoped.inc("shed", 2);
+
+		assertThat(gaugeValue(registry, "mirror.queue-depth"), is((Object) 3));
+		Counter shed = (Counter) registry.allMetrics().get(new MetricName("metrics2_influxdb", "reporting", ReportingMetrics.PREFIX + "shed"));
+		assertThat(shed.count(), is(3L));
+	}
+}
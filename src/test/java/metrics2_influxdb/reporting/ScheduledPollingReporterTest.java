@@ -0,0 +1,275 @@
+package metrics2_influxdb.reporting;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.endsWith;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.startsWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Counter;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import metrics2_influxdb.api.measurements.GroupingMetricMeasurementTransformer;
+import metrics2_influxdb.api.measurements.MetricMeasurementTransformer;
+import metrics2_influxdb.measurements.ListInlinerSender;
+import metrics2_influxdb.measurements.Measure;
+import metrics2_influxdb.measurements.MeasurementReporter;
+
+public class ScheduledPollingReporterTest {
+	private static final long PERIOD = TimeUnit.SECONDS.toMillis(10);
+
+	@Test
+	public void send_offset_is_deterministic_and_within_the_period() {
+		for (String host : new String[] {"web-01", "web-02", "db-master", "localhost"}) {
+			long offset = ScheduledPollingReporter.sendOffset(host, PERIOD);
+			assertThat(offset, greaterThanOrEqualTo(0L));
+			assertThat(offset, lessThan(PERIOD));
+			assertThat(ScheduledPollingReporter.sendOffset(host, PERIOD), is(offset));
+		}
+		assertThat(ScheduledPollingReporter.sendOffset("web-01", PERIOD), not(ScheduledPollingReporter.sendOffset("web-02", PERIOD)));
+	}
+
+	@Test
+	public void aligned_reporter_stamps_points_on_the_interval_boundary() {
+		final long[] now = {1450000003217L};
+		Clock clock = new Clock() {
+			@Override
+			public long tick() {
+				return now[0] * 1000000;
+			}
+
+			@Override
+			public long time() {
+				return now[0];
+			}
+		};
+		MetricsRegistry registry = new MetricsRegistry(clock);
+		ListInlinerSender sender = new ListInlinerSender(100);
+		MeasurementReporter reporter = new MeasurementReporter(sender, registry, clock, Collections.<String, String>emptyMap(), MetricMeasurementTransformer.NOOP);
+		reporter.setAlignedTimestamps(true);
+		reporter.setSendOffsetKey("web-01");
+		Counter c = registry.newCounter(new MetricName(ScheduledPollingReporterTest.class, "my-counter"));
+		c.inc();
+
+		reporter.start(PERIOD, TimeUnit.MILLISECONDS);
+		try {
+			// simulate the tick fired at boundary + offset
+			now[0] = 1450000010000L + ScheduledPollingReporter.sendOffset("web-01", PERIOD);
+			reporter.run();
+		} finally {
+			reporter.shutdown();
+		}
+
+		assertThat(sender.getFrames().size(), is(1));
+		assertThat(sender.getFrames().get(0), endsWith(" 1450000010000"));
+	}
+
+	@Test
+	public void partitioned_reporter_reports_each_metric_once_per_period() {
+		MetricsRegistry registry = new MetricsRegistry();
+		ListInlinerSender sender = new ListInlinerSender(100);
+		ScheduledPollingReporter reporter = new MeasurementReporter(sender, registry, Clock.defaultClock(), Collections.<String, String>emptyMap(), MetricMeasurementTransformer.NOOP);
+		reporter.setPartitions(4);
+		for (int i = 0; i < 40; i++) {
+			registry.newCounter(new MetricName(ScheduledPollingReporterTest.class, "counter-" + i)).inc();
+		}
+
+		Set<String> reported = new HashSet<>();
+		int lines = 0;
+		for (int t = 0; t < 4; t++) {
+			reporter.tick(t, null);
+		}
+		for (String frame : sender.getFrames()) {
+			for (String line : frame.split("\n")) {
+				reported.add(line.substring(0, line.indexOf(' ')));
+				lines++;
+			}
+		}
+		reporter.shutdown();
+
+		assertThat(lines, is(40));
+		assertThat(reported.size(), is(40));
+		assertThat(sender.getFrames().size(), greaterThan(1));
+	}
+
+	@Test
+	public void each_slice_ticks_at_the_rate_of_the_period() {
+		final List<long[]> schedules = new ArrayList<>();
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1) {
+			@Override
+			public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+				schedules.add(new long[] {unit.toMillis(initialDelay), unit.toMillis(period)});
+				return super.scheduleAtFixedRate(command, initialDelay, period, unit);
+			}
+		};
+		final long now = 1450000000000L;
+		Clock clock = new Clock() {
+			@Override
+			public long tick() {
+				return now * 1000000;
+			}
+
+			@Override
+			public long time() {
+				return now;
+			}
+		};
+		MeasurementReporter reporter = new MeasurementReporter(new ListInlinerSender(100), new MetricsRegistry(), clock, Collections.<String, String>emptyMap(), MetricMeasurementTransformer.NOOP);
+		reporter.setAlignedTimestamps(true);
+		reporter.setSendOffsetKey("web-01");
+		reporter.setPartitions(3);
+		((ScheduledPollingReporter) reporter).setScheduler(executor);
+		try {
+			reporter.start(PERIOD, TimeUnit.MILLISECONDS);
+		} finally {
+			reporter.shutdown();
+			executor.shutdown();
+		}
+
+		long offset = ScheduledPollingReporter.sendOffset("web-01", PERIOD / 3);
+		assertThat(schedules.size(), is(3));
+		for (int i = 0; i < 3; i++) {
+			// 10s is not a multiple of 3 slices, each one still ticks every 10s
+			assertThat(schedules.get(i)[1], is(PERIOD));
+			assertThat(schedules.get(i)[0], is(PERIOD + offset + i * PERIOD / 3));
+		}
+	}
+
+	@Test
+	public void grouped_gauges_are_reported_in_the_same_slice() {
+		MetricsRegistry registry = new MetricsRegistry();
+		ListInlinerSender sender = new ListInlinerSender(100);
+		ScheduledPollingReporter reporter = new MeasurementReporter(sender, registry, Clock.defaultClock(), Collections.<String, String>emptyMap(), new GroupingMetricMeasurementTransformer("pool"));
+		reporter.setPartitions(8);
+		for (int i = 0; i < 20; i++) {
+			registry.newGauge(new MetricName(ScheduledPollingReporterTest.class, "pool.field" + i), new Gauge<Integer>() {
+				@Override
+				public Integer value() {
+					return 1;
+				}
+			});
+		}
+
+		int lines = 0;
+		for (int t = 0; t < 8; t++) {
+			reporter.tick(t, null);
+		}
+		for (String frame : sender.getFrames()) {
+			for (String line : frame.split("\n")) {
+				if (!line.isEmpty()) {
+					lines++;
+				}
+			}
+		}
+		reporter.shutdown();
+
+		assertThat(lines, is(1));
+	}
+
+	@Test
+	public void ticks_fired_late_after_an_overrun_are_skipped() {
+		MetricsRegistry registry = new MetricsRegistry();
+		MetricsRegistry reportingRegistry = new MetricsRegistry();
+		registry.newCounter(new MetricName(ScheduledPollingReporterTest.class, "ticked")).inc();
+		ListInlinerSender sender = new ListInlinerSender(100);
+		MeasurementReporter reporter = new MeasurementReporter(sender, registry, Clock.defaultClock(), Collections.<String, String>emptyMap(), MetricMeasurementTransformer.NOOP);
+		reporter.setReportingMetrics(new ReportingMetrics(reportingRegistry));
+		reporter.setTickDeadline(0.8);
+		ScheduledPollingReporter polling = reporter;
+		DelayedFuture future = new DelayedFuture();
+
+		// ticks are driven below, the scheduled ones fire a period from now
+		reporter.start(PERIOD, TimeUnit.MILLISECONDS);
+		try {
+			// fired a whole period after its time, the previous tick having overrun
+			future.delayInMillis = -PERIOD;
+			polling.tick(0, future);
+			// fired on time
+			future.delayInMillis = 0;
+			polling.tick(0, future);
+		} finally {
+			reporter.shutdown();
+		}
+
+		Counter skipped = (Counter) reportingRegistry.allMetrics().get(new MetricName("metrics2_influxdb", "reporting", ReportingMetrics.PREFIX + "skipped-ticks"));
+		assertThat(skipped.count(), is(1L));
+		assertThat(sender.getFrames().size(), is(1));
+	}
+
+	/**
+	 * The periodic task of a slice, as seen from its tick, with a controllable delay.
+	 */
+	private static final class DelayedFuture implements ScheduledFuture<Object> {
+		private long delayInMillis;
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(delayInMillis, TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			return Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public boolean isDone() {
+			return false;
+		}
+
+		@Override
+		public Object get() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Object get(long timeout, TimeUnit unit) {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	@Test
+	public void senders_keep_the_measures_once_the_tick_deadline_passed() {
+		ListInlinerSender sender = new ListInlinerSender(100);
+		sender.send(new Measure("m", 1));
+		TickDeadline.set(System.nanoTime() - 1);
+		try {
+			sender.flush();
+		} finally {
+			TickDeadline.clear();
+		}
+		assertThat(sender.getFrames().size(), is(0));
+
+		sender.flush();
+		assertThat(sender.getFrames().size(), is(1));
+		assertThat(sender.getFrames().get(0), startsWith("m value=1i"));
+	}
+}
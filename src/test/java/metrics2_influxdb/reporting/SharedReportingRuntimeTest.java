@@ -0,0 +1,151 @@
+package metrics2_influxdb.reporting;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+import static org.hamcrest.Matchers.startsWith;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.testng.annotations.Test;
+
+import com.yammer.metrics.core.Clock;
+import com.yammer.metrics.core.Gauge;
+import com.yammer.metrics.core.MetricName;
+import com.yammer.metrics.core.MetricsRegistry;
+
+import metrics2_influxdb.InfluxdbReporter;
+import metrics2_influxdb.api.measurements.MetricMeasurementTransformer;
+import metrics2_influxdb.measurements.ListInlinerSender;
+import metrics2_influxdb.measurements.MeasurementReporter;
+
+public class SharedReportingRuntimeTest {
+	private static MeasurementReporter reporter(SharedReportingRuntime runtime, String tenant, final Set<String> threads, final AtomicInteger ticks) {
+		MetricsRegistry registry = new MetricsRegistry();
+		registry.newGauge(new MetricName("tenants", "gauge", tenant), new Gauge<Integer>() {
+			@Override
+			public Integer value() {
+				threads.add(Thread.currentThread().getName());
+				ticks.incrementAndGet();
+				return 1;
+			}
+		});
+		MeasurementReporter reporter = new MeasurementReporter(runtime.getSender(), registry, Clock.defaultClock(), Collections.<String, String>emptyMap(), MetricMeasurementTransformer.NOOP);
+		runtime.attach(reporter);
+		return reporter;
+	}
+
+	@Test
+	public void attachedReportersTickOnOneThreadAndAreSentTogether() throws Exception {
+		ListInlinerSender sender = new ListInlinerSender(1000);
+		SharedReportingRuntime runtime = new SharedReportingRuntime(sender, 1, TimeUnit.SECONDS);
+		Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		AtomicInteger ticks = new AtomicInteger();
+		reporter(runtime, "first", threads, ticks).start(100, TimeUnit.MILLISECONDS);
+		reporter(runtime, "second", threads, ticks).start(100, TimeUnit.MILLISECONDS);
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (sender.getFrames().isEmpty() && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		runtime.close();
+
+		assertThat(threads.size(), is(1));
+		assertThat(threads.iterator().next(), startsWith("metrics-reporting-runtime-"));
+		// the ticks of both reporters within the linger delay are sent in a single request
+		assertThat(sender.getFrames().get(0), containsString("first"));
+		assertThat(sender.getFrames().get(0), containsString("second"));
+	}
+
+	@Test
+	public void aShutdownReporterStopsTickingOnTheRuntime() throws Exception {
+		SharedReportingRuntime runtime = new SharedReportingRuntime(new ListInlinerSender(1000), 10, TimeUnit.MILLISECONDS);
+		Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		AtomicInteger stoppedTicks = new AtomicInteger();
+		AtomicInteger runningTicks = new AtomicInteger();
+		MeasurementReporter stopped = reporter(runtime, "stopped", threads, stoppedTicks);
+		stopped.start(20, TimeUnit.MILLISECONDS);
+		reporter(runtime, "running", threads, runningTicks).start(20, TimeUnit.MILLISECONDS);
+		Thread.sleep(100);
+
+		stopped.shutdown();
+		int ticksAtShutdown = stoppedTicks.get();
+		int runningAtShutdown = runningTicks.get();
+		Thread.sleep(100);
+
+		assertThat(stoppedTicks.get(), is(ticksAtShutdown));
+		assertThat(runningTicks.get(), greaterThan(runningAtShutdown));
+		runtime.close();
+	}
+
+	@Test
+	public void theDelayedFlushIsBoundedByTheTickDeadlineOfTheReporters() throws Exception {
+		final AtomicLong flushBudget = new AtomicLong(-1);
+		ListInlinerSender sender = new ListInlinerSender(1000) {
+			@Override
+			public void flush() {
+				flushBudget.compareAndSet(-1, TickDeadline.remainingNanos(Long.MAX_VALUE));
+				super.flush();
+			}
+		};
+		SharedReportingRuntime runtime = new SharedReportingRuntime(sender, 10, TimeUnit.MILLISECONDS);
+		MeasurementReporter reporter = reporter(runtime, "bounded", Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()), new AtomicInteger());
+		reporter.setTickDeadline(0.5);
+		reporter.start(200, TimeUnit.MILLISECONDS);
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (flushBudget.get() == -1 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		runtime.close();
+
+		assertThat(flushBudget.get(), lessThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(100)));
+	}
+
+	@Test
+	public void builtReportersAreAttachedToTheRuntime() throws Exception {
+		SharedReportingRuntime runtime = InfluxdbReporter.forRegistry(new MetricsRegistry()).buildRuntime(100, TimeUnit.MILLISECONDS);
+		InfluxdbReporter.forRegistry(new MetricsRegistry()).runtime(runtime).build();
+		InfluxdbReporter.forRegistry(new MetricsRegistry()).runtime(runtime).build();
+
+		assertThat(runtime.size(), is(2));
+		runtime.close();
+	}
+
+	@Test
+	public void reportersShutDownStopTickingAndAreDetached() throws Exception {
+		SharedReportingRuntime runtime = new SharedReportingRuntime(new ListInlinerSender(1000), 10, TimeUnit.MILLISECONDS);
+		AtomicInteger ticks = new AtomicInteger();
+		MeasurementReporter reporter = reporter(runtime, "leaving", Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()), ticks);
+		reporter.start(20, TimeUnit.MILLISECONDS);
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (ticks.get() == 0 && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		reporter.shutdown(1, TimeUnit.SECONDS);
+		int ticked = ticks.get();
+		Thread.sleep(100);
+
+		assertThat(runtime.size(), is(0));
+		assertThat(ticks.get(), is(ticked));
+		runtime.close();
+	}
+
+	@Test(expectedExceptions=IllegalStateException.class)
+	public void senderOptionsAreRejectedWithARuntime() throws Exception {
+		SharedReportingRuntime runtime = InfluxdbReporter.forRegistry(new MetricsRegistry()).buildRuntime(100, TimeUnit.MILLISECONDS);
+		try {
+			InfluxdbReporter.forRegistry(new MetricsRegistry()).runtime(runtime).coalesceBacklog(100).build();
+		} finally {
+			runtime.close();
+		}
+	}
+}
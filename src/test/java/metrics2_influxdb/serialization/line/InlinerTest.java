@@ -5,6 +5,7 @@ import org.testng.annotations.Test;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
@@ -12,6 +13,7 @@ import java.util.regex.Pattern;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.endsWith;
 import static org.hamcrest.Matchers.startsWith;
 import static org.hamcrest.number.OrderingComparison.greaterThanOrEqualTo;
@@ -272,4 +274,31 @@ public class InlinerTest {
 		assertThat(lines[1], is(inliner.inline(m)));
 		assertThat(lines[2], is(inliner.inline(m)));
 	}
+
+	@Test
+	public void batches_sorted_by_series_group_measurements_then_series() {
+		Inliner sorting = new Inliner(TimeUnit.MILLISECONDS);
+		sorting.setSortedBySeries(true);
+		Map<String, String> hostB = new HashMap<>();
+		hostB.put("host", "b");
+		Map<String, String> hostA = new HashMap<>();
+		hostA.put("host", "a");
+
+		String output = sorting.inline(Arrays.asList(
+				new Measure("mem", hostB, 1, 1000),
+				new Measure("cpu", hostB, 2, 1000),
+				new Measure("mem", hostA, 3, 1000),
+				new Measure("cpu!", hostA, 4, 1000),
+				new Measure("cpu", hostA, 5, 1000),
+				new Measure("mem", hostB, 6, 2000)));
+
+		// measurements in order, the series of a measurement grouped in any order
+		List<String> lines = Arrays.asList(output.split("\n"));
+		assertThat(lines.subList(0, 2), containsInAnyOrder("cpu,host=a value=5i 1000", "cpu,host=b value=2i 1000"));
+		assertThat(lines.get(2), is("cpu!,host=a value=4i 1000"));
+		int memB = lines.indexOf("mem,host=b value=1i 1000");
+		assertThat(memB == 3 || memB == 4, is(true));
+		assertThat(lines.get(memB + 1), is("mem,host=b value=6i 2000"));
+		assertThat(lines.get(memB == 3 ? 5 : 3), is("mem,host=a value=3i 1000"));
+	}
 }